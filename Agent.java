@@ -26,8 +26,7 @@ public class Agent implements Steppable
     // Flocking parameters:
     protected static final double foodFactor = 1.0;
     protected static final double defaultFlockingFactor = 2.5;
-    protected static double flockingFactor = defaultFlockingFactor;
-    protected static double flockRepulsionFactor = 1.0;
+    protected static final double flockRepulsionFactor = 1.0;
     protected static final double repulsionFactor = 1.1;
     protected static final double randomnessFactor = 1.0;
     protected static final double orientationFactor = 1.4;
@@ -38,16 +37,11 @@ public class Agent implements Steppable
     protected static final boolean useObservabilityRules = true;
     protected static final double defaultObservability = 0.8;
     protected static final double defaultSymptomTolerance = 0.3;
-    protected static double observability = defaultObservability; 
-    protected static double symptomTolerance = defaultSymptomTolerance;
-
-    // Agent data:
-    public int id;
-    public Double2D location;
-    public Double2D orientation;
-    public double energy;
-    public boolean infected;
-    public double symptomVisibility;
+
+    // Agent data. The state itself lives in the AgentStore; an Agent is a
+    // view onto slot id of the store.
+    public final int id;
+    protected final AgentStore store;
     protected Stoppable scheduleItem;
 
     // Attractive / repulsive forces, for visualization.
@@ -62,34 +56,31 @@ public class Agent implements Steppable
             multiplier = m;
         }
 
-        public Force(String n, MutableDouble2D f, double m) {
-            name = n;
-            force = new Double2D(f);
-            multiplier = m;
-        }
     };
     ArrayList<Force> lastForces;
 
-    /** Initializes an agent with the given id and location. */
-    public Agent(int id, Double2D location, boolean infected, double symptomVisibility)
+    /** Initializes a view onto the agent with the given id in the store. */
+    public Agent(AgentStore store, int id)
     {
         this.id = id;
-        this.location = location;
-        this.energy = initialEnergy;
-        this.infected = infected;
-        this.orientation = new Double2D();
-        this.symptomVisibility = symptomVisibility;
+        this.store = store;
         this.lastForces = new ArrayList<Force>();
     }
 
-
     /** Returns random symptom visibility for the given infected state. 
      ** If perfect observability, will be actual infected state. */
     public static double calcSymptomVisibility(final DiseaseSpread sim, boolean infected)
+    {
+        return calcSymptomVisibility(sim, sim.random, infected);
+    }
+
+    /** As above, but draws from the given random number generator. */
+    public static double calcSymptomVisibility(final DiseaseSpread sim,
+                                               RandomSource random, boolean infected)
     {
         double chance = -1;
         while ((chance > 1) || (chance < 0)) {
-            chance = Math.abs (sim.random.nextGaussian() * (1 - observability));
+            chance = Math.abs (random.nextGaussian() * (1 - sim.observability));
         };
         double symptomVisibility = chance;
         if(infected) {
@@ -98,82 +89,105 @@ public class Agent implements Steppable
         return symptomVisibility;
     }
 
+    /**
+     * Timed recovery: returns the step at which an infected agent recovers,
+     * if it is first checked at step firstCheck. Recovering at every check
+     * with probability probRecovery is the same as recovering after a
+     * geometric number of checks, which takes a single draw.
+     */
+    public static long recoveryStep(double probRecovery, RandomSource random, long firstCheck)
+    {
+        if(probRecovery >= 1) {
+            return firstCheck;
+        } else if(probRecovery <= 0) {
+            return Long.MAX_VALUE;
+        }
+        double u = 1 - random.nextDouble();  // in (0, 1]
+        return firstCheck + (long)Math.floor(Math.log(u) / Math.log(1 - probRecovery));
+    }
+
     /** Returns true if another agent looks infected from this agent's perspective. */
-    public boolean looksInfected(Agent other)
+    public boolean looksInfected(int other)
     {
         if (useObservabilityRules) {
-            return (other.symptomVisibility > this.symptomTolerance);
+            return (store.symptomVisibility[other] > store.symptomTolerance[id]);
         } else {
-            return other.infected;
+            return store.infected[other];
         }
     }
 
     /** Returns true if the agent is satiated (cannot eat right now). */
     public boolean isSatiated()
     {
-        return energy > satiatedEnergy;
+        return store.energy[id] > satiatedEnergy;
     }
 
     /** Returns true if the agent is infected, for display in the GUI console. */
     public boolean isInfected()
     {
-        return infected;
+        return store.infected[id];
     }
 
     /** Returns agent's energy, for display in the GUI console. */
     public double getEnergy()
     {
-        return energy;
+        return store.energy[id];
+    }
+
+    /** Returns agent's location, for display in the GUI console. */
+    public Double2D getLocation()
+    {
+        return new Double2D(store.x[id], store.y[id]);
+    }
+
+    /** Returns agent's orientation, for display in the GUI console. */
+    public Double2D getOrientation()
+    {
+        return new Double2D(store.ox[id], store.oy[id]);
+    }
+
+    /** Returns how infected the agent looks, for display in the GUI console. */
+    public double getSymptomVisibility()
+    {
+        return store.symptomVisibility[id];
+    }
+
+    /** Returns how infected others must look to repel the agent. */
+    public double getSymptomTolerance()
+    {
+        return store.symptomTolerance[id];
+    }
+
+    /** Returns true until the agent has died. */
+    public boolean isAlive()
+    {
+        return store.isAlive(id);
     }
 
     /** Updates the agent at every step of the simulation. */
     public void step(final SimState state)
     {
         DiseaseSpread sim = (DiseaseSpread)state;
+        final double[] energy = store.energy;
 
-        // Collect nearby items and sort them by type.
-        Bag neighbors = sim.environment.getObjectsExactlyWithinDistance(location, sensoryRange, true);
-        ArrayList<Agent> nearbyAgents = new ArrayList<Agent>();
-        ArrayList<Food> nearbyFood = new ArrayList<Food>();
-        for(int i = 0; i < neighbors.numObjs; i++) {
-            // Ignore ourselves.
-            if(neighbors.objs[i] == this) {
-                continue;
-            }
-            if(neighbors.objs[i] instanceof Food) {
-                nearbyFood.add((Food)neighbors.objs[i]);
-            } else if(neighbors.objs[i] instanceof Agent) {
-                nearbyAgents.add((Agent)neighbors.objs[i]);
-            }
-        }
+        // Collect nearby items, sorted by type.
+        NeighborIndex.Neighborhood nearby = sim.neighborhood;
+        sim.neighborIndex.query(store, id, sensoryRange, nearby);
 
         // Drain energy and remove agent from environment & schedule if the
         // energy drops to zero.
-        double drain = energyDrainPerStep;
-        int withinFlockingRange = 0;
-        for(Agent other : nearbyAgents) {
-            if(other.location.distance(this.location) <= flockingBenefitRange) {
-                withinFlockingRange++;
-            }
-        }
-
-        // Drain will be less if we are surrounded by other agents
-        if(withinFlockingRange >= flockingMinOthers) {
-            drain *= flockingDrainMultiplier;
-        }
-        if(infected) {
-            drain *= sim.disease.energyDrainMultiplier;
-        }
-        double actualDrain = Math.min(drain, energy);
-        energy -= drain;
+        double drain = stepDrain(sim, nearby);
+        double actualDrain = Math.min(drain, energy[id]);
+        energy[id] -= drain;
         sim.totalEnergy -= actualDrain;
         sim.totalEnergyAgents -= actualDrain;
-        if(energy <= 0) { // agent has died
+        if(energy[id] <= 0) { // agent has died
             sim.environment.remove(this);
             scheduleItem.stop();
-            System.out.println("Agent " + id + " died");
+            sim.events.log(EventLog.DIED, id, 0, 0);
+            sim.deaths.increment();
             sim.numAgentsAlive--;
-            if(infected) {
+            if(store.infected[id]) {
                 sim.numAgentsInfected--;
             }
             return;
@@ -181,246 +195,378 @@ public class Agent implements Steppable
 
         // Take appropriate actions. These are factored out into different
         // functions for readability.
-        stepEat(state, nearbyFood, nearbyAgents);
-        stepUpdateInfected(state, nearbyAgents);
-        stepMove(state, nearbyFood, nearbyAgents);
+        int meal = stepChooseMeal(sim.foodField, nearby);
+        if(meal >= 0) {
+            eat(sim, meal, nearby);
+        }
+        int change = stepUpdateInfected(sim, sim.random, nearby);
+        if(change > 0) {
+            sim.events.log(EventLog.INFECTED, id, store.infectionSource[id],
+                           store.symptomVisibility[id]);
+            sim.infections.increment();
+        } else if(change < 0) {
+            sim.events.log(EventLog.RECOVERED, id, 0, store.symptomVisibility[id]);
+            sim.recoveries.increment();
+        }
+        sim.numAgentsInfected += change;
+        stepMove(sim, sim.random, nearby, meal);
+        if(sim.guiAttached) {
+            sim.environment.setObjectLocation(this, getLocation());
+        }
     }
 
     /**
-     * Go through the list of nearby food and eat the best item we can find.
-     * The eaten food item gets removed from the environment and the schedule.
+     * Synchronous mode: computes the agent's next state into the store's
+     * next-step buffers. Reads only the current state, which nobody modifies
+     * during the step, and writes only this agent's slots, so all agents can
+     * be computed in parallel. The agent only asks for a food item here;
+     * SynchronousStepper decides who gets it and applies deaths, meals and
+     * the simulation totals.
      */
-    private void stepEat(final SimState state, ArrayList<Food> nearbyFood, ArrayList<Agent> nearbyAgents)
+    void computeNext(final DiseaseSpread sim, RandomSource random,
+                     NeighborIndex.Neighborhood nearby)
     {
-        DiseaseSpread sim = (DiseaseSpread)state;
+        store.copyToNext(id);
+        store.meal[id] = -1;
+        if(!store.isAlive(id)) {
+            return;
+        }
 
-        // We can't eat if we are satiated.
-        if(isSatiated()) {
+        sim.neighborIndex.query(store, id, sensoryRange, nearby);
+        store.nextEnergy[id] -= stepDrain(sim, nearby);
+        if(store.nextEnergy[id] <= 0) {  // agent will die
             return;
         }
+        int meal = stepChooseMeal(sim.foodField, nearby);
+        store.meal[id] = meal;
+        stepUpdateInfected(sim, random, nearby);
+        stepMove(sim, random, nearby, meal);
+    }
+
+    /**
+     * Returns how much energy the agent loses this step. Drain will be less
+     * if we are surrounded by other agents, and more if we are infected.
+     */
+    private double stepDrain(final DiseaseSpread sim, NeighborIndex.Neighborhood nearby)
+    {
+        double drain = energyDrainPerStep;
+        int withinFlockingRange = 0;
+        for(int i = 0; i < nearby.numAgents; i++) {
+            if(nearby.agentDistances[i] <= flockingBenefitRange) {
+                withinFlockingRange++;
+            }
+        }
+        if(withinFlockingRange >= flockingMinOthers) {
+            drain *= flockingDrainMultiplier;
+        }
+        if(store.infected[id]) {
+            drain *= sim.disease.energyDrainMultiplier;
+        }
+        return drain;
+    }
+
+    /**
+     * Go through the list of nearby food and return the slot of the best item
+     * we can eat, or -1 if we are satiated or there is nothing in reach.
+     */
+    private int stepChooseMeal(FoodField food, NeighborIndex.Neighborhood nearby)
+    {
+        // We can't eat if we are satiated.
+        if(store.nextEnergy[id] > satiatedEnergy) {
+            return -1;
+        }
 
         // Find the item with the most energy that is close enough to eat.
-        Food bestItem = null;
-        for(Food item: nearbyFood) {
-            Double2D itemLoc = sim.environment.getObjectLocation(item);
-            if(itemLoc.distance(this.location) > eatingRange) {
+        int bestItem = -1;
+        for(int i = 0; i < nearby.numFood; i++) {
+            int item = nearby.food[i];
+            if(nearby.foodDistances[i] > eatingRange) {
                 continue;
             }
-            if(bestItem == null || item.energy > bestItem.energy) {
+            if(bestItem < 0 || food.energy[item] > food.energy[bestItem]) {
                 bestItem = item;
             }
         }
+        return bestItem;
+    }
 
-        // Eat the best found item, if any.
-        if(bestItem != null) {
-            ArrayList<Agent> sharingAgents = new ArrayList<Agent>();
-
-            // Share half of food with close-by neighbors
-            // In this way, it can be beneficial to be in a flock
-            for (Agent guy: nearbyAgents) {
-                if (guy.location.distance(this.location) < sharingRange) {
-                    sharingAgents.add(guy);
-                }
+    /**
+     * Eats the food item in the given slot, sharing half of it with the agents
+     * in nearby that are within sharingRange and still alive. The eaten food
+     * item gets removed from the FoodField.
+     */
+    void eat(final DiseaseSpread sim, int bestItem, NeighborIndex.Neighborhood nearby)
+    {
+        final double[] energy = store.nextEnergy;
+        final double foodEnergy = sim.foodField.energy[bestItem];
+
+        // Share half of food with close-by neighbors
+        // In this way, it can be beneficial to be in a flock
+        int numSharing = 0;
+        for(int i = 0; i < nearby.numAgents; i++) {
+            if(nearby.agentDistances[i] < sharingRange && energy[nearby.agents[i]] > 0) {
+                numSharing++;
             }
-            if (sharingAgents.size() > 0) {
-                energy += bestItem.energy / 2;
-                for (Agent other : sharingAgents) {
-                    other.energy += bestItem.energy / (2 * sharingAgents.size());
+        }
+        if (numSharing > 0) {
+            energy[id] += foodEnergy / 2;
+            for(int i = 0; i < nearby.numAgents; i++) {
+                if(nearby.agentDistances[i] < sharingRange && energy[nearby.agents[i]] > 0) {
+                    energy[nearby.agents[i]] += foodEnergy / (2 * numSharing);
                 }
-            } else {
-                energy += bestItem.energy;
             }
-
-            sim.totalEnergyAgents += bestItem.energy;
-            bestItem.energy = 0;
-            sim.environment.remove(bestItem);
-            // bestItem will be removed from schedule on its next step().
-            System.out.println("Agent " + id + " ate");
+        } else {
+            energy[id] += foodEnergy;
         }
+
+        sim.totalEnergyAgents += foodEnergy;
+        sim.meals.increment();
+        sim.events.log(EventLog.ATE, id, 0, foodEnergy);
+        sim.foodField.remove(bestItem);
     }
 
     /**
-     * If infected, recovers from disease with some probability. If healthy,
-     * gets infected with some probability if there are nearby infected agents.
+     * If infected, recovers from disease with some probability (or, with
+     * timed recovery, once its recovery step has come). If healthy, gets
+     * infected with some probability if there are nearby infected agents.
+     * Returns +1 if the agent got infected, -1 if it recovered, 0 otherwise.
      */
-    private void stepUpdateInfected(final SimState state,
-                                    ArrayList<Agent> nearbyAgents)
+    private int stepUpdateInfected(final DiseaseSpread sim, RandomSource random,
+                                   NeighborIndex.Neighborhood nearby)
     {
-        DiseaseSpread sim = (DiseaseSpread)state;
+        final boolean[] infected = store.infected;
 
-        if(infected) {
+        if(infected[id]) {
             // Recover with some probability.
-            if(sim.random.nextDouble() <= sim.disease.probRecovery) {
-                infected = false;
-                symptomVisibility = calcSymptomVisibility(sim, false);
-                System.out.println("Agent " + id + " recovered");
-                sim.numAgentsInfected--;
+            boolean recovers;
+            if(sim.timedRecovery) {
+                recovers = sim.schedule.getSteps() >= store.recoveryStep[id];
+            } else {
+                recovers = random.nextDouble() <= sim.disease.probRecovery;
             }
-        } else {
+            if(recovers) {
+                store.nextInfected[id] = false;
+                store.nextSymptomVisibility[id] = calcSymptomVisibility(sim, random, false);
+                return -1;
+            }
+        } else if(sim.numAgentsInfected > 0) {
             // Figure out if there is an infected agent nearby.
             boolean foundInfected = false;
-            for(Agent agent: nearbyAgents) {
-                if(agent.infected &&
-                   agent.location.distance(this.location) <= infectionRange) {
+            for(int i = 0; i < nearby.numAgents; i++) {
+                if(infected[nearby.agents[i]] &&
+                   nearby.agentDistances[i] <= infectionRange) {
                     foundInfected = true;
+                    store.infectionSource[id] = nearby.agents[i];
                     break;
                 }
             }
             // If there is an infected agent nearby, get infected with some probability.
-            if(foundInfected && sim.random.nextDouble() <= sim.disease.probTransmission) {
-                infected = true;
-                symptomVisibility = calcSymptomVisibility(sim, true);
-                System.out.println("Agent " + id + " got infected");
-                sim.numAgentsInfected++;
+            if(foundInfected && random.nextDouble() <= sim.disease.probTransmission) {
+                store.nextInfected[id] = true;
+                store.nextSymptomVisibility[id] = calcSymptomVisibility(sim, random, true);
+                if(sim.timedRecovery) {
+                    store.recoveryStep[id] = recoveryStep(sim.disease.probRecovery, random,
+                                                          sim.schedule.getSteps() + 1);
+                }
+                return 1;
             }
         }
+        return 0;
     }
 
     /**
      * Moves in an appropriate direction based on what food items and other
      * agents are nearby. This takes into account infection and flocking
-     * parameters.
+     * parameters. Each force is kept as a pair of scalar locals, so this
+     * allocates nothing unless the forces are recorded for the GUI. Ignores
+     * meal, the item the agent eats this step.
      */
-    private void stepMove(final SimState state,
-                          ArrayList<Food> nearbyFood,
-                          ArrayList<Agent> nearbyAgents)
+    private void stepMove(final DiseaseSpread sim, RandomSource random,
+                          NeighborIndex.Neighborhood nearby, int meal)
     {
-        DiseaseSpread sim = (DiseaseSpread)state;
-
-        MutableDouble2D avgOrientation = new MutableDouble2D(this.orientation),
-                        foodAttraction = new MutableDouble2D(),
-                        flockAttraction = new MutableDouble2D(),
-                        flockRepulsion = new MutableDouble2D(),
-                        agentRepulsion = new MutableDouble2D();
+        final double[] x = store.x, y = store.y, ox = store.ox, oy = store.oy;
+        final FoodField food = sim.foodField;
+        final double myX = x[id], myY = y[id];
+        final double myOX = ox[id], myOY = oy[id];
+
+        double avgOrientationX = myOX, avgOrientationY = myOY,
+               foodAttractionX = 0, foodAttractionY = 0,
+               flockAttractionX = 0, flockAttractionY = 0,
+               flockRepulsionX = 0, flockRepulsionY = 0,
+               agentRepulsionX = 0, agentRepulsionY = 0;
+        double len;
 
         // The orientation vector from the previous step
         // If we are flocking, we also account for our neighbors' orientations
-        MutableDouble2D sumOrientation = new MutableDouble2D();
-        for (Agent other : nearbyAgents) {
-            double d = other.location.distance(this.location); 
+        double sumOrientationX = 0, sumOrientationY = 0;
+        for (int i = 0; i < nearby.numAgents; i++) {
+            int other = nearby.agents[i];
+            double d = nearby.agentDistances[i];
             if (d < minDistance) {
                 d = minDistance;
             }
-            Double2D force = other.orientation.multiply(1.0 / (d * d));
-            sumOrientation.addIn(force);
+            double scale = 1.0 / (d * d);
+            sumOrientationX += ox[other] * scale;
+            sumOrientationY += oy[other] * scale;
         }
-        if (sumOrientation.length() > 0) {
-            sumOrientation.normalize();
+        len = Math.sqrt(sumOrientationX * sumOrientationX + sumOrientationY * sumOrientationY);
+        if (len > 0) {
+            sumOrientationX *= 1.0 / len;
+            sumOrientationY *= 1.0 / len;
         }
-        avgOrientation.addIn(sumOrientation.multiplyIn(0.7));
+        avgOrientationX += sumOrientationX * 0.7;
+        avgOrientationY += sumOrientationY * 0.7;
 
         // We are always repelled by agents perceived to be infected
         // If we are in flocking mode:
         // We are attracted to healthy agents that are in front of us
         // We are repelled by healthy agents that are too close 
-        for (Agent other : nearbyAgents) {
-            Double2D force, direction;
-            double d = other.location.distance(this.location);
+        for (int i = 0; i < nearby.numAgents; i++) {
+            int other = nearby.agents[i];
+            double d = nearby.agentDistances[i];
             if (d < minDistance) {
                 d = minDistance;
             }
 
-            direction = other.location.subtract(this.location);
-            if (direction.length() > 0) {
+            double directionX = x[other] - myX, directionY = y[other] - myY;
+            len = Math.sqrt(directionX * directionX + directionY * directionY);
+            if (len > 0) {
+                // direction, normalized
+                directionX *= 1.0 / len;
+                directionY *= 1.0 / len;
                 if (looksInfected(other)) {
-                    force = direction.normalize().multiply(-1.0 / (d * d));
-                    agentRepulsion.addIn(force);
+                    double scale = -1.0 / (d * d);
+                    agentRepulsionX += directionX * scale;
+                    agentRepulsionY += directionY * scale;
                 }
-                else if (flockingFactor > 0){
-                    double dot = direction.normalize().dot(this.orientation);
+                else if (sim.flockingFactor > 0){
+                    double dot = myOX * directionX + myOY * directionY;
                     // if leading the other agent
                     if (d <= separationDistance) {
-                        force = direction.normalize().multiply(-1 / (d * d));
-                        flockRepulsion.addIn(force);
+                        double scale = -1 / (d * d);
+                        flockRepulsionX += directionX * scale;
+                        flockRepulsionY += directionY * scale;
                     }
                     else if (dot > 0) {
-                        force = direction.normalize().multiply(dot / (d * d));
-                        flockAttraction.addIn(force);
+                        double scale = dot / (d * d);
+                        flockAttractionX += directionX * scale;
+                        flockAttractionY += directionY * scale;
                     }
                 }
             }
         }
 
         // We are attracted to all visible food (vector sum)
-        boolean foundFood = false;
-        for (Food item : nearbyFood) {
-            Double2D itemLoc = sim.environment.getObjectLocation(item);
-            if(itemLoc == null) {  // this may be null if we just ate the item
+        for (int i = 0; i < nearby.numFood; i++) {
+            int item = nearby.food[i];
+            if(!food.isAlive(item) || item == meal) {  // we may have just eaten the item
                 continue;
             }
-            foundFood = true;
-            double d = itemLoc.distance(this.location);
+            double itemX = nearby.foodX[i], itemY = nearby.foodY[i];
+            double d = nearby.foodDistances[i];
 
             double penaltyFactor = 1;
-            for (Agent other : nearbyAgents) {
-                double dother = itemLoc.distance(other.location);
+            for (int j = 0; j < nearby.numAgents; j++) {
+                int other = nearby.agents[j];
+                double dx = itemX - x[other], dy = itemY - y[other];
+                double dother = Math.sqrt(dx * dx + dy * dy);
                 // If another agent is closer, invoke a penalty on the food
                 if (dother <= d) {
                     penaltyFactor += (d - dother);
                 }
             }
             
-            Double2D direction = itemLoc.subtract(this.location);
-            if (direction.length() > 0) {
-                Double2D force = direction.normalize().multiply(item.energy / (d * d * penaltyFactor));
-                foodAttraction.addIn(force);
+            double directionX = itemX - myX, directionY = itemY - myY;
+            len = Math.sqrt(directionX * directionX + directionY * directionY);
+            if (len > 0) {
+                double scale = food.energy[item] / (d * d * penaltyFactor);
+                foodAttractionX += directionX * (1.0 / len) * scale;
+                foodAttractionY += directionY * (1.0 / len) * scale;
             }
         }
 
-        MutableDouble2D randomDirection = new MutableDouble2D(
-                sim.random.nextDouble() - 0.5, sim.random.nextDouble() - 0.5);
-        randomDirection.normalize();
+        double randomDirectionX = random.nextDouble() - 0.5,
+               randomDirectionY = random.nextDouble() - 0.5;
+        len = Math.sqrt(randomDirectionX * randomDirectionX + randomDirectionY * randomDirectionY);
+        if (len > 0) {
+            randomDirectionX *= 1.0 / len;
+            randomDirectionY *= 1.0 / len;
+        }
 
-        if (avgOrientation.length() > 0) {
-            avgOrientation.normalize();
+        len = Math.sqrt(avgOrientationX * avgOrientationX + avgOrientationY * avgOrientationY);
+        if (len > 0) {
+            avgOrientationX *= 1.0 / len;
+            avgOrientationY *= 1.0 / len;
         }
-        if (foodAttraction.length() > 0) {
-            foodAttraction.normalize();
+        len = Math.sqrt(foodAttractionX * foodAttractionX + foodAttractionY * foodAttractionY);
+        if (len > 0) {
+            foodAttractionX *= 1.0 / len;
+            foodAttractionY *= 1.0 / len;
         }
-        if (flockAttraction.length() > 0) {
-            flockAttraction.normalize();
+        len = Math.sqrt(flockAttractionX * flockAttractionX + flockAttractionY * flockAttractionY);
+        if (len > 0) {
+            flockAttractionX *= 1.0 / len;
+            flockAttractionY *= 1.0 / len;
         }
-        if (flockRepulsion.length() > 0) {
-            flockRepulsion.normalize();
+        len = Math.sqrt(flockRepulsionX * flockRepulsionX + flockRepulsionY * flockRepulsionY);
+        if (len > 0) {
+            flockRepulsionX *= 1.0 / len;
+            flockRepulsionY *= 1.0 / len;
         }
-        if (agentRepulsion.length() > 0) {
-            agentRepulsion.normalize();
+        len = Math.sqrt(agentRepulsionX * agentRepulsionX + agentRepulsionY * agentRepulsionY);
+        if (len > 0) {
+            agentRepulsionX *= 1.0 / len;
+            agentRepulsionY *= 1.0 / len;
         }
 
         // If we don't see anything, then avgOrientation will dominate
         // randomDirection, and we will keep moving in the same direction
         // forever. To avoid this, if we don't see anything, we randomly set
         // avgOrientation to zero with a 1/10 probability.
-        if (nearbyFood.isEmpty() && nearbyAgents.isEmpty() && sim.random.nextDouble() < 0.1) {
-            avgOrientation.zero();
+        if (nearby.numFood == 0 && nearby.numAgents == 0 && random.nextDouble() < 0.1) {
+            avgOrientationX = 0;
+            avgOrientationY = 0;
         }
 
-        MutableDouble2D sumForces = new MutableDouble2D();
-        sumForces.addIn(avgOrientation.multiplyIn(orientationFactor))
-                 .addIn(foodAttraction.multiplyIn(foodFactor * satiatedEnergy / energy))
-                 .addIn(flockAttraction.multiplyIn(flockingFactor))
-                 .addIn(flockRepulsion.multiplyIn(flockRepulsionFactor * flockingFactor))
-                 .addIn(agentRepulsion.multiplyIn(repulsionFactor))
-                 .addIn(randomDirection.multiplyIn(randomnessFactor));
-
-        if(sumForces.length() > 0) {
-            sumForces.normalize();
+        // Weigh the forces.
+        double foodWeight = foodFactor * satiatedEnergy / store.nextEnergy[id];
+        avgOrientationX *= orientationFactor;
+        avgOrientationY *= orientationFactor;
+        foodAttractionX *= foodWeight;
+        foodAttractionY *= foodWeight;
+        flockAttractionX *= sim.flockingFactor;
+        flockAttractionY *= sim.flockingFactor;
+        flockRepulsionX *= flockRepulsionFactor * sim.flockingFactor;
+        flockRepulsionY *= flockRepulsionFactor * sim.flockingFactor;
+        agentRepulsionX *= repulsionFactor;
+        agentRepulsionY *= repulsionFactor;
+        randomDirectionX *= randomnessFactor;
+        randomDirectionY *= randomnessFactor;
+
+        double sumForcesX = avgOrientationX + foodAttractionX + flockAttractionX +
+                            flockRepulsionX + agentRepulsionX + randomDirectionX;
+        double sumForcesY = avgOrientationY + foodAttractionY + flockAttractionY +
+                            flockRepulsionY + agentRepulsionY + randomDirectionY;
+        len = Math.sqrt(sumForcesX * sumForcesX + sumForcesY * sumForcesY);
+        if(len > 0) {
+            sumForcesX *= 1.0 / len;
+            sumForcesY *= 1.0 / len;
         }
 
-        // update our orientation and position in the environment
-        this.orientation = new Double2D(sumForces);
-        sumForces.addIn(this.location);
-        sumForces.x = DiseaseSpread.clamp(sumForces.x, 0, DiseaseSpread.xMax);
-        sumForces.y = DiseaseSpread.clamp(sumForces.y, 0, DiseaseSpread.yMax);
-        this.location = new Double2D(sumForces);
-        sim.environment.setObjectLocation(this, this.location);
-
-        // Save forces for the visualization.
-        lastForces.clear();
-        lastForces.add(new Force("avgOrientation", avgOrientation, 1.0));
-        lastForces.add(new Force("foodAttraction", foodAttraction, 1.0));
-        lastForces.add(new Force("flockAttraction", flockAttraction, 1.0));
-        lastForces.add(new Force("agentRepulsion", agentRepulsion, 1.0));
-        lastForces.add(new Force("randomDirection", randomDirection, 1.0));
+        // update our orientation and position
+        store.nextOX[id] = sumForcesX;
+        store.nextOY[id] = sumForcesY;
+        store.nextX[id] = DiseaseSpread.clamp(myX + sumForcesX, 0, DiseaseSpread.xMax);
+        store.nextY[id] = DiseaseSpread.clamp(myY + sumForcesY, 0, DiseaseSpread.yMax);
+
+        // Save the forces for the visualization.
+        if(sim.guiAttached) {
+            lastForces.clear();
+            lastForces.add(new Force("avgOrientation", new Double2D(avgOrientationX, avgOrientationY), 1.0));
+            lastForces.add(new Force("foodAttraction", new Double2D(foodAttractionX, foodAttractionY), 1.0));
+            lastForces.add(new Force("flockAttraction", new Double2D(flockAttractionX, flockAttractionY), 1.0));
+            lastForces.add(new Force("agentRepulsion", new Double2D(agentRepulsionX, agentRepulsionY), 1.0));
+            lastForces.add(new Force("randomDirection", new Double2D(randomDirectionX, randomDirectionY), 1.0));
+        }
     }
 }
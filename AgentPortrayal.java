@@ -23,7 +23,7 @@ class AgentPortrayal extends OvalPortrayal2D
 
     public String getStatus(LocationWrapper wrapper) {
         Agent agent = (Agent)wrapper.getObject();
-        return "Agent " + agent.id + ": energy=" + agent.energy + ", infected=" + agent.infected;
+        return "Agent " + agent.id + ": energy=" + agent.getEnergy() + ", infected=" + agent.isInfected();
     }
 
     public void drawCircle(final int x, final int y, final int radius,
@@ -77,11 +77,11 @@ class AgentPortrayal extends OvalPortrayal2D
         final int y = (int)info.draw.y;
 
         Color agentColor = healthyColor;
-        if(agent.infected) {
+        if(agent.isInfected()) {
             agentColor = sickColor;
         }
         drawCircle(x, y, radius, graphics, agentColor, true);
-        boolean symptoms = agent.symptomVisibility > agent.symptomTolerance;
+        boolean symptoms = agent.getSymptomVisibility() > agent.getSymptomTolerance();
         if (symptoms) {
             drawAsterisk(x, y, radius, graphics, agentColor);
         }
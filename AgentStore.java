@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.util.Arrays;
+import sim.engine.Checkpoint;
+
+/**
+ * The state of all agents, stored as parallel primitive arrays indexed by
+ * agent id. Agent objects are thin views onto one slot of the store, so
+ * stepping an agent reads and writes plain array elements instead of
+ * allocating new Double2Ds.
+ */
+class AgentStore
+{
+    // Agent data, one slot per agent id:
+    double[] x;
+    double[] y;
+    double[] ox;  // orientation
+    double[] oy;
+    double[] energy;
+    boolean[] infected;
+    double[] symptomVisibility;
+    double[] symptomTolerance;
+    int[] infectionSource;  // the agent that infected this one, if it just got infected
+    long[] recoveryStep;  // timed recovery: the step at which an infected agent recovers
+    int size;
+
+    // Next-step buffers. Normally these alias the arrays above, so an agent's
+    // writes are seen by the agents stepped after it. In synchronous mode
+    // they are separate arrays, which agents fill from the read-only state
+    // above, and swap() makes them current at the end of the step.
+    double[] nextX;
+    double[] nextY;
+    double[] nextOX;
+    double[] nextOY;
+    double[] nextEnergy;
+    boolean[] nextInfected;
+    double[] nextSymptomVisibility;
+    int[] meal;  // synchronous mode: the food slot each agent wants to eat, or -1
+    boolean doubleBuffered;
+
+    /** Creates an empty store with room for capacity agents. */
+    AgentStore(int capacity)
+    {
+        capacity = Math.max(capacity, 1);
+        x = new double[capacity];
+        y = new double[capacity];
+        ox = new double[capacity];
+        oy = new double[capacity];
+        energy = new double[capacity];
+        infected = new boolean[capacity];
+        symptomVisibility = new double[capacity];
+        symptomTolerance = new double[capacity];
+        infectionSource = new int[capacity];
+        recoveryStep = new long[capacity];
+        allocateNext();
+    }
+
+    /**
+     * Switches to synchronous mode, giving the next-step buffers their own
+     * storage.
+     */
+    void setDoubleBuffered()
+    {
+        doubleBuffered = true;
+        allocateNext();
+    }
+
+    /** Adds an agent with zero orientation and returns its id. */
+    int add(double x, double y, double energy, boolean infected,
+            double symptomVisibility, double symptomTolerance)
+    {
+        if(size == this.x.length) {
+            int capacity = 2 * size;
+            this.x = Arrays.copyOf(this.x, capacity);
+            this.y = Arrays.copyOf(this.y, capacity);
+            ox = Arrays.copyOf(ox, capacity);
+            oy = Arrays.copyOf(oy, capacity);
+            this.energy = Arrays.copyOf(this.energy, capacity);
+            this.infected = Arrays.copyOf(this.infected, capacity);
+            this.symptomVisibility = Arrays.copyOf(this.symptomVisibility, capacity);
+            this.symptomTolerance = Arrays.copyOf(this.symptomTolerance, capacity);
+            infectionSource = Arrays.copyOf(infectionSource, capacity);
+            recoveryStep = Arrays.copyOf(recoveryStep, capacity);
+            allocateNext();
+        }
+        int id = size++;
+        this.x[id] = x;
+        this.y[id] = y;
+        this.energy[id] = energy;
+        this.infected[id] = infected;
+        this.symptomVisibility[id] = symptomVisibility;
+        this.symptomTolerance[id] = symptomTolerance;
+        return id;
+    }
+
+    /**
+     * Writes the current state of all agents to a checkpoint. The next-step
+     * buffers are not written: they are rewritten at every step.
+     */
+    void write(Checkpoint.Output out) throws IOException
+    {
+        out.writeInt(x.length);
+        out.writeInt(size);
+        out.writeDoubles(x, 0, size);
+        out.writeDoubles(y, 0, size);
+        out.writeDoubles(ox, 0, size);
+        out.writeDoubles(oy, 0, size);
+        out.writeDoubles(energy, 0, size);
+        out.writeBooleans(infected, 0, size);
+        out.writeDoubles(symptomVisibility, 0, size);
+        out.writeDoubles(symptomTolerance, 0, size);
+        out.writeInts(infectionSource, 0, size);
+        out.writeLongs(recoveryStep, 0, size);
+    }
+
+    /** Reads a store written by write(). */
+    static AgentStore read(Checkpoint.Input in) throws IOException
+    {
+        AgentStore store = new AgentStore(in.readInt());
+        int size = in.readInt();
+        in.readDoubles(store.x, 0, size);
+        in.readDoubles(store.y, 0, size);
+        in.readDoubles(store.ox, 0, size);
+        in.readDoubles(store.oy, 0, size);
+        in.readDoubles(store.energy, 0, size);
+        in.readBooleans(store.infected, 0, size);
+        in.readDoubles(store.symptomVisibility, 0, size);
+        in.readDoubles(store.symptomTolerance, 0, size);
+        in.readInts(store.infectionSource, 0, size);
+        in.readLongs(store.recoveryStep, 0, size);
+        store.size = size;
+        return store;
+    }
+
+    /** Returns true if the agent with the given id has not died. */
+    boolean isAlive(int id)
+    {
+        return energy[id] > 0;
+    }
+
+    /** Carries the agent's current state over to the next-step buffers. */
+    void copyToNext(int id)
+    {
+        nextX[id] = x[id];
+        nextY[id] = y[id];
+        nextOX[id] = ox[id];
+        nextOY[id] = oy[id];
+        nextEnergy[id] = energy[id];
+        nextInfected[id] = infected[id];
+        nextSymptomVisibility[id] = symptomVisibility[id];
+    }
+
+    /**
+     * Synchronous mode: makes the next-step buffers current. Every agent
+     * must have written its slot of each buffer during the step.
+     */
+    void swap()
+    {
+        double[] t;
+        t = x; x = nextX; nextX = t;
+        t = y; y = nextY; nextY = t;
+        t = ox; ox = nextOX; nextOX = t;
+        t = oy; oy = nextOY; nextOY = t;
+        t = energy; energy = nextEnergy; nextEnergy = t;
+        t = symptomVisibility; symptomVisibility = nextSymptomVisibility; nextSymptomVisibility = t;
+        boolean[] b = infected; infected = nextInfected; nextInfected = b;
+    }
+
+    /** Helper: points the next-step buffers at storage of the right size. */
+    private void allocateNext()
+    {
+        int capacity = x.length;
+        if(!doubleBuffered) {
+            nextX = x;
+            nextY = y;
+            nextOX = ox;
+            nextOY = oy;
+            nextEnergy = energy;
+            nextInfected = infected;
+            nextSymptomVisibility = symptomVisibility;
+            meal = null;
+            return;
+        }
+        // Carry over the current state, so the buffers are whole even before
+        // the first step.
+        nextX = Arrays.copyOf(x, capacity);
+        nextY = Arrays.copyOf(y, capacity);
+        nextOX = Arrays.copyOf(ox, capacity);
+        nextOY = Arrays.copyOf(oy, capacity);
+        nextEnergy = Arrays.copyOf(energy, capacity);
+        nextInfected = Arrays.copyOf(infected, capacity);
+        nextSymptomVisibility = Arrays.copyOf(symptomVisibility, capacity);
+        meal = new int[capacity];
+        Arrays.fill(meal, -1);
+    }
+}
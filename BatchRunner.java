@@ -0,0 +1,216 @@
+import com.google.gson.Gson;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import sim.engine.*;
+
+/**
+ * Runs many trials of the simulation in parallel inside a single JVM, and
+ * collects the stats of each trial directly. Replaces launching one
+ * "java DiseaseSpread" process per trial.
+ */
+public class BatchRunner
+{
+    // Batch parameters:
+    protected static final int defaultNumTrials = 30;
+    protected static final long defaultNumSteps = 3000;
+
+    /** Outcome of a single trial. */
+    static class Trial {
+        long seed;
+        double runTime;
+        DiseaseSpread.Stats stats;
+        transient MetricsSummary.Samples samples;  // with a summary, until added to it
+    };
+
+    protected final MakesSimState maker;
+    protected final String[] simArgs;
+    protected final long numSteps;
+    protected final double until;
+    protected final int numThreads;
+    protected MetricsSummary summary;  // if set, trials only add to it
+
+    /**
+     * Creates a batch runner that builds each simulation with the given
+     * maker and cmdline arguments, and steps it for numSteps steps or until
+     * the schedule time exceeds until, whichever comes first.
+     */
+    public BatchRunner(MakesSimState maker, String[] simArgs, long numSteps,
+                       double until, int numThreads)
+    {
+        this.maker = maker;
+        this.simArgs = simArgs;
+        this.numSteps = numSteps;
+        this.until = until;
+        this.numThreads = numThreads;
+    }
+
+    /** Runs a single trial with the given seed in the calling thread. */
+    public Trial runTrial(long seed)
+    {
+        return runTrial(maker, simArgs, seed, numSteps, until, summary);
+    }
+
+    /**
+     * Runs a single trial in the calling thread, building the simulation from
+     * the given cmdline arguments. This is the body of the SimState.doLoop
+     * loop, minus the reporting.
+     */
+    public static Trial runTrial(MakesSimState maker, String[] simArgs, long seed,
+                                 long numSteps, double until)
+    {
+        return runTrial(maker, simArgs, seed, numSteps, until, null);
+    }
+
+    /**
+     * As above, but if summary is not null, keeps the samples and run time of
+     * the trial in trial.samples, to be added to the summary, instead of
+     * keeping the trial's stats.
+     */
+    public static Trial runTrial(MakesSimState maker, String[] simArgs, long seed,
+                                 long numSteps, double until, MetricsSummary summary)
+    {
+        long startTime = System.currentTimeMillis();
+        DiseaseSpread sim = (DiseaseSpread)maker.newInstance(seed, simArgs);
+        sim.printStats = false;
+        MetricsSummary.Samples samples = null;
+        if(summary != null) {
+            samples = new MetricsSummary.Samples();
+            sim.stats = null;
+            sim.sampleListener = samples;
+        }
+        sim.start();
+        Schedule schedule = sim.schedule;
+        while(schedule.getSteps() < numSteps && schedule.getTime() <= until) {
+            if(!schedule.step(sim)) {
+                break;
+            }
+        }
+        sim.finish();
+
+        Trial trial = new Trial();
+        trial.seed = seed;
+        trial.runTime = (System.currentTimeMillis() - startTime) / 1000.0;
+        trial.stats = sim.stats;
+        if(samples != null) {
+            samples.runTime = trial.runTime;
+            trial.samples = samples;
+        }
+        return trial;
+    }
+
+    /**
+     * Runs numTrials trials with seeds firstSeed, firstSeed + 1, ... on a
+     * pool of numThreads workers. Returns the trials in seed order. With a
+     * summary, the trials are added to it in seed order too, so it is the
+     * same for any number of threads.
+     */
+    public List<Trial> run(long firstSeed, int numTrials)
+        throws InterruptedException, ExecutionException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Trial>> futures = new ArrayList<Future<Trial>>();
+            for(int i = 0; i < numTrials; i++) {
+                final long seed = firstSeed + i;
+                futures.add(pool.submit(new Callable<Trial>() {
+                    public Trial call() {
+                        return runTrial(seed);
+                    }
+                }));
+            }
+            List<Trial> trials = new ArrayList<Trial>();
+            for(Future<Trial> future : futures) {
+                Trial trial = future.get();
+                if(trial.samples != null) {
+                    summary.add(trial.samples);
+                    trial.samples = null;
+                }
+                trials.add(trial);
+            }
+            return trials;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    static void displayHelp()
+    {
+        System.out.println("-trials N               run N trials (default " + defaultNumTrials + ")");
+        System.out.println("-threads P              use P worker threads (default: number of cores)");
+        System.out.println("-seed S                 seed of the first trial; trial i uses S + i");
+        System.out.println("-for N                  run each trial for N steps (default " + defaultNumSteps + ")");
+        System.out.println("-until T                stop each trial once the schedule time exceeds T");
+        System.out.println("-out FILE               write the JSON stats of all trials to FILE (default: stdout)");
+        System.out.println("-summary                aggregate all metrics across trials on the fly, and write");
+        System.out.println("                        their mean, sd, min, max and 5/50/95th percentiles instead");
+        System.out.println("                        (percentiles exact up to " + MetricsSummary.Accumulator.maxExact +
+                           " trials, P-square estimates beyond)");
+        System.out.println("All other arguments are passed to the simulation:");
+        DiseaseSpread.displayHelp();
+    }
+
+    /** Runs a batch of trials without a GUI. */
+    public static void main(String[] args) throws Exception
+    {
+        if(DiseaseSpread.hasArgument("-help", args)) {
+            displayHelp();
+            System.exit(0);
+        }
+
+        int numTrials = defaultNumTrials;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        long firstSeed = System.currentTimeMillis();
+        long numSteps = defaultNumSteps;
+        double until = Double.POSITIVE_INFINITY;
+
+        String snt = DiseaseSpread.argumentForKey("-trials", args);
+        if(snt != null) {
+            numTrials = Integer.parseInt(snt);
+        }
+        String sth = DiseaseSpread.argumentForKey("-threads", args);
+        if(sth != null) {
+            numThreads = Integer.parseInt(sth);
+        }
+        String sse = DiseaseSpread.argumentForKey("-seed", args);
+        if(sse != null) {
+            firstSeed = Long.parseLong(sse);
+        }
+        String sfo = DiseaseSpread.argumentForKey("-for", args);
+        if(sfo != null) {
+            numSteps = Long.parseLong(sfo);
+        }
+        String sun = DiseaseSpread.argumentForKey("-until", args);
+        if(sun != null) {
+            until = Double.parseDouble(sun);
+        }
+
+        BatchRunner runner = new BatchRunner(new DiseaseSpread.SimMaker(), args,
+                                             numSteps, until, numThreads);
+        if(DiseaseSpread.hasArgument("-summary", args)) {
+            runner.summary = new MetricsSummary(DiseaseSpread.metricNames());
+        }
+        long startTime = System.currentTimeMillis();
+        List<Trial> trials = runner.run(firstSeed, numTrials);
+        System.err.println("BatchRunner: " + numTrials + " trials on " + numThreads +
+                           " threads finished in " +
+                           (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+
+        Writer out;
+        String sou = DiseaseSpread.argumentForKey("-out", args);
+        if(sou != null) {
+            out = new BufferedWriter(new FileWriter(sou));
+        } else {
+            out = new PrintWriter(System.out);
+        }
+        if(runner.summary != null) {
+            runner.summary.write(out);
+        } else {
+            new Gson().toJson(trials, out);
+        }
+        out.write("\n");
+        out.close();
+        System.exit(0);
+    }
+}
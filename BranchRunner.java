@@ -0,0 +1,234 @@
+import com.google.gson.Gson;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import sim.engine.*;
+
+/**
+ * Runs the simulation once up to a burn-in step, then forks it in memory
+ * (see SimState.fork) into several "what if" branches, each continuing from
+ * the same state with some parameters overridden, and runs the branches in
+ * parallel inside a single JVM. The burn-in is run just once for all of them.
+ *
+ * Each branch is given as a string of overrides in the cmdline format of
+ * DiseaseSpread (see DiseaseSpread.overrideParameters), and is run once for
+ * each of the branch seeds S + 1, S + 2, ..., where S is the seed of the
+ * burn-in. Every branch uses the same seeds, so branches can be compared
+ * replicate by replicate. The stats of every run are collected in memory
+ * and written out as JSON, so -stats-out and -events are not supported.
+ */
+public class BranchRunner
+{
+    // Branch parameters:
+    protected static final int defaultNumSeeds = 10;
+    protected static final long defaultNumSteps = 3000;
+
+    /** Outcome of a single run of a branch. */
+    static class Run {
+        String branch;
+        long seed;
+        double runTime;
+        DiseaseSpread.Stats stats;
+    };
+
+    protected final MakesSimState maker;
+    protected final String[] simArgs;
+    protected final long numSteps;
+    protected final int numThreads;
+
+    /**
+     * Creates a branch runner that builds the simulation with the given maker
+     * and cmdline arguments, and steps each branch until numSteps steps have
+     * been taken since the start of the burn-in.
+     */
+    public BranchRunner(MakesSimState maker, String[] simArgs, long numSteps, int numThreads)
+    {
+        this.maker = maker;
+        this.simArgs = simArgs;
+        this.numSteps = numSteps;
+        this.numThreads = numThreads;
+    }
+
+    /** Runs the simulation with the given seed for burnIn steps, and returns it. */
+    public DiseaseSpread burnIn(long seed, long burnIn)
+    {
+        DiseaseSpread sim = (DiseaseSpread)maker.newInstance(seed, simArgs);
+        sim.printStats = false;
+        sim.start();
+        Schedule schedule = sim.schedule;
+        while(schedule.getSteps() < burnIn) {
+            if(!schedule.step(sim)) {
+                break;
+            }
+        }
+        return sim;
+    }
+
+    /**
+     * Runs every branch from the burnt-in simulation once per seed, on a pool
+     * of numThreads workers. Returns the runs by branch, then seed. The
+     * simulation is snapshotted once, and the branches are forked from the
+     * snapshot as the workers get to them, so at most numThreads of them are
+     * in memory at once.
+     */
+    public List<Run> run(DiseaseSpread base, String[] branches, long[] seeds)
+        throws InterruptedException, ExecutionException, IOException
+    {
+        final Checkpoint.Snapshot snapshot = new Checkpoint.Snapshot(base);
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Run>> futures = new ArrayList<Future<Run>>();
+            for(final String branch : branches) {
+                for(final long seed : seeds) {
+                    futures.add(pool.submit(new Callable<Run>() {
+                        public Run call() throws IOException {
+                            return runBranch(snapshot, branch, seed);
+                        }
+                    }));
+                }
+            }
+            List<Run> runs = new ArrayList<Run>();
+            for(Future<Run> future : futures) {
+                runs.add(future.get());
+            }
+            return runs;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Forks the snapshot of the burnt-in simulation with the given seed,
+     * overrides the branch's parameters, and runs it in the calling thread.
+     */
+    public Run runBranch(Checkpoint.Snapshot snapshot, String branch, long seed) throws IOException
+    {
+        long startTime = System.currentTimeMillis();
+        DiseaseSpread sim = (DiseaseSpread)snapshot.fork(seed, maker, simArgs);
+        sim.printStats = false;
+        sim.overrideParameters(splitArgs(branch));
+        Schedule schedule = sim.schedule;
+        while(schedule.getSteps() < numSteps) {
+            if(!schedule.step(sim)) {
+                break;
+            }
+        }
+        sim.finish();
+
+        Run run = new Run();
+        run.branch = branch;
+        run.seed = seed;
+        run.runTime = (System.currentTimeMillis() - startTime) / 1000.0;
+        run.stats = sim.stats;
+        return run;
+    }
+
+    /** Helper: splits a string of cmdline arguments at whitespace. */
+    static String[] splitArgs(String args)
+    {
+        args = args.trim();
+        return args.isEmpty() ? new String[0] : args.split("\\s+");
+    }
+
+    /** Helper: returns the values of every occurrence of the given key. */
+    static String[] argumentsForKey(String key, String[] args)
+    {
+        List<String> values = new ArrayList<String>();
+        for(int x = 0; x < args.length - 1; x++) {
+            if(args[x].equalsIgnoreCase(key)) {
+                values.add(args[x + 1]);
+            }
+        }
+        return values.toArray(new String[values.size()]);
+    }
+
+    static void displayHelp()
+    {
+        System.out.println("-burn-in T              run the simulation for T steps before forking it");
+        System.out.println("-branch \"ARGS\"          a branch, overriding the parameters in ARGS (e.g.");
+        System.out.println("                        \"-prob-transmission 0.5\"); may be repeated. Default: one");
+        System.out.println("                        branch with no overrides");
+        System.out.println("-seeds N                run each branch with N seeds (default " + defaultNumSeeds + ")");
+        System.out.println("-threads P              use P worker threads (default: number of cores)");
+        System.out.println("-seed S                 seed of the burn-in; the branches use S + 1, ..., S + N");
+        System.out.println("-for N                  run each branch until step N (default " + defaultNumSteps + ")");
+        System.out.println("-out FILE               write the JSON stats of all runs to FILE (default: stdout)");
+        System.out.println("All other arguments are passed to the simulation:");
+        DiseaseSpread.displayHelp();
+    }
+
+    /** Runs the branches without a GUI. */
+    public static void main(String[] args) throws Exception
+    {
+        if(DiseaseSpread.hasArgument("-help", args)) {
+            displayHelp();
+            System.exit(0);
+        }
+
+        if(DiseaseSpread.hasArgument("-stats-out", args) ||
+           DiseaseSpread.hasArgument("-events", args)) {
+            System.err.println("BranchRunner does not support -stats-out or -events");
+            System.exit(1);
+        }
+
+        long burnIn = 0;
+        int numSeeds = defaultNumSeeds;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        long seed = System.currentTimeMillis();
+        long numSteps = defaultNumSteps;
+
+        String sbi = DiseaseSpread.argumentForKey("-burn-in", args);
+        if(sbi != null) {
+            burnIn = Long.parseLong(sbi);
+        }
+        String sns = DiseaseSpread.argumentForKey("-seeds", args);
+        if(sns != null) {
+            numSeeds = Integer.parseInt(sns);
+        }
+        String sth = DiseaseSpread.argumentForKey("-threads", args);
+        if(sth != null) {
+            numThreads = Integer.parseInt(sth);
+        }
+        String sse = DiseaseSpread.argumentForKey("-seed", args);
+        if(sse != null) {
+            seed = Long.parseLong(sse);
+        }
+        String sfo = DiseaseSpread.argumentForKey("-for", args);
+        if(sfo != null) {
+            numSteps = Long.parseLong(sfo);
+        }
+        String[] branches = argumentsForKey("-branch", args);
+        if(branches.length == 0) {
+            branches = new String[] {""};
+        }
+        long[] seeds = new long[numSeeds];
+        for(int i = 0; i < numSeeds; i++) {
+            seeds[i] = seed + 1 + i;
+        }
+
+        BranchRunner runner = new BranchRunner(new DiseaseSpread.SimMaker(), args,
+                                               numSteps, numThreads);
+        long startTime = System.currentTimeMillis();
+        DiseaseSpread base = runner.burnIn(seed, burnIn);
+        double burnInTime = (System.currentTimeMillis() - startTime) / 1000.0;
+        List<Run> runs = runner.run(base, branches, seeds);
+        base.finish();
+        System.err.println("BranchRunner: burn-in of " + burnIn + " steps in " + burnInTime +
+                           " seconds, then " + runs.size() + " runs on " + numThreads +
+                           " threads finished in " +
+                           (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+
+        Writer out;
+        String sou = DiseaseSpread.argumentForKey("-out", args);
+        if(sou != null) {
+            out = new BufferedWriter(new FileWriter(sou));
+        } else {
+            out = new PrintWriter(System.out);
+        }
+        new Gson().toJson(runs, out);
+        out.write("\n");
+        out.close();
+        System.exit(0);
+    }
+}
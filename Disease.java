@@ -3,10 +3,10 @@
  */
 class Disease
 {
-    protected static double highTransmission = .9;
-    protected static double lowTransmission = .1;
-    protected static double highDrain = 5;
-    protected static double lowDrain = 1.15;
+    protected static final double highTransmission = .9;
+    protected static final double lowTransmission = .1;
+    protected static final double highDrain = 5;
+    protected static final double lowDrain = 1.15;
     protected double probTransmission;
     protected double probRecovery;
     protected double percentInitial;
@@ -27,6 +27,13 @@ class Disease
         this.name = name;
     }
 
+    /** Creates a copy of the given disease. */
+    Disease(Disease other)
+    {
+        this(other.probTransmission, other.probRecovery, other.percentInitial,
+             other.energyDrainMultiplier, other.name);
+    }
+
     static Disease diseaseByName(String name)
     {
         if(name.equals("malaria")) {
@@ -1,4 +1,5 @@
 import com.google.gson.Gson;
+import java.io.IOException;
 import java.util.ArrayList;
 import sim.field.continuous.*;
 import sim.engine.*;
@@ -7,28 +8,74 @@ import sim.util.*;
 /**
  * Encapsulates the disease-spreading simulation, with no GUI. Useful for batch
  * runs.
+ *
+ * Checkpoints are written in MASON's compact format (see Checkpoint): the
+ * parameters, the AgentStore and FoodField arrays, the metrics and stats, and
+ * the schedule. Everything else is rebuilt when a checkpoint is read. The
+ * output settings (stats file, event log, printing) are not checkpointed;
+ * they come from the command line of the run that reads the checkpoint, and
+ * its stats file and event log start at the checkpointed step.
+ *
+ * Stopping rules (see StoppingRule) can end a run early, e.g. once every
+ * agent has died. The samples the run would still have taken, up to
+ * fillUntil, are then filled in with the final state, so that every run has
+ * the same samples. The stopping rules come from the command line too, and
+ * must be the same when a checkpoint is read.
  */
-public class DiseaseSpread extends SimState
+public class DiseaseSpread extends SimState implements Checkpoint.Codec
 {
     // Simulation parameters:
     protected static final double xMax = 80;
     protected static final double yMax = 60;
     protected static final int defaultNumAgentsInitial = 20;
-    protected static int numAgentsInitial;
     protected static final Disease defaultDisease = Disease.diseaseByName("malaria");
-    protected static Disease disease;
+    protected int numAgentsInitial;
+    protected Disease disease;
+    protected double flockingFactor;
+    protected double observability;
+    protected double symptomTolerance;
+    // Synchronous mode: all agents are stepped at once from a snapshot of the
+    // previous step, on numAgentThreads threads. See SynchronousStepper.
+    protected boolean synchronous = false;
+    protected int numAgentThreads = 1;
+    // Timed recovery: instead of a draw at every step, an infected agent draws
+    // the step at which it will recover once, when it gets infected. The
+    // results are the same in distribution, but not draw for draw.
+    protected boolean timedRecovery = false;
 
     // Simulation data:
     protected Continuous2D environment;
+    protected AgentStore agents;
+    protected FoodField foodField;
+    protected NeighborIndex neighborIndex;
+    protected NeighborIndex.Neighborhood neighborhood;
     protected FoodMaker foodMaker;
+    protected SynchronousStepper synchronousStepper;
+    protected Sampler sampler;
     protected int numAgentsAlive;
     protected int numAgentsInfected;
     protected double totalEnergy;
     protected double totalEnergyAgents;
 
+    // Metrics, sampled every sampleInterval steps. The counters are updated
+    // by agents and food makers as events happen.
+    protected Metrics metrics;
+    protected Metrics.Counter infections;
+    protected Metrics.Counter recoveries;
+    protected Metrics.Counter deaths;
+    protected Metrics.Counter meals;
+    protected Metrics.Counter foodSpawned;
+    protected Metrics.Histogram agentEnergy;
+    protected int sampleInterval = Stats.stepSize;
+    // If set, receives every sample, e.g. to aggregate across trials.
+    protected Metrics.Listener sampleListener;
+    // If a stopping rule ends the run early, samples are filled in up to
+    // this step (the -for of the run), or not at all if it is -1.
+    protected long fillUntil = -1;
+
     // Statistics collected and displayed when the simulation ends:
     class Stats {
-        static final int stepSize = 10;
+        static final int stepSize = 10;  // default sampleInterval
         ArrayList<Integer> step;
         ArrayList<Integer> numAgentsAlive;
         ArrayList<Integer> numAgentsInfected;
@@ -38,7 +85,30 @@ public class DiseaseSpread extends SimState
             numAgentsInfected = new ArrayList<Integer>();
         }
     };
-    Stats stats = new Stats();
+    Stats stats = new Stats();  // null if not wanted
+    // If set, all metrics are streamed to this columnar file (see StatsSink)
+    // instead of being kept in memory. "{seed}" is replaced by the seed.
+    protected String statsPath = null;
+    protected StatsSink statsSink;
+    // Batch drivers collect the stats directly and turn this off.
+    protected boolean printStats = true;
+    // If set, events of the eventTypes are logged to this file (see EventLog).
+    // "{seed}" is replaced by the seed.
+    protected String eventsPath = null;
+    protected boolean[] eventTypes = EventLog.parseTypes("2");
+    protected boolean eventsBinary = false;
+    protected EventLog events;
+    // Set by DiseaseSpreadWithUI. Without a GUI, agent locations live only in
+    // the AgentStore, and the forces acting on agents are not recorded.
+    protected boolean guiAttached = false;
+
+    // Checkpoint ids of the steppables on the schedule. Agents follow, by id.
+    protected static final int foodFieldId = 0;
+    protected static final int neighborIndexId = 1;
+    protected static final int foodMakerId = 2;
+    protected static final int synchronousStepperId = 3;
+    protected static final int samplerId = 4;
+    protected static final int firstAgentId = 5;
 
     /**
      * Creates a DiseaseSpread simulation with the given random number seed,
@@ -48,16 +118,21 @@ public class DiseaseSpread extends SimState
                          double flockingFactor, double observability, double symptomTolerance)
     {
         super(seed);
-        System.out.println("DiseaseSpread: seed=" + seed + " numAgentsInitial=" +
-                           numAgentsInitial + " disease=" + disease.name +
-                           " flockingFactor=" + flockingFactor +
-                           " observability=" + observability + 
-                           " symptomTolerance=" + symptomTolerance);
         this.numAgentsInitial = numAgentsInitial;
         this.disease = disease;
-        Agent.flockingFactor = flockingFactor;
-        Agent.observability = observability;
-        Agent.symptomTolerance = symptomTolerance;
+        this.flockingFactor = flockingFactor;
+        this.observability = observability;
+        this.symptomTolerance = symptomTolerance;
+    }
+
+    /**
+     * Creates a DiseaseSpread simulation with the given random number seed and
+     * the default parameters. Used to read checkpoints outside of doLoop().
+     */
+    public DiseaseSpread(long seed)
+    {
+        this(seed, defaultNumAgentsInitial, defaultDisease, Agent.defaultFlockingFactor,
+             Agent.defaultObservability, Agent.defaultSymptomTolerance);
     }
 
     /** Returns number of living agents. */
@@ -102,11 +177,32 @@ public class DiseaseSpread extends SimState
     public void start()
     {
         super.start();
+        // To stderr, so runners can write their JSON to stdout.
+        System.err.println("DiseaseSpread: seed=" + seed() + " numAgentsInitial=" +
+                           numAgentsInitial + " disease=" + disease.name +
+                           " flockingFactor=" + flockingFactor +
+                           " observability=" + observability +
+                           " symptomTolerance=" + symptomTolerance);
+
+        // Without a GUI, only this thread touches the schedule, so it can
+        // skip its locks.
+        schedule.setSingleThreaded(!guiAttached);
 
         // Set up environment.
         environment = new Continuous2D(25.0, xMax, yMax);
+        neighborIndex = new NeighborIndex(xMax, yMax, NeighborIndex.defaultCellSize);
+        neighborhood = new NeighborIndex.Neighborhood();
+        agents = new AgentStore(numAgentsInitial);
+        foodField = new FoodField(numAgentsInitial);
+        if(guiAttached) {
+            foodField.setViews(environment);
+        }
+        createMetrics();
+        openOutputs();
 
-        // Create and schedule agents.
+        // Create and schedule agents. In synchronous mode, a single
+        // SynchronousStepper steps all of them.
+        Agent[] agentList = new Agent[numAgentsInitial];
         numAgentsAlive = 0;
         numAgentsInfected = 0;
         totalEnergy = 0;
@@ -122,13 +218,20 @@ public class DiseaseSpread extends SimState
             }
             // How infected does the agent *look*?
             double symptomVisibility = Agent.calcSymptomVisibility(this, infected);
-            System.out.println("creating agent " + numAgentsAlive + " with infected=" +
-                    infected + " and symptomVisibility=" + symptomVisibility);
             // Create and schedule the agent:
             Double2D loc = new Double2D(random.nextDouble() * xMax, random.nextDouble() * yMax);
-            Agent agent = new Agent(numAgentsAlive, loc, infected, symptomVisibility);
+            int id = agents.add(loc.x, loc.y, Agent.initialEnergy, infected,
+                                symptomVisibility, symptomTolerance);
+            if(infected && timedRecovery) {
+                agents.recoveryStep[id] = Agent.recoveryStep(disease.probRecovery, random, 0);
+            }
+            events.log(EventLog.CREATED, id, infected ? 1 : 0, symptomVisibility);
+            Agent agent = new Agent(agents, id);
             environment.setObjectLocation(agent, loc);
-            agent.scheduleItem = schedule.scheduleRepeating(agent); // default interval=1.0
+            agentList[id] = agent;
+            if(!synchronous) {
+                agent.scheduleItem = schedule.scheduleRepeating(agent); // default interval=1.0
+            }
             numAgentsAlive++;
             totalEnergy += agent.getEnergy();
             totalEnergyAgents += agent.getEnergy();
@@ -137,27 +240,441 @@ public class DiseaseSpread extends SimState
             }
         }
 
+        // Decay and clear out food, then rebuild the neighbor index, at the
+        // start of every step before anything else moves.
+        schedule.scheduleRepeating(Schedule.EPOCH, -2, foodField, 1.0);
+        schedule.scheduleRepeating(Schedule.EPOCH, -1, neighborIndex, 1.0);
+        if(synchronous) {
+            synchronousStepper = new SynchronousStepper(agents, agentList, numAgentThreads);
+            schedule.scheduleRepeating(synchronousStepper); // default interval=1.0
+        }
+
         // Create and schedule a FoodMaker.
         foodMaker = new FoodMaker();
         schedule.scheduleRepeating(foodMaker); // default interval=1.0
 
         // Create ans schedule an agent that updates the stats.
-        schedule.scheduleRepeating(schedule.EPOCH, new Steppable() {
-            public void step(final SimState state) {
-                stats.step.add((int)state.schedule.getSteps());
+        sampler = new Sampler();
+        schedule.scheduleRepeating(schedule.EPOCH, sampler, sampleInterval);
+    }
+
+    /** Samples the metrics every sampleInterval steps. */
+    class Sampler implements Steppable
+    {
+        final double[] row = new double[metrics.getNumColumns()];
+        final byte[] types = metrics.getColumnTypes();
+        int numSamples = 0;
+
+        public void step(final SimState state) {
+            sample(state.schedule.getSteps());
+        }
+
+        /**
+         * Fills in the samples the run would have taken up to the given
+         * step, with the state as it is now: counters are zero.
+         */
+        void fill(long untilStep) {
+            for(long steps = (long)numSamples * sampleInterval; steps < untilStep;
+                steps += sampleInterval) {
+                sample(steps);
+            }
+        }
+
+        void sample(long steps) {
+            for(int id = 0; id < agents.size; id++) {
+                if(agents.isAlive(id)) {
+                    agentEnergy.record(agents.energy[id]);
+                }
+            }
+            metrics.sample(row);
+
+            if(statsSink != null) {
+                statsSink.set(0, (int)steps);
+                for(int c = 0; c < row.length; c++) {
+                    if(types[c] == StatsSink.INT) {
+                        statsSink.set(c + 1, (int)row[c]);
+                    } else {
+                        statsSink.set(c + 1, row[c]);
+                    }
+                }
+                statsSink.endRow();
+            } else if(stats != null) {
+                stats.step.add((int)steps);
                 stats.numAgentsAlive.add(getAgentsAlive());
                 stats.numAgentsInfected.add(getAgentsInfected());
             }
-        }, Stats.stepSize);
+            if(sampleListener != null) {
+                sampleListener.sampled(numSamples, steps, row);
+            }
+            numSamples++;
+        }
+    };
+
+    /**
+     * Helper: opens the event log and the stats file, if wanted. The metrics
+     * must have been created.
+     */
+    protected void openOutputs()
+    {
+        events = new EventLog(schedule);
+        if(eventsPath != null) {
+            events.open(eventsPath.replace("{seed}", Long.toString(seed())),
+                        eventsBinary, eventTypes);
+        }
+        if(statsPath != null) {
+            String[] columns = metrics.getColumnNames();
+            byte[] types = metrics.getColumnTypes();
+            String[] names = new String[columns.length + 1];
+            byte[] sinkTypes = new byte[columns.length + 1];
+            names[0] = "step";
+            sinkTypes[0] = StatsSink.INT;
+            System.arraycopy(columns, 0, names, 1, columns.length);
+            System.arraycopy(types, 0, sinkTypes, 1, types.length);
+            statsSink = new StatsSink(statsPath.replace("{seed}", Long.toString(seed())),
+                                      names, sinkTypes, StatsSink.defaultBlockRows);
+        }
+    }
+
+    /**
+     * Returns the names of the metrics sampled by the simulation, which are
+     * the same for any parameters.
+     */
+    public static String[] metricNames()
+    {
+        DiseaseSpread sim = new DiseaseSpread(0);  // never started
+        sim.createMetrics();
+        return sim.metrics.getColumnNames();
+    }
+
+    /** Helper: registers the metrics that are sampled as the simulation runs. */
+    protected void createMetrics()
+    {
+        metrics = new Metrics();
+        metrics.gauge("numAgentsAlive", new Metrics.IntGauge() {
+            int readInt() { return numAgentsAlive; }
+        });
+        metrics.gauge("numAgentsInfected", new Metrics.IntGauge() {
+            int readInt() { return numAgentsInfected; }
+        });
+        metrics.gauge("numFood", new Metrics.IntGauge() {
+            int readInt() { return foodField.numAlive; }
+        });
+        metrics.gauge("totalEnergy", new Metrics.Gauge() {
+            double read() { return totalEnergy; }
+        });
+        metrics.gauge("totalEnergyAgents", new Metrics.Gauge() {
+            double read() { return totalEnergyAgents; }
+        });
+        metrics.gauge("totalEnergyFood", new Metrics.Gauge() {
+            double read() { return getTotalEnergyFood(); }
+        });
+        infections = metrics.counter("infections");
+        recoveries = metrics.counter("recoveries");
+        deaths = metrics.counter("deaths");
+        meals = metrics.counter("meals");
+        foodSpawned = metrics.counter("foodSpawned");
+        agentEnergy = metrics.histogram("agentEnergy", 0, 2 * Agent.satiatedEnergy, 48);
+    }
+
+    /** Stops the simulation once every agent has died. */
+    static class AllDead extends StoppingRule
+    {
+        AllDead() {
+            super("all agents dead", 1);
+        }
+
+        public boolean holds(SimState state) {
+            return ((DiseaseSpread)state).numAgentsAlive == 0;
+        }
+    };
+
+    /** Stops the simulation once no agent has been infected for k steps. */
+    static class DiseaseFree extends StoppingRule
+    {
+        DiseaseFree(int k) {
+            super("no agents infected for " + k + " steps", k);
+        }
+
+        public boolean holds(SimState state) {
+            return ((DiseaseSpread)state).numAgentsInfected == 0;
+        }
+    };
+
+    /**
+     * The current value of a gauge, looked up by name, for stopping rules.
+     * The metrics are created in start(), after the rules.
+     */
+    class GaugeValue implements Valuable
+    {
+        final String name;
+        Metrics of;
+        Metrics.Gauge gauge;
+
+        GaugeValue(String name) {
+            this.name = name;
+        }
+
+        public double doubleValue() {
+            if(of != metrics) {
+                of = metrics;
+                gauge = metrics.getGauge(name);
+            }
+            return gauge.read();
+        }
+    };
+
+    /**
+     * Copies the current agent locations from the AgentStore into the
+     * environment, and puts the food items there if they are not yet, for
+     * when a GUI is attached to a running simulation.
+     */
+    public void syncEnvironment()
+    {
+        if(foodField.views == null) {
+            foodField.setViews(environment);
+        }
+        Bag all = environment.getAllObjects();
+        for(int i = 0; i < all.numObjs; i++) {
+            if(all.objs[i] instanceof Agent) {
+                Agent agent = (Agent)all.objs[i];
+                environment.setObjectLocation(agent, agent.getLocation());
+            }
+        }
+    }
+
+    /**
+     * Overrides parameters of a running simulation, e.g. of a branch forked
+     * from it, with those given in args, in the cmdline format of SimMaker.
+     * Takes -disease (replacing the whole disease), -prob-transmission,
+     * -prob-recovery, -energy-drain, -flocking, -observability, and
+     * -symptom-tolerance (which applies to every agent); ignores the rest.
+     */
+    public void overrideParameters(String[] args)
+    {
+        String sdn = argumentForKey("-disease", args);
+        if(sdn != null) {
+            disease = Disease.diseaseByName(sdn);
+        }
+        String spt = argumentForKey("-prob-transmission", args);
+        String spr = argumentForKey("-prob-recovery", args);
+        String sed = argumentForKey("-energy-drain", args);
+        if(spt != null || spr != null || sed != null) {
+            disease = new Disease(disease);  // may be shared with other simulations
+            if(spt != null) {
+                disease.probTransmission = Double.parseDouble(spt);
+            }
+            if(spr != null) {
+                disease.probRecovery = Double.parseDouble(spr);
+            }
+            if(sed != null) {
+                disease.energyDrainMultiplier = Double.parseDouble(sed);
+            }
+        }
+        if(spr != null && timedRecovery) {
+            // Recovery is memoryless, so the infected agents simply draw
+            // their recovery steps again.
+            for(int id = 0; id < agents.size; id++) {
+                if(agents.isAlive(id) && agents.infected[id]) {
+                    agents.recoveryStep[id] = Agent.recoveryStep(disease.probRecovery, random,
+                                                                 schedule.getSteps());
+                }
+            }
+        }
+        String sff = argumentForKey("-flocking", args);
+        if(sff != null) {
+            flockingFactor = Double.parseDouble(sff);
+        }
+        String sof = argumentForKey("-observability", args);
+        if(sof != null) {
+            observability = Double.parseDouble(sof);
+        }
+        String sst = argumentForKey("-symptom-tolerance", args);
+        if(sst != null) {
+            symptomTolerance = Double.parseDouble(sst);
+            java.util.Arrays.fill(agents.symptomTolerance, 0, agents.size, symptomTolerance);
+        }
+    }
+
+    /** Writes the state of the simulation to a checkpoint. */
+    public void writeState(Checkpoint.Output out) throws IOException
+    {
+        out.writeInt(numAgentsInitial);
+        out.writeDouble(disease.probTransmission);
+        out.writeDouble(disease.probRecovery);
+        out.writeDouble(disease.percentInitial);
+        out.writeDouble(disease.energyDrainMultiplier);
+        out.writeUTF(disease.name);
+        out.writeDouble(flockingFactor);
+        out.writeDouble(observability);
+        out.writeDouble(symptomTolerance);
+        out.writeBoolean(synchronous);
+        out.writeInt(numAgentThreads);
+        out.writeBoolean(timedRecovery);
+        out.writeInt(sampleInterval);
+
+        out.writeInt(numAgentsAlive);
+        out.writeInt(numAgentsInfected);
+        out.writeDouble(totalEnergy);
+        out.writeDouble(totalEnergyAgents);
+        agents.write(out);
+        foodField.write(out);
+        metrics.writeState(out);
+        out.writeInt(sampler.numSamples);
+        writeStoppingRules(out);
+        out.writeBoolean(stats != null);
+        if(stats != null) {
+            out.writeInt(stats.step.size());
+            for(int i = 0; i < stats.step.size(); i++) {
+                out.writeInt(stats.step.get(i));
+                out.writeInt(stats.numAgentsAlive.get(i));
+                out.writeInt(stats.numAgentsInfected.get(i));
+            }
+        }
+        schedule.writeState(out, new ScheduleIds(null));
+    }
+
+    /**
+     * Reads the state of the simulation from a checkpoint, and rebuilds
+     * everything that was not written.
+     */
+    public void readState(Checkpoint.Input in) throws IOException
+    {
+        numAgentsInitial = in.readInt();
+        double probTransmission = in.readDouble();
+        double probRecovery = in.readDouble();
+        double percentInitial = in.readDouble();
+        double energyDrainMultiplier = in.readDouble();
+        disease = new Disease(probTransmission, probRecovery, percentInitial,
+                              energyDrainMultiplier, in.readUTF());
+        flockingFactor = in.readDouble();
+        observability = in.readDouble();
+        symptomTolerance = in.readDouble();
+        synchronous = in.readBoolean();
+        numAgentThreads = in.readInt();
+        timedRecovery = in.readBoolean();
+        sampleInterval = in.readInt();
+
+        numAgentsAlive = in.readInt();
+        numAgentsInfected = in.readInt();
+        totalEnergy = in.readDouble();
+        totalEnergyAgents = in.readDouble();
+        agents = AgentStore.read(in);
+        foodField = FoodField.read(in);
+        createMetrics();
+        metrics.readState(in);
+        sampler = new Sampler();
+        sampler.numSamples = in.readInt();
+        readStoppingRules(in);
+        if(in.readBoolean()) {
+            stats = new Stats();
+            int n = in.readInt();
+            for(int i = 0; i < n; i++) {
+                stats.step.add(in.readInt());
+                stats.numAgentsAlive.add(in.readInt());
+                stats.numAgentsInfected.add(in.readInt());
+            }
+        } else {
+            stats = null;
+        }
+        openOutputs();
+
+        // Rebuild the rest. The environment only matters to a GUI, which
+        // will sync it when it loads the simulation.
+        environment = new Continuous2D(25.0, xMax, yMax);
+        neighborIndex = new NeighborIndex(xMax, yMax, NeighborIndex.defaultCellSize);
+        neighborhood = new NeighborIndex.Neighborhood();
+        Agent[] agentList = new Agent[agents.size];
+        for(int id = 0; id < agents.size; id++) {
+            agentList[id] = new Agent(agents, id);
+            if(agents.isAlive(id)) {
+                environment.setObjectLocation(agentList[id], agentList[id].getLocation());
+            }
+        }
+        if(synchronous) {
+            synchronousStepper = new SynchronousStepper(agents, agentList, numAgentThreads);
+        }
+        foodMaker = new FoodMaker();
+        schedule.readState(in, new ScheduleIds(agentList));
     }
 
     /**
-     * Finishes the simulation and displays accumulated stats.
+     * Names the steppables on the schedule for checkpoints. When reading one,
+     * looks agents up in agentList, and hands each its schedule item.
+     */
+    class ScheduleIds implements Checkpoint.Steppables
+    {
+        final Agent[] agentList;
+
+        ScheduleIds(Agent[] agentList) {
+            this.agentList = agentList;
+        }
+
+        public int idOf(Steppable step) {
+            if(step == foodField) {
+                return foodFieldId;
+            } else if(step == neighborIndex) {
+                return neighborIndexId;
+            } else if(step == foodMaker) {
+                return foodMakerId;
+            } else if(step == synchronousStepper) {
+                return synchronousStepperId;
+            } else if(step == sampler) {
+                return samplerId;
+            } else if(step instanceof Agent) {
+                return firstAgentId + ((Agent)step).id;
+            }
+            return -1;
+        }
+
+        public Steppable stepFor(int id, Stoppable stoppable) {
+            switch(id) {
+            case foodFieldId:
+                return foodField;
+            case neighborIndexId:
+                return neighborIndex;
+            case foodMakerId:
+                return foodMaker;
+            case synchronousStepperId:
+                return synchronousStepper;
+            case samplerId:
+                return sampler;
+            }
+            if(id - firstAgentId >= agentList.length) {
+                return null;
+            }
+            Agent agent = agentList[id - firstAgentId];
+            agent.scheduleItem = stoppable;
+            return agent;
+        }
+    };
+
+    /**
+     * Finishes the simulation and displays accumulated stats, unless
+     * printStats is off or they went to a stats file. If a stopping rule
+     * ended the run early, first fills in the remaining samples.
      */
     public void finish()
     {
+        if(getStoppedBy() != null && fillUntil >= 0 && sampler != null) {
+            sampler.fill(fillUntil);
+        }
         super.finish();
+        if(synchronousStepper != null) {
+            synchronousStepper.shutdown();
+            synchronousStepper = null;
+        }
+        if(events != null) {
+            events.close();
+        }
+        if(statsSink != null) {
+            statsSink.close();
+            statsSink = null;
+            return;
+        }
 
+        if(!printStats) {
+            return;
+        }
         System.out.println("==============================================================================");
         System.out.println("End-of-run statistics:");
         Gson gson = new Gson();
@@ -194,6 +711,33 @@ public class DiseaseSpread extends SimState
         System.out.println("-flocking X             X is a real number");
         System.out.println("-observability X        X is a double from 0 to 1");
         System.out.println("-symptom-tolerance X    X is a double from 0 to 1"); 
+        System.out.println("-prob-transmission X    overrides the disease's transmission probability");
+        System.out.println("-prob-recovery X        overrides the disease's recovery probability");
+        System.out.println("-percent-initial X      overrides the disease's initially infected fraction");
+        System.out.println("-energy-drain X         overrides the disease's energy drain multiplier");
+        System.out.println("-stats-out FILE         stream stats to a columnar FILE (see StatsReader); {seed} is");
+        System.out.println("                        replaced by the seed");
+        System.out.println("-events FILE            log events to FILE (\"-\" for stdout) as NDJSON; {seed} is");
+        System.out.println("                        replaced by the seed. Off by default");
+        System.out.println("-event-types LIST       log only these comma-separated event types: created, died,");
+        System.out.println("                        ate, infected, recovered, foodSpawned; or 1 for just died,");
+        System.out.println("                        infected, recovered; or 2 for all (default)");
+        System.out.println("-event-format F         ndjson (default) or binary (see EventLog)");
+        System.out.println("-sample-interval N      sample the stats every N steps (default " + Stats.stepSize + ")");
+        System.out.println("-sync                   step all agents at once from a snapshot of the previous step");
+        System.out.println("-agent-threads P        in -sync mode, step the agents on P threads (default 1)");
+        System.out.println("-calendar-queue         schedule events in a calendar queue instead of a binary heap");
+        System.out.println("                        (same distribution, but a seed gives a different run)");
+        System.out.println("-timed-recovery         draw each infected agent's recovery step once, instead of");
+        System.out.println("                        drawing for recovery at every step (same distribution)");
+        System.out.println("-stop-when-dead         stop early once every agent has died");
+        System.out.println("-stop-when-healthy K    stop early once no agent has been infected for K steps");
+        System.out.println("                        (the infection counts are exact, but agents may still");
+        System.out.println("                        have starved later on)");
+        System.out.println("-stop-when-steady M:W:E stop early once the variance of metric M (e.g.");
+        System.out.println("                        numAgentsAlive) over the last W steps is below E");
+        System.out.println("                        When stopped early, the samples up to -for are filled in");
+        System.out.println("                        with the final state (counters are zero)");
 
     }
 
@@ -243,8 +787,81 @@ public class DiseaseSpread extends SimState
                 flockingFactor = Double.parseDouble(sff);
             }
 
-            return new DiseaseSpread(seed, numAgentsInitial, disease, flockingFactor, 
-                                     observability, symptomTolerance);
+            // Disease fields can be overridden individually, e.g. for
+            // parameter sweeps. Never modify the shared defaultDisease.
+            String spt = argumentForKey("-prob-transmission", args);
+            String spr = argumentForKey("-prob-recovery", args);
+            String spi = argumentForKey("-percent-initial", args);
+            String sed = argumentForKey("-energy-drain", args);
+            if(spt != null || spr != null || spi != null || sed != null) {
+                disease = new Disease(disease);
+                if(spt != null) {
+                    disease.probTransmission = Double.parseDouble(spt);
+                }
+                if(spr != null) {
+                    disease.probRecovery = Double.parseDouble(spr);
+                }
+                if(spi != null) {
+                    disease.percentInitial = Double.parseDouble(spi);
+                }
+                if(sed != null) {
+                    disease.energyDrainMultiplier = Double.parseDouble(sed);
+                }
+            }
+
+            DiseaseSpread sim = new DiseaseSpread(seed, numAgentsInitial, disease, flockingFactor,
+                                                  observability, symptomTolerance);
+            sim.statsPath = argumentForKey("-stats-out", args);
+            sim.eventsPath = argumentForKey("-events", args);
+            String set = argumentForKey("-event-types", args);
+            if(set != null) {
+                sim.eventTypes = EventLog.parseTypes(set);
+            }
+            String sef = argumentForKey("-event-format", args);
+            if(sef != null) {
+                if(!sef.equals("ndjson") && !sef.equals("binary")) {
+                    throw new IllegalArgumentException("Unknown event format " + sef);
+                }
+                sim.eventsBinary = sef.equals("binary");
+            }
+            String ssi = argumentForKey("-sample-interval", args);
+            if(ssi != null) {
+                sim.sampleInterval = Integer.parseInt(ssi);
+            }
+            sim.synchronous = hasArgument("-sync", args);
+            String sat = argumentForKey("-agent-threads", args);
+            if(sat != null) {
+                sim.numAgentThreads = Integer.parseInt(sat);
+            }
+            sim.schedule.setCalendarQueue(hasArgument("-calendar-queue", args));
+            sim.timedRecovery = hasArgument("-timed-recovery", args);
+
+            if(hasArgument("-stop-when-dead", args)) {
+                sim.addStoppingRule(new AllDead());
+            }
+            String swh = argumentForKey("-stop-when-healthy", args);
+            if(swh != null) {
+                sim.addStoppingRule(new DiseaseFree(Integer.parseInt(swh)));
+            }
+            String sws = argumentForKey("-stop-when-steady", args);
+            if(sws != null) {
+                String[] parts = sws.split(":");
+                if(parts.length != 3) {
+                    throw new IllegalArgumentException("Expected -stop-when-steady METRIC:WINDOW:EPSILON, got " + sws);
+                }
+                int window = Integer.parseInt(parts[1]);
+                double epsilon = Double.parseDouble(parts[2]);
+                sim.createMetrics();
+                sim.metrics.getGauge(parts[0]);  // fail now if there's no such gauge
+                sim.addStoppingRule(new StoppingRule.Steady(
+                    parts[0] + " steady (variance below " + epsilon + " over " + window + " steps)",
+                    sim.new GaugeValue(parts[0]), window, epsilon));
+            }
+            String sfo = argumentForKey("-for", args);
+            if(sfo != null) {
+                sim.fillUntil = Long.parseLong(sfo);
+            }
+            return sim;
         }
 
         public Class simulationClass()
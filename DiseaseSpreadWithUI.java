@@ -23,12 +23,14 @@ public class DiseaseSpreadWithUI extends GUIState
     public DiseaseSpreadWithUI(String[] args)
     {
         super((new DiseaseSpread.SimMaker()).newInstance(System.currentTimeMillis(), args));
+        ((DiseaseSpread)state).guiAttached = true;
     }
 
     /** Initializes GUI with an existing simulation. */
     public DiseaseSpreadWithUI(SimState state)
     {
         super(state);
+        ((DiseaseSpread)state).guiAttached = true;
     }
 
     /** Simulation name to display in the GUI. */
@@ -62,6 +64,9 @@ public class DiseaseSpreadWithUI extends GUIState
     public void load(SimState state)
     {
         super.load(state);
+        ((DiseaseSpread)state).guiAttached = true;
+        state.schedule.setSingleThreaded(false);  // the GUI steps it too
+        ((DiseaseSpread)state).syncEnvironment();
         setupPortrayals();
     }
 
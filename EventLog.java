@@ -0,0 +1,273 @@
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import sim.engine.*;
+
+/**
+ * A structured log of simulation events (tick, agent id, event type, and up
+ * to two attributes), off by default. The simulation thread puts events into
+ * a lock-free single-producer ring buffer of primitive arrays, and a
+ * background thread writes them out as NDJSON or in a compact binary format.
+ * If the writer falls behind, the simulation waits for room rather than
+ * dropping events.
+ *
+ * Each event type has a level: level 1 types are the epidemic events needed
+ * to trace infection chains, level 2 adds everything else.
+ *
+ * Binary format (big-endian): the 8 bytes "DSEVENT1", then one 25-byte
+ * record per event: long tick, int agent, byte type, int arg, double value.
+ * Run from the cmdline, converts a binary log to NDJSON.
+ */
+public class EventLog
+{
+    // Event types:
+    protected static final byte CREATED = 0;
+    protected static final byte DIED = 1;
+    protected static final byte ATE = 2;
+    protected static final byte INFECTED = 3;
+    protected static final byte RECOVERED = 4;
+    protected static final byte FOOD_SPAWNED = 5;
+    protected static final String[] typeNames =
+        {"created", "died", "ate", "infected", "recovered", "foodSpawned"};
+    protected static final int[] typeLevels = {2, 1, 2, 1, 1, 2};
+    // NDJSON names of the attributes of each type; null if unused.
+    protected static final String[] argNames =
+        {"infected", null, null, "source", null, "count"};
+    protected static final String[] valueNames =
+        {"symptomVisibility", null, "energy", "symptomVisibility", "symptomVisibility", null};
+
+    // Log parameters:
+    protected static final byte[] magic = {'D', 'S', 'E', 'V', 'E', 'N', 'T', '1'};
+    protected static final int capacity = 1 << 16;  // a power of 2
+    protected static final long writerParkNanos = 1000000;
+    protected static final long producerParkNanos = 10000;
+
+    protected final Schedule schedule;
+    protected final boolean[] enabled = new boolean[typeNames.length];
+
+    // The ring buffer. Events [head, tail) are waiting to be written; only
+    // the simulation thread moves tail, and only the writer moves head.
+    private final long[] ticks = new long[capacity];
+    private final int[] agents = new int[capacity];
+    private final byte[] types = new byte[capacity];
+    private final int[] args = new int[capacity];
+    private final double[] values = new double[capacity];
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private Thread writer;
+    private volatile boolean closed;
+    private volatile IOException error;
+
+    /** Creates a log that is off. Events are timestamped from schedule. */
+    public EventLog(Schedule schedule)
+    {
+        this.schedule = schedule;
+    }
+
+    /**
+     * Starts writing the events of the enabled types to path ("-" for
+     * stdout), in binary or as NDJSON.
+     */
+    public void open(String path, final boolean binary, boolean[] enabledTypes)
+    {
+        final OutputStream out;
+        try {
+            out = path.equals("-") ? (OutputStream)System.out
+                : new FileOutputStream(path);
+        } catch(IOException e) {
+            throw new RuntimeException("Could not write events to " + path, e);
+        }
+        System.arraycopy(enabledTypes, 0, enabled, 0, enabled.length);
+        writer = new Thread("EventLog writer") {
+            public void run() {
+                try {
+                    write(new BufferedOutputStream(out, 1 << 16), binary);
+                } catch(IOException e) {
+                    error = e;
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Returns true if events of the given type are logged. */
+    public boolean isOn(byte type)
+    {
+        return enabled[type];
+    }
+
+    /** Logs an event of the current tick, if its type is on. */
+    public void log(byte type, int agent, int arg, double value)
+    {
+        if(!enabled[type]) {
+            return;
+        }
+        long t = tail.get();
+        while(t - head.get() >= capacity) {
+            if(error != null || writer == null) {
+                return;  // the writer is gone; close() reports why
+            }
+            LockSupport.parkNanos(producerParkNanos);
+        }
+        int i = (int)(t & (capacity - 1));
+        ticks[i] = schedule.getSteps();
+        agents[i] = agent;
+        types[i] = type;
+        args[i] = arg;
+        values[i] = value;
+        tail.lazySet(t + 1);
+    }
+
+    /** Writes out the remaining events and stops the writer. */
+    public void close()
+    {
+        if(writer == null) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+        java.util.Arrays.fill(enabled, false);
+        if(error != null) {
+            throw new RuntimeException("Could not write events", error);
+        }
+    }
+
+    /** The writer thread: drains the ring buffer until closed. */
+    private void write(OutputStream stream, boolean binary) throws IOException
+    {
+        DataOutputStream data = new DataOutputStream(stream);
+        Writer text = new OutputStreamWriter(stream, "UTF-8");
+        if(binary) {
+            data.write(magic);
+        }
+        long h = head.get();
+        while(true) {
+            boolean done = closed;
+            long t = tail.get();
+            if(h == t) {
+                if(done) {
+                    break;
+                }
+                text.flush();
+                LockSupport.parkNanos(writerParkNanos);
+                continue;
+            }
+            for(; h < t; h++) {
+                int i = (int)(h & (capacity - 1));
+                if(binary) {
+                    data.writeLong(ticks[i]);
+                    data.writeInt(agents[i]);
+                    data.writeByte(types[i]);
+                    data.writeInt(args[i]);
+                    data.writeDouble(values[i]);
+                } else {
+                    text.write(toJSON(ticks[i], agents[i], types[i], args[i], values[i]));
+                    text.write('\n');
+                }
+            }
+            head.lazySet(h);
+        }
+        text.flush();
+        data.flush();
+        if(stream != System.out) {
+            stream.close();
+        } else {
+            stream.flush();
+        }
+    }
+
+    /** Helper: formats an event as a JSON object. */
+    static String toJSON(long tick, int agent, byte type, int arg, double value)
+    {
+        StringBuilder b = new StringBuilder();
+        b.append("{\"tick\":").append(tick);
+        if(agent >= 0) {
+            b.append(",\"agent\":").append(agent);
+        }
+        b.append(",\"type\":\"").append(typeNames[type]).append('"');
+        if(argNames[type] != null) {
+            b.append(",\"").append(argNames[type]).append("\":");
+            if(type == CREATED) {
+                b.append(arg != 0);
+            } else {
+                b.append(arg);
+            }
+        }
+        if(valueNames[type] != null) {
+            b.append(",\"").append(valueNames[type]).append("\":").append(value);
+        }
+        return b.append('}').toString();
+    }
+
+    /**
+     * Parses a comma-separated list of event type names into a mask of
+     * enabled types. A number instead of a name enables all types of that
+     * level or lower.
+     */
+    static boolean[] parseTypes(String list)
+    {
+        boolean[] mask = new boolean[typeNames.length];
+        for(String name : list.split(",")) {
+            name = name.trim();
+            boolean found = false;
+            for(int t = 0; t < typeNames.length; t++) {
+                if(typeNames[t].equalsIgnoreCase(name)) {
+                    mask[t] = found = true;
+                }
+            }
+            if(!found && name.matches("[0-9]+")) {
+                for(int t = 0; t < typeNames.length; t++) {
+                    mask[t] |= typeLevels[t] <= Integer.parseInt(name);
+                }
+                found = true;
+            }
+            if(!found) {
+                throw new IllegalArgumentException("Unknown event type " + name);
+            }
+        }
+        return mask;
+    }
+
+    /** Converts binary event logs to NDJSON on stdout. */
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length == 0 || DiseaseSpread.hasArgument("-help", args)) {
+            System.out.println("usage: java EventLog FILE...");
+            System.out.println("Writes each binary event log as NDJSON.");
+            System.exit(0);
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"));
+        for(String arg : args) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(arg)));
+            for(int i = 0; i < magic.length; i++) {
+                if(in.readByte() != magic[i]) {
+                    throw new IOException(arg + " is not a binary event log");
+                }
+            }
+            while(true) {
+                long tick;
+                try {
+                    tick = in.readLong();
+                } catch(EOFException e) {
+                    break;
+                }
+                int agent = in.readInt();
+                byte type = in.readByte();
+                int a = in.readInt();
+                double value = in.readDouble();
+                out.write(toJSON(tick, agent, type, a, value));
+                out.write('\n');
+            }
+            in.close();
+        }
+        out.close();
+    }
+}
@@ -1,39 +1,22 @@
-import sim.engine.*;
-import sim.util.Double2D;
-
 /**
- * An food item. The item has a certain amount of energy that decays with time.
+ * A food item, as drawn in the GUI. The item itself lives in the FoodField;
+ * a Food is a view onto slot slot of the field.
  */
-public class Food implements Steppable
+public class Food
 {
-    // Food-item parameters:
-    protected static final double stepInterval = 7;
-    protected static final double initialEnergy = 120;
-    protected static final double energyDrainPerStep = 3;
-
-    // Food-item data:
-    protected double energy;
-    protected Stoppable scheduleItem;
+    protected final FoodField field;
+    protected int slot;  // updated when the field compacts
 
-    /** Initializes a food item. */
-    public Food()
+    /** Creates a view onto the given slot of field. */
+    Food(FoodField field, int slot)
     {
-        this.energy = initialEnergy;
+        this.field = field;
+        this.slot = slot;
     }
 
-    /**
-     * Decreases the energy of a food item. If the energy drops to zero, removes
-     * the item from the environment and the schedule.
-     */
-    public void step(final SimState state)
+    /** Returns the energy left in the item. */
+    public double getEnergy()
     {
-        DiseaseSpread sim = (DiseaseSpread)state;
-        double actualDrain = Math.min(energyDrainPerStep, energy);
-        energy -= energyDrainPerStep;
-        sim.totalEnergy -= actualDrain;
-        if(energy <= 0) {
-            sim.environment.remove(this);
-            scheduleItem.stop();
-        }
+        return field.energy[slot];
     }
 }
@@ -0,0 +1,226 @@
+import java.io.IOException;
+import java.util.Arrays;
+import sim.engine.*;
+import sim.field.continuous.*;
+import sim.util.Double2D;
+
+/**
+ * All food items, stored as parallel primitive arrays indexed by slot. A
+ * single FoodField steppable decays every item in one loop, instead of each
+ * item being its own entry in the schedule. Each item still decays every
+ * decayInterval steps after it was spawned.
+ *
+ * Slots only change when step() compacts out the eaten and exhausted items,
+ * which happens at the start of a step, before the NeighborIndex snapshot is
+ * taken. Within a step, a slot always refers to the same item.
+ *
+ * Food objects are only created when a GUI is attached: they are views onto
+ * one slot of the field, put into the environment to be drawn.
+ */
+class FoodField implements Steppable
+{
+    // Food-item parameters:
+    protected static final long decayInterval = 7;
+    protected static final double initialEnergy = 120;
+    protected static final double energyDrainPerStep = 3;
+
+    // Food data, one slot per item:
+    double[] x;
+    double[] y;
+    double[] energy;
+    long[] nextDecay;  // the step at which the item next loses energy
+    int size;
+    int numAlive;  // items in [0, size) that are neither eaten nor exhausted
+
+    // Synchronous mode: the agent that gets to eat each item, while the
+    // SynchronousStepper settles competing agents.
+    int[] claimant;
+    long[] claimPriority;
+
+    // The views in the environment, if a GUI is attached; else null.
+    protected Food[] views;
+    protected Continuous2D environment;
+
+    /** Creates an empty field with room for capacity items. */
+    FoodField(int capacity)
+    {
+        capacity = Math.max(capacity, 1);
+        x = new double[capacity];
+        y = new double[capacity];
+        energy = new double[capacity];
+        nextDecay = new long[capacity];
+        claimant = new int[capacity];
+        Arrays.fill(claimant, -1);
+        claimPriority = new long[capacity];
+    }
+
+    /**
+     * Puts a view of every living item into environment, and keeps the views
+     * in sync from now on.
+     */
+    void setViews(Continuous2D environment)
+    {
+        this.environment = environment;
+        views = new Food[x.length];
+        for(int slot = 0; slot < size; slot++) {
+            if(isAlive(slot)) {
+                addView(slot);
+            }
+        }
+    }
+
+    /**
+     * Adds n items at the given positions, with initialEnergy each and their
+     * first decay decayInterval steps after step. Returns the slot of the
+     * first; the others follow it.
+     */
+    int add(double[] xs, double[] ys, int n, long step)
+    {
+        if(size + n > x.length) {
+            int capacity = Math.max(size + n, 2 * x.length);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            energy = Arrays.copyOf(energy, capacity);
+            nextDecay = Arrays.copyOf(nextDecay, capacity);
+            int oldCapacity = claimant.length;
+            claimant = Arrays.copyOf(claimant, capacity);
+            Arrays.fill(claimant, oldCapacity, capacity, -1);
+            claimPriority = Arrays.copyOf(claimPriority, capacity);
+            if(views != null) {
+                views = Arrays.copyOf(views, capacity);
+            }
+        }
+        int first = size;
+        System.arraycopy(xs, 0, x, first, n);
+        System.arraycopy(ys, 0, y, first, n);
+        Arrays.fill(energy, first, first + n, initialEnergy);
+        Arrays.fill(nextDecay, first, first + n, step + decayInterval);
+        size += n;
+        numAlive += n;
+        if(views != null) {
+            for(int slot = first; slot < size; slot++) {
+                addView(slot);
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Writes all items to a checkpoint. The claims are not written: they are
+     * settled within a step.
+     */
+    void write(Checkpoint.Output out) throws IOException
+    {
+        out.writeInt(x.length);
+        out.writeInt(size);
+        out.writeInt(numAlive);
+        out.writeDoubles(x, 0, size);
+        out.writeDoubles(y, 0, size);
+        out.writeDoubles(energy, 0, size);
+        out.writeLongs(nextDecay, 0, size);
+    }
+
+    /** Reads a field written by write(), without views. */
+    static FoodField read(Checkpoint.Input in) throws IOException
+    {
+        FoodField field = new FoodField(in.readInt());
+        int size = in.readInt();
+        field.numAlive = in.readInt();
+        in.readDoubles(field.x, 0, size);
+        in.readDoubles(field.y, 0, size);
+        in.readDoubles(field.energy, 0, size);
+        in.readLongs(field.nextDecay, 0, size);
+        field.size = size;
+        return field;
+    }
+
+    /** Returns true if the item in the given slot is neither eaten nor exhausted. */
+    boolean isAlive(int slot)
+    {
+        return energy[slot] > 0;
+    }
+
+    /**
+     * Marks the item in the given slot as eaten. Its energy must already have
+     * been accounted to whoever ate it. The slot is freed at the next step.
+     */
+    void remove(int slot)
+    {
+        energy[slot] = 0;
+        numAlive--;
+        removeView(slot);
+    }
+
+    /**
+     * Decreases the energy of the items that are due, then compacts out all
+     * items that were eaten or have run out of energy.
+     */
+    public void step(final SimState state)
+    {
+        DiseaseSpread sim = (DiseaseSpread)state;
+        final long steps = sim.schedule.getSteps();
+        final double[] energy = this.energy;
+        final long[] nextDecay = this.nextDecay;
+
+        double totalDrain = 0;
+        for(int slot = 0; slot < size; slot++) {
+            if(nextDecay[slot] != steps || energy[slot] <= 0) {
+                continue;
+            }
+            totalDrain += Math.min(energyDrainPerStep, energy[slot]);
+            energy[slot] -= energyDrainPerStep;
+            nextDecay[slot] += decayInterval;
+            if(energy[slot] <= 0) {
+                numAlive--;
+                removeView(slot);
+            }
+        }
+        sim.totalEnergy -= totalDrain;
+
+        if(numAlive < size) {
+            compact();
+        }
+    }
+
+    /** Helper: moves the living items to the front, keeping their order. */
+    private void compact()
+    {
+        int n = 0;
+        for(int slot = 0; slot < size; slot++) {
+            if(energy[slot] <= 0) {
+                continue;
+            }
+            if(n != slot) {
+                x[n] = x[slot];
+                y[n] = y[slot];
+                energy[n] = energy[slot];
+                nextDecay[n] = nextDecay[slot];
+                if(views != null) {
+                    views[n] = views[slot];
+                    views[n].slot = n;
+                }
+            }
+            n++;
+        }
+        if(views != null) {
+            Arrays.fill(views, n, size, null);  // let gc
+        }
+        size = n;
+    }
+
+    /** Helper: puts a view of the given slot into the environment. */
+    private void addView(int slot)
+    {
+        views[slot] = new Food(this, slot);
+        environment.setObjectLocation(views[slot], new Double2D(x[slot], y[slot]));
+    }
+
+    /** Helper: takes the view of the given slot out of the environment. */
+    private void removeView(int slot)
+    {
+        if(views != null && views[slot] != null) {
+            environment.remove(views[slot]);
+            views[slot] = null;
+        }
+    }
+}
@@ -1,5 +1,5 @@
+import ec.util.*;
 import sim.engine.*;
-import sim.util.Double2D;
 
 /**
  * An "agent" that creates food and adds it to the environment. The FoodMaker
@@ -12,35 +12,45 @@ public class FoodMaker implements Steppable
     protected static final double energyDeficitThreshold = 500;
     protected static final int spawnCount = 15;
     protected static final double clusterVariance = 1;
+    protected static final long stream = -1;  // agent streams are >= 0
+
+    // Synchronous mode: our own random stream, reset at every step.
+    protected CounterRandom streamRandom = new CounterRandom(0);
+
+    // The positions of the items being spawned.
+    private final double[] spawnX = new double[spawnCount];
+    private final double[] spawnY = new double[spawnCount];
 
     /**
      * If the totalEnergyFood of the simulation is smaller than numAgentsInitial
      * * foodEnergyPerAgent by more than energyDeficitThreshold, creates
-     * spawnCount food items and adds them to the environment and the schedule.
+     * spawnCount food items and adds them to the FoodField in one go.
      */
     public void step(final SimState state)
     {
         DiseaseSpread sim = (DiseaseSpread)state;
+        RandomSource random = sim.random;
+        if(sim.synchronous) {
+            streamRandom.setStream(sim.seed(), stream, sim.schedule.getSteps());
+            random = streamRandom;
+        }
 
         double foodEnergyTarget = sim.numAgentsInitial * foodEnergyPerAgent;
         if(foodEnergyTarget - sim.getTotalEnergyFood() > energyDeficitThreshold) {
             // Spawn new food items in a Gaussian cluster.
-            double cx = sim.random.nextDouble() * sim.xMax,
-                   cy = sim.random.nextDouble() * sim.yMax;
-            int addedFood = 0;
-            while(addedFood < spawnCount) {
-                double dx = sim.random.nextGaussian() * clusterVariance,
-                       dy = sim.random.nextGaussian() * clusterVariance;
-                double x = DiseaseSpread.clamp(cx + dx, 0, DiseaseSpread.xMax),
-                       y = DiseaseSpread.clamp(cy + dy, 0, DiseaseSpread.yMax);
-                Double2D loc = new Double2D(x, y);
-                Food item = new Food();
-                sim.environment.setObjectLocation(item, loc);
-                item.scheduleItem = sim.schedule.scheduleRepeating(item, Food.stepInterval);
-                addedFood++;
-                sim.totalEnergy += item.energy;
+            double cx = random.nextDouble() * sim.xMax,
+                   cy = random.nextDouble() * sim.yMax;
+            for(int i = 0; i < spawnCount; i++) {
+                double dx = random.nextGaussian() * clusterVariance,
+                       dy = random.nextGaussian() * clusterVariance;
+                spawnX[i] = DiseaseSpread.clamp(cx + dx, 0, DiseaseSpread.xMax);
+                spawnY[i] = DiseaseSpread.clamp(cy + dy, 0, DiseaseSpread.yMax);
             }
-            System.out.println("FoodMaker spawned food");
+            int first = sim.foodField.add(spawnX, spawnY, spawnCount, sim.schedule.getSteps());
+            sim.neighborIndex.addFood(first, first + spawnCount);
+            sim.foodSpawned.add(spawnCount);
+            sim.totalEnergy += spawnCount * FoodField.initialEnergy;
+            sim.events.log(EventLog.FOOD_SPAWNED, -1, spawnCount, 0);
         }
     }
 }
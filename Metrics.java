@@ -0,0 +1,260 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import sim.engine.Checkpoint;
+
+/**
+ * A registry of the metrics of a simulation, sampled every few steps into a
+ * row of numbers, one per column. There are three kinds of metric:
+ *
+ * - a Counter counts events, such as infections, and is sampled as the
+ *   number of events since the previous sample;
+ * - a Gauge is read when sampled, such as the number of agents alive;
+ * - a Histogram collects values between samples, such as agent energies,
+ *   and is sampled as their mean and 10th / 50th / 90th percentiles.
+ *
+ * Updating a metric allocates nothing.
+ */
+class Metrics
+{
+    // Histogram parameters:
+    protected static final double[] histogramQuantiles = {0.1, 0.5, 0.9};
+    protected static final String[] histogramColumns = {".mean", ".p10", ".p50", ".p90"};
+
+    /** Counts events. */
+    static class Counter {
+        long total;
+        long totalSampled;
+
+        void increment() {
+            total++;
+        }
+
+        void add(long n) {
+            total += n;
+        }
+    };
+
+    /** A value that is read at every sample. */
+    abstract static class Gauge {
+        abstract double read();
+    };
+
+    /** A gauge whose value is always an integer. */
+    abstract static class IntGauge extends Gauge {
+        abstract int readInt();
+
+        double read() {
+            return readInt();
+        }
+    };
+
+    /** Collects values in numBins equal bins over [min, max]. */
+    static class Histogram {
+        final double min;
+        final double max;
+        final long[] bins;
+        long count;
+        double sum;
+
+        Histogram(double min, double max, int numBins) {
+            this.min = min;
+            this.max = max;
+            this.bins = new long[numBins];
+        }
+
+        /** Adds a value. Values outside [min, max] go to the first or last bin. */
+        void record(double value) {
+            int bin = (int)((value - min) / (max - min) * bins.length);
+            bins[Math.max(0, Math.min(bins.length - 1, bin))]++;
+            count++;
+            sum += value;
+        }
+
+        /** Returns the approximate q-quantile, or NaN if there are no values. */
+        double quantile(double q) {
+            if(count == 0) {
+                return Double.NaN;
+            }
+            double target = q * count;
+            long seen = 0;
+            double width = (max - min) / bins.length;
+            for(int b = 0; b < bins.length; b++) {
+                if(bins[b] > 0 && seen + bins[b] >= target) {
+                    // Interpolate within the bin.
+                    return min + width * (b + (target - seen) / bins[b]);
+                }
+                seen += bins[b];
+            }
+            return max;
+        }
+
+        void clear() {
+            java.util.Arrays.fill(bins, 0);
+            count = 0;
+            sum = 0;
+        }
+    };
+
+    /** Receives every sample of a simulation. */
+    interface Listener {
+        void sampled(int sample, long step, double[] row);
+    };
+
+    // Registered metrics, in column order:
+    protected final ArrayList<String> names = new ArrayList<String>();
+    protected final ArrayList<Object> metrics = new ArrayList<Object>();
+    protected int numColumns;
+
+    /** Registers and returns a new counter. */
+    public Counter counter(String name)
+    {
+        Counter counter = new Counter();
+        register(name, counter, 1);
+        return counter;
+    }
+
+    /** Registers a gauge. */
+    public void gauge(String name, Gauge gauge)
+    {
+        register(name, gauge, 1);
+    }
+
+    /** Registers and returns a new histogram. */
+    public Histogram histogram(String name, double min, double max, int numBins)
+    {
+        Histogram histogram = new Histogram(min, max, numBins);
+        register(name, histogram, histogramColumns.length);
+        return histogram;
+    }
+
+    /** Helper: adds a metric. */
+    private void register(String name, Object metric, int columns)
+    {
+        if(names.contains(name)) {
+            throw new IllegalArgumentException("Metric " + name + " already registered");
+        }
+        names.add(name);
+        metrics.add(metric);
+        numColumns += columns;
+    }
+
+    /** Returns the gauge registered under the given name. */
+    public Gauge getGauge(String name)
+    {
+        int i = names.indexOf(name);
+        if(i < 0 || !(metrics.get(i) instanceof Gauge)) {
+            throw new IllegalArgumentException("No gauge named " + name);
+        }
+        return (Gauge)metrics.get(i);
+    }
+
+    /** Returns the number of columns in a sample. */
+    public int getNumColumns()
+    {
+        return numColumns;
+    }
+
+    /** Returns the names of the columns in a sample. */
+    public String[] getColumnNames()
+    {
+        String[] columns = new String[numColumns];
+        int c = 0;
+        for(int i = 0; i < metrics.size(); i++) {
+            if(metrics.get(i) instanceof Histogram) {
+                for(String suffix : histogramColumns) {
+                    columns[c++] = names.get(i) + suffix;
+                }
+            } else {
+                columns[c++] = names.get(i);
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Returns the StatsSink type of each column: counters and IntGauges are
+     * integers, everything else is a double.
+     */
+    public byte[] getColumnTypes()
+    {
+        byte[] types = new byte[numColumns];
+        int c = 0;
+        for(Object metric : metrics) {
+            if(metric instanceof Histogram) {
+                for(int k = 0; k < histogramColumns.length; k++) {
+                    types[c++] = StatsSink.DOUBLE;
+                }
+            } else if(metric instanceof Counter || metric instanceof IntGauge) {
+                types[c++] = StatsSink.INT;
+            } else {
+                types[c++] = StatsSink.DOUBLE;
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Writes the state of the counters and histograms to a checkpoint. Gauges
+     * have no state of their own.
+     */
+    public void writeState(Checkpoint.Output out) throws IOException
+    {
+        for(Object metric : metrics) {
+            if(metric instanceof Counter) {
+                Counter counter = (Counter)metric;
+                out.writeLong(counter.total);
+                out.writeLong(counter.totalSampled);
+            } else if(metric instanceof Histogram) {
+                Histogram histogram = (Histogram)metric;
+                out.writeLong(histogram.count);
+                out.writeDouble(histogram.sum);
+                out.writeLongs(histogram.bins, 0, histogram.bins.length);
+            }
+        }
+    }
+
+    /**
+     * Reads what writeState() wrote into the same metrics, registered in the
+     * same order.
+     */
+    public void readState(Checkpoint.Input in) throws IOException
+    {
+        for(Object metric : metrics) {
+            if(metric instanceof Counter) {
+                Counter counter = (Counter)metric;
+                counter.total = in.readLong();
+                counter.totalSampled = in.readLong();
+            } else if(metric instanceof Histogram) {
+                Histogram histogram = (Histogram)metric;
+                histogram.count = in.readLong();
+                histogram.sum = in.readDouble();
+                in.readLongs(histogram.bins, 0, histogram.bins.length);
+            }
+        }
+    }
+
+    /**
+     * Samples all metrics into row, which must have getNumColumns() elements,
+     * and starts a new sampling period for counters and histograms.
+     */
+    public void sample(double[] row)
+    {
+        int c = 0;
+        for(Object metric : metrics) {
+            if(metric instanceof Counter) {
+                Counter counter = (Counter)metric;
+                row[c++] = counter.total - counter.totalSampled;
+                counter.totalSampled = counter.total;
+            } else if(metric instanceof Gauge) {
+                row[c++] = ((Gauge)metric).read();
+            } else {
+                Histogram histogram = (Histogram)metric;
+                row[c++] = histogram.count > 0 ? histogram.sum / histogram.count : Double.NaN;
+                for(double q : histogramQuantiles) {
+                    row[c++] = histogram.quantile(q);
+                }
+                histogram.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+import com.google.gson.GsonBuilder;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * Aggregates the sampled metrics of many trials on the fly, so the batch
+ * driver never keeps the per-trial traces. For every column and sample, keeps
+ * the running mean and variance (Welford's algorithm), the min and max, and
+ * the 5th, 50th and 95th percentiles: exact while there are at most
+ * Accumulator.maxExact values, P-square estimates after that. The estimates
+ * depend on the order of the values, so trials running concurrently should
+ * each collect their samples in a Samples, and add them with add() in a fixed
+ * (e.g. seed) order.
+ */
+class MetricsSummary implements Metrics.Listener
+{
+    /** Summary of one value over all trials. */
+    static class Accumulator {
+        /** The number of values kept for exact percentiles. */
+        static final int maxExact = 200;
+
+        long n;
+        double mean;
+        double m2;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        final P2Quantile p05 = new P2Quantile(0.05);
+        final P2Quantile p50 = new P2Quantile(0.5);
+        final P2Quantile p95 = new P2Quantile(0.95);
+        double[] values = new double[8];  // the values, until there are more than maxExact
+
+        /** Adds a value. NaN values (e.g. the mean of no values) are ignored. */
+        void add(double x) {
+            if(Double.isNaN(x)) {
+                return;
+            }
+            n++;
+            double delta = x - mean;
+            mean += delta / n;
+            m2 += delta * (x - mean);
+            min = Math.min(min, x);
+            max = Math.max(max, x);
+            p05.add(x);
+            p50.add(x);
+            p95.add(x);
+            if(n > maxExact) {
+                values = null;
+            } else {
+                if(n > values.length) {
+                    values = Arrays.copyOf(values, Math.min(2 * values.length, maxExact));
+                }
+                values[(int)(n - 1)] = x;
+            }
+        }
+
+        /**
+         * Returns the p-quantile of the values, interpolated like
+         * numpy.percentile while they are kept, else estimated.
+         */
+        double quantile(P2Quantile estimate) {
+            if(values == null) {
+                return estimate.value();
+            }
+            if(n == 0) {
+                return Double.NaN;
+            }
+            double[] sorted = Arrays.copyOf(values, (int)n);
+            Arrays.sort(sorted);
+            double h = (n - 1) * estimate.p;
+            int i = (int)Math.floor(h);
+            if(i + 1 >= n) {
+                return sorted[i];
+            }
+            return sorted[i] + (h - i) * (sorted[i + 1] - sorted[i]);
+        }
+
+        /** Returns the population standard deviation, like numpy.std. */
+        double sd() {
+            return n > 0 ? Math.sqrt(m2 / n) : Double.NaN;
+        }
+    };
+
+    /**
+     * The P-square algorithm of Jain and Chlamtac (1985): estimates the
+     * p-quantile of a stream of values from five markers, without storing
+     * the values.
+     */
+    static class P2Quantile {
+        final double p;
+        final double[] q = new double[5];        // marker heights
+        final double[] pos = new double[5];      // marker positions
+        final double[] desired = new double[5];  // desired marker positions
+        final double[] step;
+        int n;
+
+        P2Quantile(double p) {
+            this.p = p;
+            step = new double[] {0, p / 2, p, (1 + p) / 2, 1};
+        }
+
+        void add(double x) {
+            if(n < 5) {
+                q[n++] = x;
+                if(n == 5) {
+                    Arrays.sort(q);
+                    for(int i = 0; i < 5; i++) {
+                        pos[i] = i + 1;
+                    }
+                    desired[0] = 1;
+                    desired[1] = 1 + 2 * p;
+                    desired[2] = 1 + 4 * p;
+                    desired[3] = 3 + 2 * p;
+                    desired[4] = 5;
+                }
+                return;
+            }
+            n++;
+
+            // Find the cell of x, moving the extreme markers if needed.
+            int k;
+            if(x < q[0]) {
+                q[0] = x;
+                k = 0;
+            } else if(x >= q[4]) {
+                q[4] = x;
+                k = 3;
+            } else {
+                k = 0;
+                while(x >= q[k + 1]) {
+                    k++;
+                }
+            }
+            for(int i = k + 1; i < 5; i++) {
+                pos[i]++;
+            }
+            for(int i = 0; i < 5; i++) {
+                desired[i] += step[i];
+            }
+
+            // Adjust the middle markers if they are off by one or more.
+            for(int i = 1; i < 4; i++) {
+                double d = desired[i] - pos[i];
+                if((d >= 1 && pos[i + 1] - pos[i] > 1) || (d <= -1 && pos[i - 1] - pos[i] < -1)) {
+                    int s = d > 0 ? 1 : -1;
+                    double qp = q[i] + s / (pos[i + 1] - pos[i - 1]) *
+                        ((pos[i] - pos[i - 1] + s) * (q[i + 1] - q[i]) / (pos[i + 1] - pos[i]) +
+                         (pos[i + 1] - pos[i] - s) * (q[i] - q[i - 1]) / (pos[i] - pos[i - 1]));
+                    if(q[i - 1] < qp && qp < q[i + 1]) {
+                        q[i] = qp;
+                    } else {
+                        q[i] += s * (q[i + s] - q[i]) / (pos[i + s] - pos[i]);
+                    }
+                    pos[i] += s;
+                }
+            }
+        }
+
+        /** Returns the estimate; exact while there are fewer than five values. */
+        double value() {
+            if(n == 0) {
+                return Double.NaN;
+            }
+            if(n < 5) {
+                double[] sorted = Arrays.copyOf(q, n);
+                Arrays.sort(sorted);
+                return sorted[(int)Math.round((n - 1) * p)];
+            }
+            return q[2];
+        }
+    };
+
+    /**
+     * The samples of one trial, kept until the trial is done, so they can be
+     * added to the summary in a fixed order.
+     */
+    static class Samples implements Metrics.Listener {
+        final ArrayList<Integer> samples = new ArrayList<Integer>();
+        final ArrayList<Long> steps = new ArrayList<Long>();
+        final ArrayList<double[]> rows = new ArrayList<double[]>();
+        double runTime;
+
+        public void sampled(int sample, long step, double[] row) {
+            samples.add(sample);
+            steps.add(step);
+            rows.add(row.clone());
+        }
+    };
+
+    /** The summary of one column, for JSON output. */
+    static class Band {
+        double[] mean, sd, min, max, p05, p50, p95;
+    };
+
+    protected final String[] columns;
+    protected long[] steps = new long[16];
+    protected Accumulator[][] samples = new Accumulator[16][];  // [sample][column]
+    protected int numSamples;
+    protected final Accumulator runTime = new Accumulator();
+
+    /** Creates an empty summary of the given columns. */
+    public MetricsSummary(String[] columns)
+    {
+        this.columns = columns;
+    }
+
+    /**
+     * Adds a sample of one trial. With several trials running at once, use
+     * Samples and add() instead, so the summary doesn't depend on timing.
+     */
+    public synchronized void sampled(int sample, long step, double[] row)
+    {
+        while(sample >= samples.length) {
+            samples = Arrays.copyOf(samples, 2 * samples.length);
+            steps = Arrays.copyOf(steps, 2 * steps.length);
+        }
+        if(samples[sample] == null) {
+            samples[sample] = new Accumulator[columns.length];
+            for(int c = 0; c < columns.length; c++) {
+                samples[sample][c] = new Accumulator();
+            }
+            steps[sample] = step;
+        }
+        numSamples = Math.max(numSamples, sample + 1);
+        for(int c = 0; c < columns.length; c++) {
+            samples[sample][c].add(row[c]);
+        }
+    }
+
+    /** Adds the samples and run time of one finished trial. */
+    public synchronized void add(Samples trial)
+    {
+        for(int i = 0; i < trial.rows.size(); i++) {
+            sampled(trial.samples.get(i), trial.steps.get(i), trial.rows.get(i));
+        }
+        addRunTime(trial.runTime);
+    }
+
+    /** Adds the run time of one trial. */
+    public synchronized void addRunTime(double seconds)
+    {
+        runTime.add(seconds);
+    }
+
+    /** Writes the summary as JSON. */
+    public synchronized void write(Writer out)
+    {
+        LinkedHashMap<String, Object> json = new LinkedHashMap<String, Object>();
+        json.put("numTrials", runTime.n);
+        json.put("step", Arrays.copyOf(steps, numSamples));
+        LinkedHashMap<String, Band> metrics = new LinkedHashMap<String, Band>();
+        for(int c = 0; c < columns.length; c++) {
+            Band band = new Band();
+            band.mean = new double[numSamples];
+            band.sd = new double[numSamples];
+            band.min = new double[numSamples];
+            band.max = new double[numSamples];
+            band.p05 = new double[numSamples];
+            band.p50 = new double[numSamples];
+            band.p95 = new double[numSamples];
+            for(int i = 0; i < numSamples; i++) {
+                Accumulator a = samples[i][c];
+                band.mean[i] = a.n > 0 ? a.mean : Double.NaN;
+                band.sd[i] = a.sd();
+                band.min[i] = a.n > 0 ? a.min : Double.NaN;
+                band.max[i] = a.n > 0 ? a.max : Double.NaN;
+                band.p05[i] = a.quantile(a.p05);
+                band.p50[i] = a.quantile(a.p50);
+                band.p95[i] = a.quantile(a.p95);
+            }
+            metrics.put(columns[c], band);
+        }
+        json.put("metrics", metrics);
+        LinkedHashMap<String, Double> times = new LinkedHashMap<String, Double>();
+        times.put("mean", runTime.mean);
+        times.put("sd", runTime.sd());
+        times.put("min", runTime.min);
+        times.put("max", runTime.max);
+        json.put("runTime", times);
+        new GsonBuilder().serializeSpecialFloatingPointValues().create().toJson(json, out);
+    }
+}
@@ -0,0 +1,273 @@
+import sim.engine.*;
+
+/**
+ * A snapshot of the environment for neighbor queries, rebuilt once per step.
+ * The positions of all agents and food items are kept in flat arrays sorted
+ * by grid cell, so a query scans a few contiguous runs of the arrays and
+ * allocates nothing. Agents are referred to by their id in the AgentStore,
+ * and food items by their slot in the FoodField.
+ *
+ * Agents move at most maxMove per step, so a query pads its radius by maxMove,
+ * then measures the distance to each candidate agent at its current location.
+ * This finds exactly the objects that are within the radius right now, even
+ * though the snapshot was taken at the start of the step. Food does not move;
+ * food spawned during the step is appended unsorted by addFood().
+ */
+class NeighborIndex implements Steppable
+{
+    // Index parameters:
+    protected static final byte AGENT = 0;
+    protected static final byte FOOD = 1;
+    protected static final double maxMove = 1;
+    protected static final double defaultCellSize = 5;
+
+    // Grid layout:
+    protected final double cellSize;
+    protected final int numCols;
+    protected final int numRows;
+
+    // Snapshot data. Objects [0, numSorted) are sorted by cell, and those of
+    // cell c are at [cellStart[c], cellStart[c + 1]). Objects [numSorted,
+    // numObjs) were added since the last rebuild.
+    protected int[] cellStart;
+    protected int[] ids = new int[16];  // agent id or food slot
+    protected byte[] kinds = new byte[16];
+    protected double[] xs = new double[16];
+    protected double[] ys = new double[16];
+    protected int numSorted;
+    protected int numObjs;
+    protected FoodField food;  // the field of the food slots
+
+    // Scratch buffers for rebuilding:
+    private int[] cells = new int[16];
+    private int[] unsortedIds = new int[16];
+    private byte[] unsortedKinds = new byte[16];
+
+    /** The result of a query, reused from query to query. */
+    static class Neighborhood {
+        int[] agents = new int[16];
+        double[] agentDistances = new double[16];
+        int numAgents;
+        int[] food = new int[16];  // slots in the FoodField
+        double[] foodX = new double[16];
+        double[] foodY = new double[16];
+        double[] foodDistances = new double[16];
+        int numFood;
+
+        void addAgent(int agent, double distance)
+        {
+            if(numAgents == agents.length) {
+                agents = java.util.Arrays.copyOf(agents, 2 * numAgents);
+                agentDistances = grow(agentDistances);
+            }
+            agents[numAgents] = agent;
+            agentDistances[numAgents] = distance;
+            numAgents++;
+        }
+
+        void addFood(int slot, double x, double y, double distance)
+        {
+            if(numFood == food.length) {
+                food = java.util.Arrays.copyOf(food, 2 * numFood);
+                foodX = grow(foodX);
+                foodY = grow(foodY);
+                foodDistances = grow(foodDistances);
+            }
+            food[numFood] = slot;
+            foodX[numFood] = x;
+            foodY[numFood] = y;
+            foodDistances[numFood] = distance;
+            numFood++;
+        }
+    };
+
+    /** Creates an index for an environment of the given size. */
+    public NeighborIndex(double width, double height, double cellSize)
+    {
+        this.cellSize = cellSize;
+        this.numCols = (int)Math.ceil(width / cellSize) + 1;
+        this.numRows = (int)Math.ceil(height / cellSize) + 1;
+        this.cellStart = new int[numCols * numRows + 1];
+    }
+
+    /** Rebuilds the snapshot at the start of every step. */
+    public void step(final SimState state)
+    {
+        DiseaseSpread sim = (DiseaseSpread)state;
+        rebuild(sim.agents, sim.foodField);
+    }
+
+    /** Helper: returns the cell containing the given position. */
+    protected int cellOf(double x, double y)
+    {
+        int col = (int)DiseaseSpread.clamp(x / cellSize, 0, numCols - 1);
+        int row = (int)DiseaseSpread.clamp(y / cellSize, 0, numRows - 1);
+        return row * numCols + col;
+    }
+
+    /**
+     * Takes a new snapshot of all living agents in the store and all food
+     * items in the field.
+     */
+    public void rebuild(AgentStore agents, FoodField food)
+    {
+        this.food = food;
+        ensureCapacity(agents.size + food.size);
+        if(cells.length < ids.length) {
+            cells = new int[ids.length];
+            unsortedIds = new int[ids.length];
+            unsortedKinds = new byte[ids.length];
+        }
+
+        // Counting sort by cell: count, prefix-sum, then place.
+        int[] cellStart = this.cellStart;
+        java.util.Arrays.fill(cellStart, 0);
+        int n = 0;
+        for(int id = 0; id < agents.size; id++) {
+            if(!agents.isAlive(id)) {
+                continue;
+            }
+            int cell = cellOf(agents.x[id], agents.y[id]);
+            cells[n] = cell;
+            unsortedIds[n] = id;
+            unsortedKinds[n] = AGENT;
+            cellStart[cell + 1]++;
+            n++;
+        }
+        for(int slot = 0; slot < food.size; slot++) {
+            if(!food.isAlive(slot)) {
+                continue;
+            }
+            int cell = cellOf(food.x[slot], food.y[slot]);
+            cells[n] = cell;
+            unsortedIds[n] = slot;
+            unsortedKinds[n] = FOOD;
+            cellStart[cell + 1]++;
+            n++;
+        }
+        for(int c = 0; c < cellStart.length - 1; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        for(int i = 0; i < n; i++) {
+            int pos = cellStart[cells[i]]++;
+            int id = unsortedIds[i];
+            ids[pos] = id;
+            kinds[pos] = unsortedKinds[i];
+            if(unsortedKinds[i] == AGENT) {
+                xs[pos] = agents.x[id];
+                ys[pos] = agents.y[id];
+            } else {
+                xs[pos] = food.x[id];
+                ys[pos] = food.y[id];
+            }
+        }
+        // The placing loop shifted every start to the next cell's start.
+        for(int c = cellStart.length - 1; c > 0; c--) {
+            cellStart[c] = cellStart[c - 1];
+        }
+        cellStart[0] = 0;
+        numSorted = n;
+        numObjs = n;
+    }
+
+    /** Adds the food items in slots [from, to), spawned after the snapshot. */
+    public void addFood(int from, int to)
+    {
+        ensureCapacity(numObjs + to - from);
+        for(int slot = from; slot < to; slot++) {
+            ids[numObjs] = slot;
+            kinds[numObjs] = FOOD;
+            xs[numObjs] = food.x[slot];
+            ys[numObjs] = food.y[slot];
+            numObjs++;
+        }
+    }
+
+    /**
+     * Collects all living agents (other than self) and all uneaten food items
+     * within radius of self's current location into result.
+     */
+    public void query(AgentStore agents, int self, double radius, Neighborhood result)
+    {
+        final double x = agents.x[self];
+        final double y = agents.y[self];
+        final double radiusSq = radius * radius;
+        final double paddedRadius = radius + maxMove;
+        final double paddedSq = paddedRadius * paddedRadius;
+        result.numAgents = 0;
+        result.numFood = 0;
+
+        int minCol = (int)DiseaseSpread.clamp((x - paddedRadius) / cellSize, 0, numCols - 1);
+        int maxCol = (int)DiseaseSpread.clamp((x + paddedRadius) / cellSize, 0, numCols - 1);
+        int minRow = (int)DiseaseSpread.clamp((y - paddedRadius) / cellSize, 0, numRows - 1);
+        int maxRow = (int)DiseaseSpread.clamp((y + paddedRadius) / cellSize, 0, numRows - 1);
+        for(int row = minRow; row <= maxRow; row++) {
+            // Distance from y to this row of cells, 0 if inside.
+            double dy = Math.max(0, Math.max(row * cellSize - y, y - (row + 1) * cellSize));
+            if(dy * dy > paddedSq) {
+                continue;
+            }
+            for(int col = minCol; col <= maxCol; col++) {
+                double dx = Math.max(0, Math.max(col * cellSize - x, x - (col + 1) * cellSize));
+                if(dx * dx + dy * dy > paddedSq) {
+                    continue;
+                }
+                int cell = row * numCols + col;
+                collect(agents, self, x, y, radiusSq, cellStart[cell], cellStart[cell + 1], result);
+            }
+        }
+        collect(agents, self, x, y, radiusSq, numSorted, numObjs, result);
+    }
+
+    /** Helper: adds the matching objects in [from, to) to result. */
+    private void collect(AgentStore agents, int self, double x, double y, double radiusSq,
+                         int from, int to, Neighborhood result)
+    {
+        for(int i = from; i < to; i++) {
+            if(kinds[i] == AGENT) {
+                int other = ids[i];
+                if(other == self || !agents.isAlive(other)) {
+                    continue;
+                }
+                double dx = agents.x[other] - x;
+                double dy = agents.y[other] - y;
+                double distSq = dx * dx + dy * dy;
+                if(distSq <= radiusSq) {
+                    result.addAgent(other, Math.sqrt(distSq));
+                }
+            } else {
+                int slot = ids[i];
+                if(!food.isAlive(slot)) {
+                    continue;
+                }
+                double dx = xs[i] - x;
+                double dy = ys[i] - y;
+                double distSq = dx * dx + dy * dy;
+                if(distSq <= radiusSq) {
+                    result.addFood(slot, xs[i], ys[i], Math.sqrt(distSq));
+                }
+            }
+        }
+    }
+
+    /** Helper: grows the snapshot arrays to hold at least n objects. */
+    private void ensureCapacity(int n)
+    {
+        if(n <= ids.length) {
+            return;
+        }
+        int size = Math.max(n, 2 * ids.length);
+        ids = java.util.Arrays.copyOf(ids, size);
+        byte[] newKinds = new byte[size];
+        System.arraycopy(kinds, 0, newKinds, 0, numObjs);
+        kinds = newKinds;
+        xs = java.util.Arrays.copyOf(xs, size);
+        ys = java.util.Arrays.copyOf(ys, size);
+    }
+
+    /** Helper: returns a copy of from with twice the length. */
+    static double[] grow(double[] from)
+    {
+        return java.util.Arrays.copyOf(from, 2 * from.length);
+    }
+}
@@ -0,0 +1,665 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import ec.util.MersenneTwisterFast;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the simulation over a declarative parameter design: either the full
+ * grid of the given parameter levels, or a Latin-hypercube sample over the
+ * given parameter ranges. Every (point, seed) pair runs as one BatchRunner
+ * trial on a pool of workers, and each result is appended to the output file
+ * as one JSON line as soon as it finishes. Re-running the same sweep with the
+ * same output file skips the pairs that are already in it, so a crashed sweep
+ * can simply be restarted.
+ *
+ * In adaptive mode (-ci H), the number of seeds is not fixed: each point gets
+ * more seeds until the 95% confidence intervals of the chosen outputs (e.g.
+ * the final number of agents alive) are at most H wide on either side of the
+ * mean, or until it reaches the cap. The workers are kept busy with whichever
+ * points are furthest from their target, so noisy points get more seeds and
+ * easy ones are done after a few. Whether a point has converged is decided on
+ * its seeds in order (S, S + 1, ...), so the outcome does not depend on the
+ * number of threads.
+ *
+ * The spec file has one parameter per line, named like the simulation's
+ * cmdline options (without the dash):
+ *
+ *     # comment
+ *     disease = cold, malaria        (list of levels)
+ *     flocking = 0 .. 5 : 3          (range with 3 evenly spaced levels)
+ *     prob-transmission = 0.1 .. 0.9 (range; Latin-hypercube designs only)
+ */
+public class ParameterSweep
+{
+    // Sweep parameters:
+    protected static final String[] parameterNames = {
+        "num", "disease", "flocking", "observability", "symptom-tolerance",
+        "prob-transmission", "prob-recovery", "percent-initial", "energy-drain"
+    };
+    protected static final int defaultNumSeeds = 30;
+    // Adaptive sweep parameters:
+    protected static final String[] outputNames = {"finalAlive", "finalInfected", "peakInfected"};
+    protected static final String defaultOutputs = "finalAlive,peakInfected";
+    protected static final int defaultMinSeeds = 5;
+    protected static final int defaultMaxSeeds = 200;
+
+    /** One parameter of the design: either a list of levels or a range. */
+    static class Parameter {
+        String name;
+        String[] levels;  // null for a continuous range
+        double min, max;
+
+        int numLevels()
+        {
+            return levels.length;
+        }
+    };
+
+    /** One (point, seed) result, as written to the output file. */
+    static class Result {
+        int point;
+        String args;
+        long seed;
+        double runTime;
+        DiseaseSpread.Stats stats;
+    };
+
+    /** The outcome of a point in an adaptive sweep, as written to the summary file. */
+    static class Estimate {
+        double mean;
+        double halfWidth;  // of the 95% confidence interval
+    };
+
+    /** A point of an adaptive sweep, and its seeds so far. */
+    static class Condition {
+        int point;
+        String args;
+        boolean converged;
+        int numSeeds;  // seeds used for the estimates
+        Map<String, Estimate> outputs = new LinkedHashMap<String, Estimate>();
+        transient Result[] results;  // by seed index, as they finish
+        transient MetricsSummary.Accumulator[] accumulators;
+        transient int numSubmitted;  // seed indices below this are running or finished
+        transient boolean done;  // converged or capped
+    };
+
+    protected final List<Parameter> parameters;
+
+    /** Creates a sweep over the parameters in the given spec file. */
+    public ParameterSweep(File spec) throws IOException
+    {
+        parameters = readSpec(spec);
+    }
+
+    /** Parses a spec file; see the class comment for the format. */
+    static List<Parameter> readSpec(File spec) throws IOException
+    {
+        List<Parameter> parameters = new ArrayList<Parameter>();
+        BufferedReader in = new BufferedReader(new FileReader(spec));
+        String line;
+        while((line = in.readLine()) != null) {
+            int comment = line.indexOf('#');
+            if(comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if(line.length() == 0) {
+                continue;
+            }
+            int eq = line.indexOf('=');
+            if(eq < 0) {
+                throw new RuntimeException("Bad sweep line '" + line + "'");
+            }
+            Parameter p = new Parameter();
+            p.name = line.substring(0, eq).trim();
+            if(!Arrays.asList(parameterNames).contains(p.name)) {
+                throw new RuntimeException("Unknown sweep parameter '" + p.name + "'");
+            }
+            String value = line.substring(eq + 1).trim();
+            int range = value.indexOf("..");
+            if(range < 0) {
+                p.levels = value.split("\\s*,\\s*");
+            } else {
+                String hi = value.substring(range + 2);
+                int colon = hi.indexOf(':');
+                p.min = Double.parseDouble(value.substring(0, range).trim());
+                if(colon < 0) {
+                    p.max = Double.parseDouble(hi.trim());
+                } else {
+                    p.max = Double.parseDouble(hi.substring(0, colon).trim());
+                    int n = Integer.parseInt(hi.substring(colon + 1).trim());
+                    p.levels = new String[n];
+                    for(int i = 0; i < n; i++) {
+                        double x = (n == 1) ? p.min : p.min + (p.max - p.min) * i / (n - 1);
+                        p.levels[i] = Double.toString(x);
+                    }
+                }
+            }
+            parameters.add(p);
+        }
+        in.close();
+        return parameters;
+    }
+
+    /** Returns the full factorial grid over the parameter levels. */
+    public List<String[]> gridDesign()
+    {
+        List<String[]> points = new ArrayList<String[]>();
+        points.add(new String[0]);
+        for(Parameter p : parameters) {
+            if(p.levels == null) {
+                throw new RuntimeException("Parameter '" + p.name +
+                        "' needs a level count (lo .. hi : n) in a grid design");
+            }
+            List<String[]> extended = new ArrayList<String[]>();
+            for(String[] point : points) {
+                for(String level : p.levels) {
+                    String[] next = Arrays.copyOf(point, point.length + 2);
+                    next[point.length] = "-" + p.name;
+                    next[point.length + 1] = level;
+                    extended.add(next);
+                }
+            }
+            points = extended;
+        }
+        return points;
+    }
+
+    /**
+     * Returns a Latin-hypercube sample of numPoints points. Each parameter's
+     * range (or list of levels) is split into numPoints equal strata, and
+     * every stratum is used exactly once.
+     */
+    public List<String[]> latinHypercubeDesign(int numPoints, long seed)
+    {
+        MersenneTwisterFast random = new MersenneTwisterFast(seed);
+        List<String[]> points = new ArrayList<String[]>();
+        for(int i = 0; i < numPoints; i++) {
+            points.add(new String[2 * parameters.size()]);
+        }
+        int column = 0;
+        for(Parameter p : parameters) {
+            int[] strata = new int[numPoints];
+            for(int i = 0; i < numPoints; i++) {
+                strata[i] = i;
+            }
+            for(int i = numPoints - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int tmp = strata[i];
+                strata[i] = strata[j];
+                strata[j] = tmp;
+            }
+            for(int i = 0; i < numPoints; i++) {
+                String value;
+                if(p.levels != null) {
+                    value = p.levels[strata[i] * p.numLevels() / numPoints];
+                } else {
+                    double u = (strata[i] + random.nextDouble()) / numPoints;
+                    value = Double.toString(p.min + (p.max - p.min) * u);
+                }
+                points.get(i)[column] = "-" + p.name;
+                points.get(i)[column + 1] = value;
+            }
+            column += 2;
+        }
+        return points;
+    }
+
+    /** Helper: returns the key identifying a (point, seed) pair in the output. */
+    static String resultKey(String args, long seed)
+    {
+        return seed + " " + args;
+    }
+
+    /** Helper: joins cmdline arguments with spaces. */
+    static String join(String[] args)
+    {
+        StringBuilder sb = new StringBuilder();
+        for(String arg : args) {
+            if(sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(arg);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads the results already in the output file and returns them by key.
+     * A half-written last line (e.g. after a crash) is cut off so that new
+     * results can be appended cleanly.
+     */
+    static Map<String, Result> readFinished(File out) throws IOException
+    {
+        Map<String, Result> finished = new HashMap<String, Result>();
+        if(!out.exists()) {
+            return finished;
+        }
+        long validLength = 0;
+        RandomAccessFile file = new RandomAccessFile(out, "rw");
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file.getFD()), "UTF-8"));
+        String line;
+        Gson gson = new Gson();
+        while((line = in.readLine()) != null) {
+            try {
+                JsonObject json = new JsonParser().parse(line).getAsJsonObject();
+                Result result = gson.fromJson(json, Result.class);
+                finished.put(resultKey(result.args, result.seed), result);
+            } catch(RuntimeException e) {
+                break;  // half-written line
+            }
+            validLength += line.getBytes("UTF-8").length + 1;
+        }
+        if(validLength > file.length()) {
+            // The last result is complete but lost its newline.
+            file.seek(file.length());
+            file.write('\n');
+        } else {
+            file.setLength(validLength);
+        }
+        file.close();
+        return finished;
+    }
+
+    /**
+     * Runs every (point, seed) pair that is not in the output file yet, with
+     * seeds firstSeed ... firstSeed + numSeeds - 1 for each point, and
+     * appends the results to the output file in completion order.
+     */
+    public void run(final List<String[]> points, long firstSeed, int numSeeds,
+                    final long numSteps, final double until, int numThreads,
+                    File out) throws IOException, InterruptedException, ExecutionException
+    {
+        Set<String> finished = readFinished(out).keySet();
+        final DiseaseSpread.SimMaker maker = new DiseaseSpread.SimMaker();
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        CompletionService<Result> results = new ExecutorCompletionService<Result>(pool);
+        int numSubmitted = 0;
+        for(int i = 0; i < points.size(); i++) {
+            for(int s = 0; s < numSeeds; s++) {
+                final int point = i;
+                final long seed = firstSeed + s;
+                if(finished.contains(resultKey(join(points.get(i)), seed))) {
+                    continue;
+                }
+                results.submit(trial(maker, points, point, seed, numSteps, until));
+                numSubmitted++;
+            }
+        }
+        System.err.println("ParameterSweep: " + points.size() + " points x " + numSeeds +
+                           " seeds, " + finished.size() + " already done, " +
+                           numSubmitted + " to run on " + numThreads + " threads");
+
+        Gson gson = new Gson();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(out, true), "UTF-8"));
+        try {
+            for(int i = 0; i < numSubmitted; i++) {
+                Result result = results.take().get();
+                writer.write(gson.toJson(result));
+                writer.write("\n");
+                writer.flush();
+                System.err.println("ParameterSweep: " + (i + 1) + "/" + numSubmitted +
+                                   " done (point " + result.point + ", seed " + result.seed + ")");
+            }
+        } finally {
+            writer.close();
+            pool.shutdownNow();
+        }
+    }
+
+    /** Helper: returns a task that runs the given (point, seed) pair. */
+    static Callable<Result> trial(final DiseaseSpread.SimMaker maker, final List<String[]> points,
+                                  final int point, final long seed,
+                                  final long numSteps, final double until)
+    {
+        return new Callable<Result>() {
+            public Result call() {
+                String[] args = points.get(point);
+                BatchRunner.Trial trial = BatchRunner.runTrial(maker, args, seed, numSteps, until);
+                Result result = new Result();
+                result.point = point;
+                result.args = join(args);
+                result.seed = seed;
+                result.runTime = trial.runTime;
+                result.stats = trial.stats;
+                return result;
+            }
+        };
+    }
+
+    /** Returns the named output (see outputNames) of a run. */
+    static double output(String name, DiseaseSpread.Stats stats)
+    {
+        List<Integer> values = name.endsWith("Alive") ? stats.numAgentsAlive : stats.numAgentsInfected;
+        if(values.isEmpty()) {
+            return Double.NaN;
+        }
+        if(name.startsWith("final")) {
+            return values.get(values.size() - 1);
+        }
+        int peak = Integer.MIN_VALUE;
+        for(int value : values) {
+            peak = Math.max(peak, value);
+        }
+        return peak;
+    }
+
+    /**
+     * Returns the 97.5% quantile of Student's t distribution with df degrees
+     * of freedom, from the Cornish-Fisher expansion around the normal
+     * quantile (within 1% for df >= 3; exact values for df < 3).
+     */
+    static double t975(int df)
+    {
+        if(df == 1) {
+            return 12.706;
+        } else if(df == 2) {
+            return 4.303;
+        }
+        double z = 1.959964;
+        double z3 = z * z * z;
+        double z5 = z3 * z * z;
+        double z7 = z5 * z * z;
+        return z + (z3 + z) / (4.0 * df)
+                 + (5 * z5 + 16 * z3 + 3 * z) / (96.0 * df * df)
+                 + (3 * z7 + 19 * z5 + 17 * z3 - 15 * z) / (384.0 * df * df * df);
+    }
+
+    /** Helper: returns the half-width of the 95% confidence interval of the mean. */
+    static double halfWidth(MetricsSummary.Accumulator accumulator)
+    {
+        long n = accumulator.n;
+        if(n < 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return t975((int)(n - 1)) * Math.sqrt(accumulator.m2 / (n - 1) / n);
+    }
+
+    /**
+     * Adds the finished seeds of the condition, in seed order, to its
+     * estimates, up to the first seed that has not finished yet, or until
+     * it has converged or reached maxSeeds.
+     */
+    static void addFinished(Condition condition, String[] outputs, double target,
+                            int minSeeds, int maxSeeds)
+    {
+        while(!condition.done && condition.numSeeds < maxSeeds &&
+              condition.results[condition.numSeeds] != null) {
+            DiseaseSpread.Stats stats = condition.results[condition.numSeeds].stats;
+            for(int o = 0; o < outputs.length; o++) {
+                condition.accumulators[o].add(output(outputs[o], stats));
+            }
+            condition.numSeeds++;
+            boolean converged = condition.numSeeds >= minSeeds;
+            for(int o = 0; o < outputs.length && converged; o++) {
+                converged = halfWidth(condition.accumulators[o]) <= target;
+            }
+            condition.converged = converged;
+            condition.done = converged || condition.numSeeds >= maxSeeds;
+        }
+    }
+
+    /**
+     * Returns the number of seeds the condition is expected to need, from
+     * its estimates so far: the variance does not change, and the
+     * half-width shrinks as 1 / sqrt(seeds). Never more than maxSeeds.
+     */
+    static int seedsNeeded(Condition condition, double target, int minSeeds, int maxSeeds)
+    {
+        int n = condition.numSeeds;
+        if(n < Math.max(minSeeds, 2)) {
+            return Math.min(Math.max(minSeeds, 2), maxSeeds);
+        }
+        double needed = n + 1;
+        for(MetricsSummary.Accumulator accumulator : condition.accumulators) {
+            double ratio = halfWidth(accumulator) / target;
+            needed = Math.max(needed, n * ratio * ratio);
+        }
+        return (int)Math.min(Math.ceil(needed), maxSeeds);
+    }
+
+    /**
+     * Runs an adaptive sweep: keeps running seeds firstSeed, firstSeed + 1,
+     * ... of each point until the 95% confidence intervals of the given
+     * outputs are at most target wide on either side of their means (and at
+     * least minSeeds have run), or until maxSeeds have run. Results go to
+     * the output file as in run(), and results already there are reused.
+     * Returns the conditions in point order.
+     */
+    public List<Condition> runAdaptive(List<String[]> points, long firstSeed,
+                                       String[] outputs, double target,
+                                       int minSeeds, int maxSeeds,
+                                       long numSteps, double until, int numThreads,
+                                       File out) throws IOException, InterruptedException, ExecutionException
+    {
+        for(String output : outputs) {
+            if(!Arrays.asList(outputNames).contains(output)) {
+                throw new RuntimeException("Unknown output '" + output + "'");
+            }
+        }
+        if(minSeeds > maxSeeds) {
+            throw new RuntimeException("At least " + minSeeds + " seeds asked for, but at most " +
+                                       maxSeeds + " allowed");
+        }
+        Map<String, Result> finished = readFinished(out);
+        List<Condition> conditions = new ArrayList<Condition>();
+        int numReused = 0;
+        for(int i = 0; i < points.size(); i++) {
+            Condition condition = new Condition();
+            condition.point = i;
+            condition.args = join(points.get(i));
+            condition.results = new Result[maxSeeds];
+            condition.accumulators = new MetricsSummary.Accumulator[outputs.length];
+            for(int o = 0; o < outputs.length; o++) {
+                condition.accumulators[o] = new MetricsSummary.Accumulator();
+            }
+            for(int s = 0; s < maxSeeds; s++) {
+                condition.results[s] = finished.get(resultKey(condition.args, firstSeed + s));
+            }
+            addFinished(condition, outputs, target, minSeeds, maxSeeds);
+            numReused += condition.numSeeds;
+            conditions.add(condition);
+        }
+        System.err.println("ParameterSweep: " + points.size() + " points, adaptive (" +
+                           minSeeds + " to " + maxSeeds + " seeds each), " + numReused +
+                           " results reused, running on " + numThreads + " threads");
+
+        final DiseaseSpread.SimMaker maker = new DiseaseSpread.SimMaker();
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        CompletionService<Result> results = new ExecutorCompletionService<Result>(pool);
+        Gson gson = new Gson();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(out, true), "UTF-8"));
+        try {
+            int numRunning = 0;
+            int numRun = 0;
+            while(true) {
+                // Keep every worker busy with the point that is furthest
+                // short of the seeds it needs.
+                while(numRunning < numThreads) {
+                    Condition next = null;
+                    int nextShortfall = 0;
+                    for(Condition condition : conditions) {
+                        if(condition.done) {
+                            continue;
+                        }
+                        while(condition.numSubmitted < maxSeeds &&
+                              condition.results[condition.numSubmitted] != null) {
+                            condition.numSubmitted++;
+                        }
+                        if(condition.numSubmitted >= maxSeeds) {
+                            continue;
+                        }
+                        int shortfall = seedsNeeded(condition, target, minSeeds, maxSeeds) -
+                                        condition.numSubmitted;
+                        if(shortfall > nextShortfall) {
+                            next = condition;
+                            nextShortfall = shortfall;
+                        }
+                    }
+                    if(next == null) {
+                        break;
+                    }
+                    results.submit(trial(maker, points, next.point,
+                                         firstSeed + next.numSubmitted, numSteps, until));
+                    next.numSubmitted++;
+                    numRunning++;
+                }
+                if(numRunning == 0) {
+                    break;
+                }
+
+                Result result = results.take().get();
+                numRunning--;
+                numRun++;
+                writer.write(gson.toJson(result));
+                writer.write("\n");
+                writer.flush();
+                Condition condition = conditions.get(result.point);
+                condition.results[(int)(result.seed - firstSeed)] = result;
+                boolean wasDone = condition.done;
+                addFinished(condition, outputs, target, minSeeds, maxSeeds);
+                if(condition.done && !wasDone) {
+                    System.err.println("ParameterSweep: point " + condition.point + " " +
+                                       (condition.converged ? "converged" : "reached the cap") +
+                                       " after " + condition.numSeeds + " seeds (" + numRun +
+                                       " runs so far)");
+                }
+            }
+        } finally {
+            writer.close();
+            pool.shutdownNow();
+        }
+
+        for(Condition condition : conditions) {
+            for(int o = 0; o < outputs.length; o++) {
+                Estimate estimate = new Estimate();
+                estimate.mean = condition.accumulators[o].mean;
+                estimate.halfWidth = halfWidth(condition.accumulators[o]);
+                condition.outputs.put(outputs[o], estimate);
+            }
+        }
+        return conditions;
+    }
+
+    static void displayHelp()
+    {
+        System.out.println("-spec FILE              parameter spec; see ParameterSweep.java for the format");
+        System.out.println("-out FILE               append one JSON line per (point, seed) result to FILE;");
+        System.out.println("                        results already in FILE are skipped");
+        System.out.println("-lhs N                  sample N Latin-hypercube points instead of the full grid");
+        System.out.println("-lhs-seed S             random seed of the Latin-hypercube design (default 1)");
+        System.out.println("-seeds N                run N seeds per point (default " + defaultNumSeeds + ")");
+        System.out.println("-seed S                 first seed; seed i of each point is S + i (default 1)");
+        System.out.println("-for N                  run each trial for N steps (default " + BatchRunner.defaultNumSteps + ")");
+        System.out.println("-until T                stop each trial once the schedule time exceeds T");
+        System.out.println("-threads P              use P worker threads (default: number of cores)");
+        System.out.println("-ci H                   adaptive: run seeds S, S + 1, ... of each point until the 95%");
+        System.out.println("                        confidence intervals of the outputs are within +/- H of their");
+        System.out.println("                        means; -seeds is then the cap (default " + defaultMaxSeeds + ")");
+        System.out.println("-ci-outputs LIST        adaptive: comma-separated outputs, of finalAlive,");
+        System.out.println("                        finalInfected, peakInfected (default " + defaultOutputs + ")");
+        System.out.println("-min-seeds N            adaptive: run at least N seeds per point (default " + defaultMinSeeds + ");");
+        System.out.println("                        may not be more than -seeds");
+        System.out.println("-summary FILE           adaptive: write the seeds used and the estimates of every");
+        System.out.println("                        point to FILE as JSON");
+    }
+
+    /** Runs a parameter sweep without a GUI. */
+    public static void main(String[] args) throws Exception
+    {
+        String sspec = DiseaseSpread.argumentForKey("-spec", args);
+        String sout = DiseaseSpread.argumentForKey("-out", args);
+        if(DiseaseSpread.hasArgument("-help", args) || sspec == null || sout == null) {
+            displayHelp();
+            System.exit(0);
+        }
+
+        int numSeeds = defaultNumSeeds;
+        long firstSeed = 1;
+        long numSteps = BatchRunner.defaultNumSteps;
+        double until = Double.POSITIVE_INFINITY;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+
+        String sns = DiseaseSpread.argumentForKey("-seeds", args);
+        if(sns != null) {
+            numSeeds = Integer.parseInt(sns);
+        }
+        String sse = DiseaseSpread.argumentForKey("-seed", args);
+        if(sse != null) {
+            firstSeed = Long.parseLong(sse);
+        }
+        String sfo = DiseaseSpread.argumentForKey("-for", args);
+        if(sfo != null) {
+            numSteps = Long.parseLong(sfo);
+        }
+        String sun = DiseaseSpread.argumentForKey("-until", args);
+        if(sun != null) {
+            until = Double.parseDouble(sun);
+        }
+        String sth = DiseaseSpread.argumentForKey("-threads", args);
+        if(sth != null) {
+            numThreads = Integer.parseInt(sth);
+        }
+
+        ParameterSweep sweep = new ParameterSweep(new File(sspec));
+        List<String[]> points;
+        String slhs = DiseaseSpread.argumentForKey("-lhs", args);
+        if(slhs != null) {
+            long lhsSeed = 1;
+            String sls = DiseaseSpread.argumentForKey("-lhs-seed", args);
+            if(sls != null) {
+                lhsSeed = Long.parseLong(sls);
+            }
+            points = sweep.latinHypercubeDesign(Integer.parseInt(slhs), lhsSeed);
+        } else {
+            points = sweep.gridDesign();
+        }
+
+        String sci = DiseaseSpread.argumentForKey("-ci", args);
+        if(sci == null) {
+            sweep.run(points, firstSeed, numSeeds, numSteps, until, numThreads, new File(sout));
+            System.exit(0);
+        }
+
+        int minSeeds = defaultMinSeeds;
+        String sms = DiseaseSpread.argumentForKey("-min-seeds", args);
+        if(sms != null) {
+            minSeeds = Integer.parseInt(sms);
+        }
+        int maxSeeds = (sns != null) ? numSeeds : defaultMaxSeeds;
+        if(minSeeds > maxSeeds) {
+            System.err.println("ParameterSweep: -min-seeds (" + minSeeds +
+                               ") can't be more than -seeds (" + maxSeeds + ")");
+            System.exit(1);
+        }
+        String outputs = defaultOutputs;
+        String sco = DiseaseSpread.argumentForKey("-ci-outputs", args);
+        if(sco != null) {
+            outputs = sco;
+        }
+        List<Condition> conditions = sweep.runAdaptive(
+                points, firstSeed, outputs.split(","), Double.parseDouble(sci),
+                minSeeds, maxSeeds,
+                numSteps, until, numThreads, new File(sout));
+        int totalSeeds = 0;
+        for(Condition condition : conditions) {
+            totalSeeds += condition.numSeeds;
+        }
+        System.err.println("ParameterSweep: " + conditions.size() + " points, " + totalSeeds +
+                           " seeds in all");
+        String ssu = DiseaseSpread.argumentForKey("-summary", args);
+        if(ssu != null) {
+            Writer writer = new BufferedWriter(new FileWriter(ssu));
+            new Gson().toJson(conditions, writer);
+            writer.write("\n");
+            writer.close();
+        }
+        System.exit(0);
+    }
+}
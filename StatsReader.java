@@ -0,0 +1,202 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a columnar stats file written by StatsSink. The file is memory-mapped
+ * and values are read in place, so scanning the files of thousands of runs
+ * never loads them into the heap. A file cut short by a crash is read up to
+ * its last complete block.
+ *
+ * Run from the cmdline, exports stats files as CSV (default) or JSON.
+ */
+public class StatsReader
+{
+    protected final String path;
+    protected final MappedByteBuffer buf;
+    protected final String[] names;
+    protected final byte[] types;
+    protected final int blockRows;
+    protected int numRows;
+
+    // Block b starts at blockStart[b]; column c of the block starts at
+    // blockStart[b] + 4 + (rows in block b) * columnOffset[c].
+    protected long[] blockStart;
+    protected final int[] columnOffset;
+
+    /** Opens and maps the given stats file. */
+    public StatsReader(String path) throws IOException
+    {
+        this.path = path;
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            buf = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+
+        for(int i = 0; i < StatsSink.magic.length; i++) {
+            if(buf.get() != StatsSink.magic[i]) {
+                throw new IOException(path + " is not a stats file");
+            }
+        }
+        blockRows = buf.getInt();
+        int numColumns = buf.getInt();
+        names = new String[numColumns];
+        types = new byte[numColumns];
+        columnOffset = new int[numColumns];
+        int rowWidth = 0;
+        for(int c = 0; c < numColumns; c++) {
+            types[c] = buf.get();
+            byte[] name = new byte[buf.getShort()];
+            buf.get(name);
+            names[c] = new String(name, "UTF-8");
+            columnOffset[c] = rowWidth;
+            rowWidth += (types[c] == StatsSink.INT ? 4 : 8);
+        }
+
+        // Find the complete blocks.
+        long offset = buf.position();
+        blockStart = new long[16];
+        int numBlocks = 0;
+        while(offset + 4 <= buf.limit()) {
+            int n = buf.getInt((int)offset);
+            long length = 4 + (long)n * rowWidth;
+            if(offset + length > buf.limit()) {
+                break;  // truncated
+            }
+            if(numBlocks == blockStart.length) {
+                blockStart = java.util.Arrays.copyOf(blockStart, 2 * numBlocks);
+            }
+            blockStart[numBlocks++] = offset;
+            numRows += n;
+            offset += length;
+        }
+    }
+
+    /** Returns the names of the columns. */
+    public String[] getColumnNames()
+    {
+        return names;
+    }
+
+    /** Returns the index of the column with the given name, or -1. */
+    public int getColumn(String name)
+    {
+        for(int c = 0; c < names.length; c++) {
+            if(names[c].equals(name)) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns true if column c holds doubles rather than ints. */
+    public boolean isDouble(int c)
+    {
+        return types[c] == StatsSink.DOUBLE;
+    }
+
+    /** Returns the number of rows in the file. */
+    public int getNumRows()
+    {
+        return numRows;
+    }
+
+    /** Returns the value of int column c in the given row. */
+    public int getInt(int c, int row)
+    {
+        return buf.getInt(position(c, row));
+    }
+
+    /** Returns the value of column c in the given row, as a double. */
+    public double getDouble(int c, int row)
+    {
+        if(types[c] == StatsSink.INT) {
+            return buf.getInt(position(c, row));
+        }
+        return buf.getDouble(position(c, row));
+    }
+
+    /** Helper: returns the position of a value in the file. */
+    private int position(int c, int row)
+    {
+        if(row < 0 || row >= numRows) {
+            throw new IndexOutOfBoundsException("row " + row + " of " + numRows);
+        }
+        int b = row / blockRows;
+        int rowsInBlock = Math.min(blockRows, numRows - b * blockRows);
+        int width = (types[c] == StatsSink.INT ? 4 : 8);
+        return (int)(blockStart[b] + 4 + (long)rowsInBlock * columnOffset[c] +
+                     (long)(row - b * blockRows) * width);
+    }
+
+    /** Helper: formats value of column c in the given row. */
+    private String format(int c, int row)
+    {
+        if(types[c] == StatsSink.INT) {
+            return Integer.toString(getInt(c, row));
+        }
+        return Double.toString(getDouble(c, row));
+    }
+
+    /** Writes the file as CSV, with a header line of column names. */
+    public void writeCSV(PrintWriter out)
+    {
+        for(int c = 0; c < names.length; c++) {
+            out.print(c > 0 ? "," : "");
+            out.print(names[c]);
+        }
+        out.println();
+        for(int row = 0; row < numRows; row++) {
+            for(int c = 0; c < names.length; c++) {
+                out.print(c > 0 ? "," : "");
+                out.print(format(c, row));
+            }
+            out.println();
+        }
+    }
+
+    /**
+     * Writes the file as a JSON object mapping each column name to its list
+     * of values, the same shape as the old Gson dump of DiseaseSpread.Stats.
+     */
+    public void writeJSON(PrintWriter out)
+    {
+        out.print("{");
+        for(int c = 0; c < names.length; c++) {
+            out.print(c > 0 ? "," : "");
+            out.print("\"" + names[c] + "\":[");
+            for(int row = 0; row < numRows; row++) {
+                out.print(row > 0 ? "," : "");
+                out.print(format(c, row));
+            }
+            out.print("]");
+        }
+        out.println("}");
+    }
+
+    /** Exports the given stats files to stdout. */
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length == 0 || DiseaseSpread.hasArgument("-help", args)) {
+            System.out.println("usage: java StatsReader [-json] FILE...");
+            System.out.println("Writes each stats file as CSV, or with -json as one JSON object per line.");
+            System.exit(0);
+        }
+        boolean json = DiseaseSpread.hasArgument("-json", args);
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        for(String arg : args) {
+            if(arg.equalsIgnoreCase("-json")) {
+                continue;
+            }
+            StatsReader reader = new StatsReader(arg);
+            if(json) {
+                reader.writeJSON(out);
+            } else {
+                reader.writeCSV(out);
+            }
+        }
+        out.close();
+    }
+}
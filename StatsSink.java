@@ -0,0 +1,131 @@
+import java.io.*;
+
+/**
+ * Streams rows of samples into a compact columnar file. Rows are buffered in
+ * one primitive array per column, and every blockRows rows the buffers are
+ * written out as a block, column after column. Memory use is therefore flat
+ * no matter how long the run is. See StatsReader for reading the file back.
+ *
+ * File layout (all numbers big-endian):
+ *   header: the 8 bytes "DSSTATS1", int blockRows, int numColumns, then for
+ *           each column: byte type ('i' int32 or 'd' float64), short name
+ *           length, and the UTF-8 bytes of the name;
+ *   blocks: int numRows, then numRows values of each column in turn. Every
+ *           block but the last has exactly blockRows rows.
+ */
+class StatsSink
+{
+    // Format parameters:
+    protected static final byte[] magic = {'D', 'S', 'S', 'T', 'A', 'T', 'S', '1'};
+    protected static final byte INT = 'i';
+    protected static final byte DOUBLE = 'd';
+    protected static final int defaultBlockRows = 4096;
+
+    protected final String path;
+    protected final byte[] types;
+    protected final int blockRows;
+    protected DataOutputStream out;
+
+    // Buffered rows of the current block. Column c lives in ints[c] or
+    // doubles[c], depending on its type.
+    private final int[][] ints;
+    private final double[][] doubles;
+    private int numRows;
+
+    /**
+     * Creates the file at path, with the given column names and types, and
+     * writes the header.
+     */
+    public StatsSink(String path, String[] names, byte[] types, int blockRows)
+    {
+        this.path = path;
+        this.types = types;
+        this.blockRows = blockRows;
+        ints = new int[names.length][];
+        doubles = new double[names.length][];
+        for(int c = 0; c < names.length; c++) {
+            if(types[c] == INT) {
+                ints[c] = new int[blockRows];
+            } else if(types[c] == DOUBLE) {
+                doubles[c] = new double[blockRows];
+            } else {
+                throw new IllegalArgumentException("Unknown column type " + (char)types[c]);
+            }
+        }
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+            out.write(magic);
+            out.writeInt(blockRows);
+            out.writeInt(names.length);
+            for(int c = 0; c < names.length; c++) {
+                byte[] name = names[c].getBytes("UTF-8");
+                out.writeByte(types[c]);
+                out.writeShort(name.length);
+                out.write(name);
+            }
+        } catch(IOException e) {
+            throw new RuntimeException("Could not write stats to " + path, e);
+        }
+    }
+
+    /** Sets int column c of the current row. */
+    public void set(int c, int value)
+    {
+        ints[c][numRows] = value;
+    }
+
+    /** Sets double column c of the current row. */
+    public void set(int c, double value)
+    {
+        doubles[c][numRows] = value;
+    }
+
+    /** Finishes the current row, writing out the block if it is full. */
+    public void endRow()
+    {
+        numRows++;
+        if(numRows == blockRows) {
+            flushBlock();
+        }
+    }
+
+    /** Writes out the last, partial block and closes the file. */
+    public void close()
+    {
+        if(out == null) {
+            return;
+        }
+        if(numRows > 0) {
+            flushBlock();
+        }
+        try {
+            out.close();
+        } catch(IOException e) {
+            throw new RuntimeException("Could not write stats to " + path, e);
+        }
+        out = null;
+    }
+
+    /** Helper: writes the buffered rows as one block. */
+    private void flushBlock()
+    {
+        try {
+            out.writeInt(numRows);
+            for(int c = 0; c < types.length; c++) {
+                if(types[c] == INT) {
+                    for(int i = 0; i < numRows; i++) {
+                        out.writeInt(ints[c][i]);
+                    }
+                } else {
+                    for(int i = 0; i < numRows; i++) {
+                        out.writeDouble(doubles[c][i]);
+                    }
+                }
+            }
+        } catch(IOException e) {
+            throw new RuntimeException("Could not write stats to " + path, e);
+        }
+        numRows = 0;
+    }
+}
@@ -0,0 +1,190 @@
+import ec.util.*;
+import java.util.concurrent.*;
+import sim.engine.*;
+
+/**
+ * Steps all agents at once, in synchronous mode. Every agent computes its
+ * next state from a read-only snapshot of the previous step (the current
+ * arrays of the AgentStore), on a fork-join pool. The writes are then
+ * committed in one serial phase, in id order:
+ *
+ * 1) deaths and energy drain are applied to the simulation totals;
+ * 2) agents that want the same food item are settled by a priority drawn
+ *    from (seed, step, agent id), and the winner eats and shares the item;
+ * 3) infections and recoveries are counted;
+ * 4) the next-step buffers become current.
+ *
+ * Each agent draws its random numbers from its own CounterRandom stream for
+ * (seed, agent id, step), so the results do not depend on the number of
+ * threads.
+ */
+class SynchronousStepper implements Steppable
+{
+    // Stepper parameters:
+    protected static final int agentsPerTask = 64;
+
+    protected final AgentStore store;
+    protected final Agent[] agents;
+    protected final int numThreads;
+    protected ForkJoinPool pool;
+
+    // Per-thread scratch space for the compute phase.
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    static class Scratch {
+        NeighborIndex.Neighborhood nearby = new NeighborIndex.Neighborhood();
+        CounterRandom random = new CounterRandom(0);
+    };
+
+    /**
+     * Creates a stepper for the given views onto all agents of the store,
+     * indexed by id, which puts the store in synchronous mode.
+     */
+    public SynchronousStepper(AgentStore store, Agent[] agents, int numThreads)
+    {
+        this.store = store;
+        this.agents = agents;
+        store.setDoubleBuffered();
+        this.numThreads = numThreads;
+        if(numThreads > 1) {
+            pool = new ForkJoinPool(numThreads);
+        }
+    }
+
+    /** Steps all agents: computes every next state, then commits. */
+    public void step(final SimState state)
+    {
+        final DiseaseSpread sim = (DiseaseSpread)state;
+        final long steps = sim.schedule.getSteps();
+        if(pool == null) {
+            compute(sim, steps, 0, agents.length);
+        } else {
+            pool.invoke(new ComputeTask(sim, steps, 0, agents.length));
+        }
+        commit(sim, steps);
+    }
+
+    /** Stops the worker threads. */
+    public void shutdown()
+    {
+        if(pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /** Splits the compute phase into ranges of about agentsPerTask agents. */
+    class ComputeTask extends RecursiveAction {
+        final DiseaseSpread sim;
+        final long steps;
+        final int from, to;
+
+        ComputeTask(DiseaseSpread sim, long steps, int from, int to) {
+            this.sim = sim;
+            this.steps = steps;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if(to - from <= agentsPerTask) {
+                SynchronousStepper.this.compute(sim, steps, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ComputeTask(sim, steps, from, mid),
+                      new ComputeTask(sim, steps, mid, to));
+        }
+    };
+
+    /** Computes the next state of agents [from, to). */
+    void compute(DiseaseSpread sim, long steps, int from, int to)
+    {
+        Scratch s = scratch.get();
+        long seed = sim.seed();
+        for(int id = from; id < to; id++) {
+            s.random.setStream(seed, id, steps);
+            agents[id].computeNext(sim, s.random, s.nearby);
+        }
+    }
+
+    /** Applies the next states computed by all agents. */
+    void commit(DiseaseSpread sim, long steps)
+    {
+        long seed = sim.seed();
+        FoodField food = sim.foodField;
+
+        // Drain energy, remove the agents that died, and claim food.
+        for(int id = 0; id < agents.length; id++) {
+            if(!store.isAlive(id)) {
+                continue;
+            }
+            double actualDrain = store.energy[id] - Math.max(store.nextEnergy[id], 0);
+            sim.totalEnergy -= actualDrain;
+            sim.totalEnergyAgents -= actualDrain;
+            if(store.nextEnergy[id] <= 0) { // agent has died
+                sim.environment.remove(agents[id]);
+                sim.events.log(EventLog.DIED, id, 0, 0);
+                sim.deaths.increment();
+                sim.numAgentsAlive--;
+                if(store.infected[id]) {
+                    sim.numAgentsInfected--;
+                }
+                continue;
+            }
+            int meal = store.meal[id];
+            if(meal >= 0) {
+                long priority = CounterRandom.streamKey(seed, steps, id);
+                if(food.claimant[meal] < 0 || priority < food.claimPriority[meal]) {
+                    food.claimant[meal] = id;
+                    food.claimPriority[meal] = priority;
+                }
+            }
+        }
+
+        // Feed the winners. Sharing goes to the agents within range at the
+        // start of the step that survived it.
+        NeighborIndex.Neighborhood nearby = sim.neighborhood;
+        for(int id = 0; id < agents.length; id++) {
+            int meal = store.meal[id];
+            if(meal < 0 || food.claimant[meal] != id || store.nextEnergy[id] <= 0) {
+                continue;
+            }
+            sim.neighborIndex.query(store, id, Agent.sharingRange, nearby);
+            agents[id].eat(sim, meal, nearby);
+        }
+        for(int id = 0; id < agents.length; id++) {
+            int meal = store.meal[id];
+            if(meal >= 0) {
+                food.claimant[meal] = -1;
+                store.meal[id] = -1;
+            }
+        }
+
+        // Count infections and recoveries.
+        for(int id = 0; id < agents.length; id++) {
+            if(store.nextEnergy[id] <= 0 || store.nextInfected[id] == store.infected[id]) {
+                continue;
+            }
+            if(store.nextInfected[id]) {
+                sim.events.log(EventLog.INFECTED, id, store.infectionSource[id],
+                               store.nextSymptomVisibility[id]);
+                sim.infections.increment();
+                sim.numAgentsInfected++;
+            } else {
+                sim.events.log(EventLog.RECOVERED, id, 0, store.nextSymptomVisibility[id]);
+                sim.recoveries.increment();
+                sim.numAgentsInfected--;
+            }
+        }
+
+        store.swap();
+        if(sim.guiAttached) {
+            sim.syncEnvironment();
+        }
+    }
+}
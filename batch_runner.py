@@ -8,36 +8,24 @@ import sys
 import tempfile
 import time
 
-sim_exe = ["java", "DiseaseSpread"]
+sim_exe = ["java", "BatchRunner"]
 
 
-def extract_time_series(stats, num_trials, num_samples, key):
-    "Helper: extracts a time series from JSON stats."
-    result = np.empty((num_trials, num_samples), dtype=np.int)
-    for trial, stat in enumerate(stats):
-        result[trial] = stat[key]
-    return result
-
-
-def plot_num_agents(stats, title, fig_path):
+def plot_num_agents(summary, title, fig_path):
     """
-    Plots number of total agents and number of sick agents, min, max, mean,
-    and std. stats is a list of JSON stats from the simulation.
+    Plots number of total agents and number of sick agents, mean and std.
+    summary is the JSON summary of all trials written by BatchRunner -summary.
     """
-    num_trials = len(stats)
-    assert num_trials > 0
-    num_samples = len(stats[0]['numAgentsAlive'])
-    assert num_samples > 0
-    xs = np.array(stats[0]['step'])
-    agents_alive = extract_time_series(stats, num_trials, num_samples, 'numAgentsAlive')
-    agents_infected = extract_time_series(stats, num_trials, num_samples, 'numAgentsInfected')
+    assert summary['numTrials'] > 0
+    xs = np.array(summary['step'])
+    assert len(xs) > 0
+    alive = summary['metrics']['numAgentsAlive']
+    infected = summary['metrics']['numAgentsInfected']
     fig = plt.figure()
     ax = fig.add_subplot(111)
-    ax.errorbar(xs, np.mean(agents_alive, axis=0),
-                yerr=np.std(agents_alive, axis=0),
+    ax.errorbar(xs, alive['mean'], yerr=alive['sd'],
                 color='green', label='alive')
-    ax.errorbar(xs, np.mean(agents_infected, axis=0),
-                yerr=np.std(agents_infected, axis=0),
+    ax.errorbar(xs, infected['mean'], yerr=infected['sd'],
                 color='red', label='infected')
     ax.set_ylim(-5, 25)
     ax.set_title(title)
@@ -49,53 +37,40 @@ def plot_num_agents(stats, title, fig_path):
 
 def batch_run(num_trials, sim_args):
     """
-    Runs the simulation num_trials times, with the given sim_args. Saves logs
-    and reports aggregate statistics.
+    Runs the simulation num_trials times, with the given sim_args. The trials
+    run in parallel inside a single JVM (see BatchRunner.java), which
+    aggregates their metrics on the fly. Saves the log and returns the
+    summary.
     """
-    # Stats extracted from each run:
-    stats = []
-    run_times = []
     total_time = time.time()
 
     # Run num_trials simulations:
     print >>sys.stderr, "Running simulation %d times with args: %s" % (
             num_trials, sim_args)
     temp_dir = tempfile.mkdtemp(prefix='batch-', dir='.')
-    log_pat = temp_dir + "/run%02d.log"
+    log_path = temp_dir + "/batch.log"
+    out_path = temp_dir + "/stats.json"
     print "Temp dir: %s" % temp_dir
-    for trial in range(num_trials):
-        # Run the simulation:
-        log = open(log_pat % trial, 'w+')
-        print "trial %d:" % trial
-        run_time = time.time()
-        subprocess.call(sim_exe + sim_args, stdout=log, stderr=log)
-        run_time = time.time() - run_time
-        run_times.append(run_time)
-        print "  -> done in %f seconds" % run_time
+    log = open(log_path, 'w')
+    subprocess.call(sim_exe + ["-trials", str(num_trials), "-summary", "-out", out_path] + sim_args,
+                    stdout=log, stderr=log)
+    log.close()
+
+    # Collect stats. Format: {numTrials, step, metrics, runTime}, where
+    # metrics maps each metric to its {mean, sd, min, max, p05, p50, p95}
+    # lists, with one element per sample.
+    summary = json.load(open(out_path))
+    assert summary['numTrials'] == num_trials
+    run_times = summary['runTime']
 
-        # Collect stats from log. Format:
-        # ==============================================================================
-        # End-of-run statistics:
-        # <json data>
-        # Quit
-        log.seek(0)
-        for line in log:
-            if line.startswith('======='):
-                break
-        log.next()
-        data = json.loads(log.next())
-        assert data
-        stats.append(data)
-        print "  -> extracted stats"
-    
     total_time = time.time() - total_time
     print
     print "run_times: min=%f max=%f mean=%f std=%f" % (
-        np.min(run_times), np.max(run_times),
-        np.mean(run_times), np.std(run_times))
+        run_times['min'], run_times['max'],
+        run_times['mean'], run_times['sd'])
     print
     print "-> %d trials finished in %f seconds" % (num_trials, total_time)
-    return stats
+    return summary
 
 
 if __name__ == "__main__":
@@ -133,8 +108,7 @@ if __name__ == "__main__":
         raise Exception("--fig required")
 
     # Run it!
-    stats = batch_run(num_trials, sim_args)
+    summary = batch_run(num_trials, sim_args)
 
     # Show aggregate stats:
-    assert len(stats) == num_trials
-    plot_num_agents(stats, title, fig_path)
+    plot_num_agents(summary, title, fig_path)
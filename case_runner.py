@@ -19,7 +19,7 @@ if __name__ == "__main__":
                     print
                     print "*" * 78
                     print "Doing %s:" % title
-                    stats = batch_run(num_trials, sim_args)
-                    plot_num_agents(stats, title, fig_path)
+                    summary = batch_run(num_trials, sim_args)
+                    plot_num_agents(summary, title, fig_path)
 
     print "All done."
@@ -0,0 +1,220 @@
+package ec.util;
+import java.io.*;
+
+/**
+ * <h3>CounterRandom</h3>
+ *
+ * <p>A counter-based random number generator for parallel simulations.  The
+ * n-th number of a stream is a hash of (key, n), where the key is itself a
+ * hash of a seed and two stream numbers -- for example an agent's id and the
+ * current step.  Every (seed, stream, substream) triple thus names its own
+ * independent stream, which any thread can recreate in a few operations
+ * with setStream(...), without coordinating with other threads.  If each
+ * agent draws only from the stream for (seed, agent id, step), a parallel
+ * run produces exactly the same numbers no matter how many threads step the
+ * agents or in which order.
+ *
+ * <p>The output function is that of SplitMix64 (Steele, Lea and Flood, "Fast
+ * Splittable Pseudorandom Number Generators", OOPSLA 2014), which passes
+ * BigCrush.  It is far cheaper to create or reseed than MersenneTwisterFast,
+ * whose 624-word state must be initialized on every setSeed(...).  The
+ * generator can also skip ahead (skip(...)) and split off a new generator
+ * (split()).
+ *
+ * <p>Like MersenneTwisterFast, CounterRandom is not synchronized: each
+ * thread should use its own instance.
+ */
+
+public strictfp class CounterRandom implements Serializable, Cloneable, RandomSource
+    {
+    private static final long serialVersionUID = 1;
+
+    // The Weyl-sequence increment of SplitMix64: an odd approximation of 2^64 / phi
+    private static final long GAMMA = 0x9e3779b97f4a7c15L;
+    private static final double DOUBLE_UNIT = 1.0 / (1L << 53);
+    private static final float FLOAT_UNIT = 1.0f / (1 << 24);
+
+    private long key;
+    private long counter;
+
+    private double __nextNextGaussian;
+    private boolean __haveNextNextGaussian;
+
+    /** Constructor for the stream of the given seed. */
+    public CounterRandom(final long seed)
+        {
+        this(seed, 0, 0);
+        }
+
+    /** Constructor for the given stream and substream of the given seed. */
+    public CounterRandom(final long seed, final long stream, final long substream)
+        {
+        setStream(seed, stream, substream);
+        }
+
+    public Object clone()
+        {
+        try
+            {
+            return super.clone();
+            }
+        catch (CloneNotSupportedException e) { throw new InternalError(); } // should never happen
+        }
+
+    /** Switches to the stream of the given seed, from its beginning. */
+    public void setSeed(final long seed)
+        {
+        setStream(seed, 0, 0);
+        }
+
+    /**
+     * Switches to the given stream and substream of the given seed, from its
+     * beginning.  Allocates nothing, so it's fine to call once per agent per step.
+     */
+    public void setStream(final long seed, final long stream, final long substream)
+        {
+        key = streamKey(seed, stream, substream);
+        counter = 0;
+        __haveNextNextGaussian = false;
+        }
+
+    /**
+     * Returns the key of the given stream and substream of the given seed.
+     * Also useful on its own as a well-mixed hash of the three numbers, for
+     * instance to break ties deterministically.
+     */
+    public static long streamKey(final long seed, final long stream, final long substream)
+        {
+        return mix(mix(mix(seed) + stream) + substream);
+        }
+
+    /** Skips the next n longs of the stream.  n may be negative, to go back. */
+    public void skip(final long n)
+        {
+        counter += n;
+        __haveNextNextGaussian = false;
+        }
+
+    /**
+     * Returns a new generator whose stream is independent of this one's, and
+     * advances this one by one number.
+     */
+    public CounterRandom split()
+        {
+        CounterRandom other = (CounterRandom)clone();
+        other.key = mix(nextLong());
+        other.counter = 0;
+        other.__haveNextNextGaussian = false;
+        return other;
+        }
+
+    /** Returns true if o is a CounterRandom at the same position of the same stream. */
+    public boolean stateEquals(Object o)
+        {
+        if (o == this) return true;
+        if (o == null || !(o instanceof CounterRandom)) return false;
+        CounterRandom other = (CounterRandom) o;
+        return key == other.key && counter == other.counter &&
+            __haveNextNextGaussian == other.__haveNextNextGaussian &&
+            (!__haveNextNextGaussian || __nextNextGaussian == other.__nextNextGaussian);
+        }
+
+    /** Reads the entire state of the generator from a stream. */
+    public void readState(DataInputStream stream) throws IOException
+        {
+        key = stream.readLong();
+        counter = stream.readLong();
+        __nextNextGaussian = stream.readDouble();
+        __haveNextNextGaussian = stream.readBoolean();
+        }
+
+    /** Writes the entire state of the generator to a stream. */
+    public void writeState(DataOutputStream stream) throws IOException
+        {
+        stream.writeLong(key);
+        stream.writeLong(counter);
+        stream.writeDouble(__nextNextGaussian);
+        stream.writeBoolean(__haveNextNextGaussian);
+        }
+
+    // The SplitMix64 output function (Stafford's Mix13)
+    private static long mix(long z)
+        {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+        }
+
+    public final long nextLong()
+        {
+        return mix(key + (++counter) * GAMMA);
+        }
+
+    public final int nextInt()
+        {
+        return (int)(nextLong() >>> 32);
+        }
+
+    public final int nextInt(final int n)
+        {
+        if (n<=0)
+            throw new IllegalArgumentException("n must be positive, got: " + n);
+
+        int bits, val;
+        do
+            {
+            bits = (int)(nextLong() >>> 33);
+            val = bits % n;
+            }
+        while(bits - val + (n-1) < 0);
+        return val;
+        }
+
+    public final boolean nextBoolean()
+        {
+        return nextLong() < 0;
+        }
+
+    public final boolean nextBoolean(final double probability)
+        {
+        if (probability < 0.0 || probability > 1.0)
+            throw new IllegalArgumentException ("probability must be between 0.0 and 1.0 inclusive.");
+        if (probability==0.0) return false;             // fix half-open issues
+        else if (probability==1.0) return true;         // fix half-open issues
+        return nextDouble() < probability;
+        }
+
+    public final float nextFloat()
+        {
+        return (nextLong() >>> 40) * FLOAT_UNIT;
+        }
+
+    public final double nextDouble()
+        {
+        return (nextLong() >>> 11) * DOUBLE_UNIT;
+        }
+
+    public final double nextGaussian()
+        {
+        if (__haveNextNextGaussian)
+            {
+            __haveNextNextGaussian = false;
+            return __nextNextGaussian;
+            }
+        else
+            {
+            double v1, v2, s;
+            do
+                {
+                v1 = 2 * nextDouble() - 1;
+                v2 = 2 * nextDouble() - 1;
+                s = v1 * v1 + v2 * v2;
+                }
+            while (s >= 1 || s==0);
+            double multiplier = StrictMath.sqrt(-2 * StrictMath.log(s)/s);
+            __nextNextGaussian = v2 * multiplier;
+            __haveNextNextGaussian = true;
+            return v1 * multiplier;
+            }
+        }
+    }
@@ -0,0 +1,34 @@
+package ec.util;
+
+/**
+ * The random-number methods shared by MersenneTwisterFast and CounterRandom,
+ * for code that may draw from either one.  The contracts are those of the
+ * same-named methods in java.util.Random.
+ */
+
+public interface RandomSource
+    {
+    /** Returns a random int. */
+    public int nextInt();
+
+    /** Returns a random int in the range [0, n).  n must be positive. */
+    public int nextInt(final int n);
+
+    /** Returns a random long. */
+    public long nextLong();
+
+    /** Returns a random boolean. */
+    public boolean nextBoolean();
+
+    /** Returns true with the given probability, which must be in [0.0, 1.0]. */
+    public boolean nextBoolean(final double probability);
+
+    /** Returns a random float in the half-open range [0.0f, 1.0f). */
+    public float nextFloat();
+
+    /** Returns a random double in the half-open range [0.0, 1.0). */
+    public double nextDouble();
+
+    /** Returns a normally distributed double with mean 0.0 and standard deviation 1.0. */
+    public double nextGaussian();
+    }
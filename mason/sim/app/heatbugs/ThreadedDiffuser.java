@@ -59,7 +59,8 @@ public /*strictfp*/ class ThreadedDiffuser implements Steppable
         
         
     /** We'll have HeatBugs call this in its stop() method to give US a chance to
-        call cleanup on our underlying ParallelSequence so we don't leak threads. */
+        call cleanup on our underlying ParallelSequence.  ParallelSequences no longer
+        hold threads of their own, so this does nothing, but it's harmless. */
     public void cleanup()
         {
         diffusers.cleanup();
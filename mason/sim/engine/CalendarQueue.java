@@ -0,0 +1,236 @@
+/*
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.engine;
+import sim.util.*;
+
+/**
+   A calendar queue (a bucketed "time wheel") for the Schedule, tuned for simulations in which nearly
+   all events occur at integer times a short way into the future -- for example, agents which are
+   scheduled repeating with an interval of 1.0.  Insertion and extraction of such events are O(1) amortized,
+   rather than O(log n) as in a binary Heap.
+
+   <p>The queue holds a wheel of <i>numBuckets</i> buckets.  An event whose Schedule.Key has an integer time t
+   in the window [base, base + numBuckets) goes into bucket t mod numBuckets, where it joins the group of
+   events with the same ordering.  Each bucket keeps its groups sorted by ordering, so extracting the minimum
+   simply takes the first group of the first non-empty bucket.  All other events -- non-integer times
+   (such as getTime() + epsilon), times beyond the window, or times before it -- go into an ordinary
+   binary Heap, and the queue always returns whichever minimum is smaller.  Thus the CalendarQueue
+   returns exactly the same events for each time and ordering as a Heap would, and the Schedule shuffles
+   them as usual.
+
+   <p>Each group comes out in the order in which a Heap holding only that group would return it: the first
+   event added, then the rest from the last added back.  A Heap holding other keys as well returns equal keys in
+   an order which depends on everything else it holds, and no queue short of a Heap can mimic that.  So a given
+   seed reproduces a run with a Heap only when the queue holds nothing but events with a single ordering, all
+   repeating at an interval of 1 (say, a model whose agents are its only Steppables).  Otherwise the events of each
+   time and ordering are still shuffled uniformly at random, but not into the same order as with a Heap, and if the
+   Schedule doesn't shuffle, they're stepped in a different order.
+
+   <p>You can have a Schedule use a CalendarQueue by calling its setCalendarQueue(true) method.
+   If you run this class from the command line, it benchmarks itself against Heap.
+*/
+
+public class CalendarQueue extends Heap
+    {
+    /** The default number of buckets.  Events more than this far into the future go into the overflow Heap. */
+    public static final int DEFAULT_NUM_BUCKETS = 64;
+
+    // events with the same time and ordering, extracted together
+    static class Group implements java.io.Serializable
+        {
+        Schedule.Key key;
+        Bag events = new Bag();
+        Group next;  // the group with the next higher ordering in the same bucket
+        }
+
+    // bucket i holds the groups at time t, where t mod numBuckets == i, sorted by ordering
+    Group[] buckets;
+    int mask;
+    // no event in the wheel is earlier than base, or at or later than base + buckets.length
+    long base = 0;
+    // the number of events in the wheel
+    int numWheel = 0;
+    // the events which don't fit in the wheel
+    Heap overflow = new Heap();
+    // emptied groups, kept to be reused
+    Group spare = null;
+
+    /** Creates a CalendarQueue with DEFAULT_NUM_BUCKETS buckets. */
+    public CalendarQueue()
+        {
+        this(DEFAULT_NUM_BUCKETS);
+        }
+
+    /** Creates a CalendarQueue with at least the given number of buckets (rounded up to a power of two).
+        Choose this to be larger than the longest interval at which your events commonly recur. */
+    public CalendarQueue(int numBuckets)
+        {
+        int n = 1;
+        while(n < numBuckets) n *= 2;
+        buckets = new Group[n];
+        mask = n - 1;
+        }
+
+    // returns the first group of the wheel, moving base up to its time, or null if the wheel is empty
+    Group wheelMin()
+        {
+        if (numWheel == 0) return null;
+        Group[] buckets = this.buckets;
+        while(buckets[(int)(base & mask)] == null)  // there's an event within the window, so this terminates
+            base++;
+        return buckets[(int)(base & mask)];
+        }
+
+    public Comparable getMinKey()
+        {
+        Group g = wheelMin();
+        Comparable overflowMin = overflow.getMinKey();
+        if (g == null) return overflowMin;
+        if (overflowMin != null && overflowMin.compareTo(g.key) < 0) return overflowMin;
+        return g.key;
+        }
+
+    public Bag extractMin(Bag putInHere)
+        {
+        if (putInHere == null) putInHere = new Bag();
+        Comparable min = getMinKey();
+        if (min == null) return putInHere;
+
+        Group g = wheelMin();
+        if (g != null && g.key.compareTo(min) == 0)
+            {
+            // in the order a Heap returns equal keys: the first one added, then the rest from the last one back
+            Bag events = g.events;
+            Object[] objs = events.objs;
+            putInHere.add(objs[0]);
+            for(int i = events.numObjs - 1; i > 0; i--)
+                putInHere.add(objs[i]);
+            numWheel -= events.numObjs;
+            removeFirst(g);
+            }
+        Comparable overflowMin = overflow.getMinKey();
+        if (overflowMin != null && overflowMin.compareTo(min) == 0)
+            overflow.extractMin(putInHere);
+        return putInHere;
+        }
+
+    public Object extractMin()
+        {
+        Comparable min = getMinKey();
+        if (min == null) return null;
+
+        Group g = wheelMin();
+        if (g != null && g.key == min)
+            {
+            Object result = g.events.remove(0);  // moves the last one to the front, as Heap does
+            numWheel--;
+            if (g.events.numObjs == 0) removeFirst(g);
+            return result;
+            }
+        return overflow.extractMin();
+        }
+
+    public void add(Object elem, Comparable key)
+        {
+        if (!(key instanceof Schedule.Key))
+            { overflow.add(elem, key); return; }
+        Schedule.Key k = (Schedule.Key)key;
+        double time = k.time;
+        long t = (long)time;
+        if (t != time)  // not an integer (or too big to be one)
+            { overflow.add(elem, key); return; }
+        if (numWheel == 0) base = t;  // the wheel is empty, so we can put the window anywhere
+        if (t < base || t - base >= buckets.length)
+            { overflow.add(elem, key); return; }
+
+        // find the group with our ordering, or where it belongs
+        int b = (int)(t & mask);
+        int ordering = k.ordering;
+        Group prev = null;
+        Group g = buckets[b];
+        while(g != null && g.key.ordering < ordering)
+            { prev = g; g = g.next; }
+        if (g == null || g.key.ordering != ordering)
+            {
+            Group n = spare;
+            if (n == null) n = new Group();
+            else spare = n.next;
+            n.key = k;
+            n.next = g;
+            if (prev == null) buckets[b] = n;
+            else prev.next = n;
+            g = n;
+            }
+        g.events.add(elem);
+        numWheel++;
+        }
+
+    // removes the group g, which must be the first group of the bucket at base, and keeps it as a spare
+    void removeFirst(Group g)
+        {
+        buckets[(int)(base & mask)] = g.next;
+        g.events.clear();
+        g.key = null;
+        g.next = spare;
+        spare = g;
+        }
+
+    public boolean isEmpty()
+        {
+        return numWheel == 0 && overflow.isEmpty();
+        }
+
+    public int size()
+        {
+        return numWheel + overflow.size();
+        }
+
+    public void clear()
+        {
+        for(int i = 0; i < buckets.length; i++)
+            buckets[i] = null;  // let 'em GC
+        spare = null;
+        numWheel = 0;
+        overflow.clear();
+        }
+
+
+    // for the benchmark
+    static class Counter implements Steppable
+        {
+        long count;
+        public void step(SimState state) { count++; }
+        }
+
+    /** Benchmarks stepping a Schedule with a Heap against one with a CalendarQueue, with 1K, 100K, and 1M
+        Steppables in three orderings, one in eight of them repeating at an interval of 7 and the rest at 1. */
+    public static void main(String[] args)
+        {
+        int[] sizes = new int[] { 1000, 100000, 1000000 };
+        for(int s = 0; s < sizes.length; s++)
+            {
+            int numSteppables = sizes[s];
+            int numSteps = Math.max(20, 20000000 / numSteppables);
+            for(int calendar = 0; calendar < 2; calendar++)
+                {
+                SimState state = new SimState(4357);
+                state.schedule.setCalendarQueue(calendar == 1);
+                Counter counter = new Counter();
+                for(int i = 0; i < numSteppables; i++)
+                    state.schedule.scheduleRepeating(Schedule.EPOCH, i % 3, counter, (i % 8 == 0 ? 7 : 1));
+                for(int i = 0; i < numSteps / 10; i++)  // warm up
+                    state.schedule.step(state);
+                long ms = System.currentTimeMillis();
+                for(int i = 0; i < numSteps; i++)
+                    state.schedule.step(state);
+                ms = System.currentTimeMillis() - ms;
+                System.out.println((calendar == 1 ? "CalendarQueue " : "Heap          ") + numSteppables +
+                    " Steppables, " + numSteps + " steps: " + ms + " ms, " +
+                    (ms * 1000000.0 / ((double)numSteppables * numSteps)) + " ns per event");
+                }
+            }
+        }
+    }
@@ -0,0 +1,506 @@
+/*
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.engine;
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/** Writes and reads SimState checkpoints.
+
+    <p>By default a checkpoint is the SimState pushed through Java serialization, which walks the entire object
+    graph -- every Bag, HashMap, Key, and agent -- and requires all of it to be Serializable.  A SimState which
+    implements Checkpoint.Codec instead writes its own state, explicitly, into a Checkpoint.Output: typically
+    its parameters, its agents and fields as whole primitive arrays, and its Schedule (see Schedule.writeState(...)).
+    Such a checkpoint is a compact binary file: a header (the int MAGIC, the int VERSION, and the compression
+    byte), then the payload, compressed or not: the SimState's class name, seed, job, and random number generator
+    state, then whatever the Codec wrote.  When it is read back, a SimState of the same class is constructed
+    (with the MakesSimState provided, or else with the class's constructor taking a long seed), its seed, job,
+    and generator are restored, and its Codec reads the rest.  Serialized checkpoints are still gzipped
+    streams as before, so either kind may be read with SimState.readFromCheckpoint(...).
+
+    <p>Checkpointing is done in two parts.  First the state is <i>snapshotted</i>: encoded (or serialized)
+    into an in-memory buffer, with preCheckpoint() and postCheckpoint() called around it.  Then the buffer is
+    compressed and written out.  Only the first part must happen while the simulation is paused; a Checkpoint.Writer
+    does the second in a background thread while the simulation goes on.  Compression is done with the JDK's
+    Deflater, at one of three levels: NONE, FAST (the default, which costs little more than the I/O itself), and SMALL.
+
+    <p>A snapshot can also be read back without ever touching the disk, any number of times, to <i>fork</i> the
+    simulation: see fork(...) and Checkpoint.Snapshot.
+*/
+
+public class Checkpoint
+    {
+    /** The first four bytes of a compact checkpoint ("MSCP").  Serialized checkpoints begin with the GZIP magic number instead. */
+    public static final int MAGIC = 0x4D534350;
+    /** The version of the compact format. */
+    public static final int VERSION = 1;
+
+    /** Compression level: none.  Compact checkpoints are written as is; serialized ones are gzipped without compressing. */
+    public static final int NONE = 0;
+    /** Compression level: the fastest Deflater level.  The default. */
+    public static final int FAST = 1;
+    /** Compression level: the smallest (and slowest) Deflater level. */
+    public static final int SMALL = 2;
+
+    static final int[] DEFLATER_LEVELS = new int[] { Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION };
+    static final String[] COMPRESSION_NAMES = new String[] { "none", "fast", "small" };
+
+    /** Returns the compression level with the given name ("none", "fast", or "small"), or -1 if there's none such. */
+    public static int compressionForName(String name)
+        {
+        for(int i = 0; i < COMPRESSION_NAMES.length; i++)
+            if (COMPRESSION_NAMES[i].equalsIgnoreCase(name)) return i;
+        return -1;
+        }
+
+    /** A SimState which writes and reads its own checkpoints, rather than being serialized. */
+    public interface Codec
+        {
+        /** Writes the state of the simulation, apart from the seed, job, and random number generator, which
+            have been written already.  This is called between steps of the Schedule. */
+        public void writeState(Output out) throws IOException;
+        /** Reads what writeState(...) wrote into this SimState, which has just been constructed, and has
+            had its seed, job, and random number generator restored.  start() is not called beforehand:
+            this method must set up everything that start() would have, and awakeFromCheckpoint() is called afterwards. */
+        public void readState(Input in) throws IOException;
+        }
+
+    /** Names the Steppables in a Schedule, so that the Schedule can write out which Steppable each of its
+        events steps (see Schedule.writeState(...)), and look them up again when it is read back. */
+    public interface Steppables
+        {
+        /** Returns a non-negative id for the Steppable, or -1 if it can't be checkpointed. */
+        public int idOf(Steppable step);
+        /** Returns the Steppable with the given id.  If it is being scheduled repeating, 'stoppable' is the
+            Stoppable which stops it, as scheduleRepeating(...) would have returned; else 'stoppable' is null.
+            Returns null if there is no Steppable with the given id. */
+        public Steppable stepFor(int id, Stoppable stoppable);
+        }
+
+    // a growable byte array, which Output writes into
+    static class Buffer extends OutputStream
+        {
+        byte[] buf = new byte[1024];
+        int count = 0;
+
+        void ensure(int n)
+            {
+            if (count + n <= buf.length) return;
+            long len = Math.max((long)count + n, 2L * buf.length);
+            if (len > Integer.MAX_VALUE - 8) len = (long)count + n;
+            byte[] b = new byte[(int)len];
+            System.arraycopy(buf, 0, b, 0, count);
+            buf = b;
+            }
+
+        public void write(int b)
+            {
+            ensure(1);
+            buf[count++] = (byte)b;
+            }
+
+        public void write(byte[] b, int off, int len)
+            {
+            ensure(len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+            }
+        }
+
+    /** The stream into which a Codec writes its state: an in-memory DataOutputStream with methods which write
+        whole arrays of primitives at once.  Everything is big-endian. */
+    public static class Output extends DataOutputStream
+        {
+        Buffer buffer;
+
+        /** Creates an empty Output. */
+        public Output()
+            {
+            super(new Buffer());
+            buffer = (Buffer)out;
+            }
+
+        /** Returns the number of bytes written. */
+        public int getLength() { return buffer.count; }
+
+        /** Discards everything written, keeping the memory to be written into again. */
+        public void reset() { buffer.count = 0; written = 0; }
+
+        /** Writes the n doubles of the array starting at 'from'. */
+        public void writeDoubles(double[] array, int from, int n)
+            {
+            buffer.ensure(n * 8);
+            ByteBuffer.wrap(buffer.buf, buffer.count, n * 8).asDoubleBuffer().put(array, from, n);
+            buffer.count += n * 8;
+            }
+
+        /** Writes the n longs of the array starting at 'from'. */
+        public void writeLongs(long[] array, int from, int n)
+            {
+            buffer.ensure(n * 8);
+            ByteBuffer.wrap(buffer.buf, buffer.count, n * 8).asLongBuffer().put(array, from, n);
+            buffer.count += n * 8;
+            }
+
+        /** Writes the n ints of the array starting at 'from'. */
+        public void writeInts(int[] array, int from, int n)
+            {
+            buffer.ensure(n * 4);
+            ByteBuffer.wrap(buffer.buf, buffer.count, n * 4).asIntBuffer().put(array, from, n);
+            buffer.count += n * 4;
+            }
+
+        /** Writes the n booleans of the array starting at 'from', one per byte. */
+        public void writeBooleans(boolean[] array, int from, int n)
+            {
+            buffer.ensure(n);
+            byte[] buf = buffer.buf;  // locals are faster
+            int count = buffer.count;
+            for(int i = 0; i < n; i++)
+                buf[count + i] = (array[from + i] ? (byte)1 : (byte)0);
+            buffer.count += n;
+            }
+        }
+
+    /** The stream from which a Codec reads its state back: a DataInputStream with methods which read whole
+        arrays of primitives at once. */
+    public static class Input extends DataInputStream
+        {
+        byte[] scratch = new byte[65536];
+
+        /** Creates an Input which reads from the given stream. */
+        public Input(InputStream stream)
+            {
+            super(stream);
+            }
+
+        /** Reads n doubles into the array starting at 'from'. */
+        public void readDoubles(double[] array, int from, int n) throws IOException
+            {
+            while(n > 0)
+                {
+                int len = Math.min(n, scratch.length / 8);
+                readFully(scratch, 0, len * 8);
+                ByteBuffer.wrap(scratch, 0, len * 8).asDoubleBuffer().get(array, from, len);
+                from += len;
+                n -= len;
+                }
+            }
+
+        /** Reads n longs into the array starting at 'from'. */
+        public void readLongs(long[] array, int from, int n) throws IOException
+            {
+            while(n > 0)
+                {
+                int len = Math.min(n, scratch.length / 8);
+                readFully(scratch, 0, len * 8);
+                ByteBuffer.wrap(scratch, 0, len * 8).asLongBuffer().get(array, from, len);
+                from += len;
+                n -= len;
+                }
+            }
+
+        /** Reads n ints into the array starting at 'from'. */
+        public void readInts(int[] array, int from, int n) throws IOException
+            {
+            while(n > 0)
+                {
+                int len = Math.min(n, scratch.length / 4);
+                readFully(scratch, 0, len * 4);
+                ByteBuffer.wrap(scratch, 0, len * 4).asIntBuffer().get(array, from, len);
+                from += len;
+                n -= len;
+                }
+            }
+
+        /** Reads n booleans into the array starting at 'from'. */
+        public void readBooleans(boolean[] array, int from, int n) throws IOException
+            {
+            while(n > 0)
+                {
+                int len = Math.min(n, scratch.length);
+                readFully(scratch, 0, len);
+                for(int i = 0; i < len; i++)
+                    array[from + i] = (scratch[i] != 0);
+                from += len;
+                n -= len;
+                }
+            }
+        }
+
+    /** Snapshots the state into 'out', which is reset first: its compact payload if it is a Codec, else its
+        serialized form.  Calls preCheckpoint() before and postCheckpoint() afterwards. */
+    public static void snapshot(SimState state, Output out) throws IOException
+        {
+        out.reset();
+        state.preCheckpoint();
+        try
+            {
+            if (state instanceof Codec)
+                {
+                out.writeUTF(state.getClass().getName());
+                out.writeLong(state.seed);
+                out.writeLong(state.job);
+                state.random.writeState(out);
+                ((Codec)state).writeState(out);
+                }
+            else
+                {
+                ObjectOutputStream s = new ObjectOutputStream(out);
+                s.writeObject(state);
+                s.flush();
+                }
+            }
+        finally
+            {
+            state.postCheckpoint();
+            }
+        }
+
+    /** Compresses a snapshot of the given kind (compact or serialized) and writes it to the stream.  Does not close the stream. */
+    public static void write(Output snapshot, boolean compact, int compression, OutputStream stream) throws IOException
+        {
+        if (compression < NONE || compression > SMALL)
+            throw new IllegalArgumentException("Invalid compression level " + compression);
+        final int level = DEFLATER_LEVELS[compression];
+        if (!compact)
+            {
+            // a GZIPOutputStream whose Deflater is set to our level
+            GZIPOutputStream g = new GZIPOutputStream(stream, 65536)
+                {
+                { def.setLevel(level); }
+                };
+            g.write(snapshot.buffer.buf, 0, snapshot.buffer.count);
+            g.finish();
+            return;
+            }
+
+        DataOutputStream header = new DataOutputStream(stream);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeByte(compression);
+        header.flush();
+        if (compression == NONE)
+            {
+            stream.write(snapshot.buffer.buf, 0, snapshot.buffer.count);
+            return;
+            }
+        Deflater deflater = new Deflater(level);
+        try
+            {
+            DeflaterOutputStream d = new DeflaterOutputStream(stream, deflater, 65536);
+            d.write(snapshot.buffer.buf, 0, snapshot.buffer.count);
+            d.finish();
+            }
+        finally
+            {
+            deflater.end();
+            }
+        }
+
+    /** Reads a checkpoint of either kind from the stream, constructing a compact one's SimState with the generator
+        if it makes SimStates of the right class, else with the class's constructor taking a long seed.
+        Does not call awakeFromCheckpoint().  Does not close the stream. */
+    public static SimState read(InputStream stream, MakesSimState generator, String[] args)
+        throws IOException, ClassNotFoundException
+        {
+        BufferedInputStream b = new BufferedInputStream(stream);
+        b.mark(4);
+        DataInputStream d = new DataInputStream(b);
+        int magic = d.readInt();
+        b.reset();
+        if (magic != MAGIC)
+            {
+            ObjectInputStream s = new ObjectInputStream(new GZIPInputStream(b));
+            return (SimState)(s.readObject());
+            }
+
+        d.readInt();  // the magic number again
+        int version = d.readInt();
+        if (version != VERSION)
+            throw new IOException("Unknown checkpoint version " + version);
+        int compression = d.readByte();
+        return readPayload(compression == NONE ? (InputStream)b :
+            new InflaterInputStream(b, new Inflater(), 65536), true, generator, args, 0);
+        }
+
+    // reads an uncompressed payload, compact or serialized.  If newSeed isn't 0, the SimState gets it instead of its own seed
+    // before its Codec reads its state (its random number generator is still restored: the caller must reseed it).
+    static SimState readPayload(InputStream stream, boolean compact, MakesSimState generator, String[] args, long newSeed)
+        throws IOException, ClassNotFoundException
+        {
+        if (!compact)
+            return (SimState)(new ObjectInputStream(stream).readObject());
+
+        Input in = new Input(stream);
+        String className = in.readUTF();
+        long seed = in.readLong();
+        long job = in.readLong();
+        if (newSeed != 0) seed = newSeed;
+        SimState state;
+        if (generator != null && generator.simulationClass().getName().equals(className))
+            state = generator.newInstance(seed, args == null ? new String[0] : args);
+        else
+            {
+            try
+                {
+                state = (SimState)(Class.forName(className).getConstructor(new Class[] { Long.TYPE }).newInstance(new Object[] { new Long(seed) }));
+                }
+            catch (Exception e)
+                {
+                throw new IOException("Could not construct a " + className + " with a long seed: " + e);
+                }
+            }
+        if (!(state instanceof Codec))
+            throw new IOException("A " + className + " is not a Checkpoint.Codec");
+        state.seed = seed;
+        state.job = job;
+        state.random.readState(in);
+        ((Codec)state).readState(in);
+        return state;
+        }
+
+    /** Returns copies of the state, one for each of the given seeds, reseeded with it (see SimState.fork(...)).
+        The state is snapshotted once, and each copy is read back from the snapshot in memory. */
+    public static SimState[] fork(SimState state, long[] seeds, MakesSimState generator, String[] args) throws IOException
+        {
+        for(int i = 0; i < seeds.length; i++)
+            if (seeds[i] == 0)
+                throw new IllegalArgumentException("A branch can't have a seed of 0");
+        Snapshot snapshot = new Snapshot(state);
+        SimState[] branches = new SimState[seeds.length];
+        for(int i = 0; i < seeds.length; i++)
+            branches[i] = snapshot.fork(seeds[i], generator, args);
+        return branches;
+        }
+
+    /** A snapshot of a SimState held in memory, from which copies of the state may be forked later, one at a time,
+        as many as you like, from any number of threads at once.  This is how to fork a great many copies of a state
+        without holding them all in memory at once. */
+    public static class Snapshot
+        {
+        byte[] buf;
+        int count;
+        boolean compact;
+
+        /** Snapshots the state, which must be a Codec or Serializable. */
+        public Snapshot(SimState state) throws IOException
+            {
+            Output out = new Output();
+            snapshot(state, out);
+            buf = out.buffer.buf;
+            count = out.buffer.count;
+            compact = (state instanceof Codec);
+            }
+
+        /** Returns a copy of the snapshotted state, reseeded with the given seed, which must not be 0
+            (see SimState.fork(...)). */
+        public SimState fork(long seed, MakesSimState generator, String[] args) throws IOException
+            {
+            if (seed == 0)
+                throw new IllegalArgumentException("A branch can't have a seed of 0");
+            SimState branch;
+            try
+                {
+                branch = readPayload(new ByteArrayInputStream(buf, 0, count), compact, generator, args, seed);
+                }
+            catch (ClassNotFoundException e)
+                {
+                throw new IOException("Could not copy the state: " + e);
+                }
+            branch.setSeed(seed);
+            branch.awakeFromCheckpoint();
+            return branch;
+            }
+
+        /** Returns the size of the snapshot in bytes. */
+        public int getLength() { return count; }
+        }
+
+    /** Writes checkpoints in a background thread.  write(...) snapshots the state in the calling thread, then
+        hands the snapshot off to the background thread to be compressed and written to disk, and returns.
+        At most one snapshot is in flight: if the previous one hasn't been written yet, write(...) waits for it,
+        and then reuses its buffer.  Each checkpoint is written to a temporary file which is then renamed, so that
+        a checkpoint file is never left half-written. */
+    public static class Writer
+        {
+        int compression;
+        Output snapshot = new Output();
+        ExecutorService executor = null;
+        Future pending = null;
+
+        /** Creates a Writer which compresses at the given level. */
+        public Writer(int compression)
+            {
+            if (compression < NONE || compression > SMALL)
+                throw new IllegalArgumentException("Invalid compression level " + compression);
+            this.compression = compression;
+            }
+
+        /** Snapshots the state, then writes it to the file in the background.  Errors in writing are printed. */
+        public void write(SimState state, final File file)
+            {
+            waitForPending();
+            final boolean compact = (state instanceof Codec);
+            try
+                {
+                snapshot(state, snapshot);
+                }
+            catch (IOException e)
+                {
+                e.printStackTrace();
+                return;
+                }
+            if (executor == null)
+                executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+                    {
+                    public Thread newThread(Runnable r)
+                        {
+                        Thread t = new Thread(r, "MASON Checkpoint Writer");
+                        t.setDaemon(true);
+                        return t;
+                        }
+                    });
+            pending = executor.submit(new Runnable()
+                {
+                public void run()
+                    {
+                    File temp = new File(file.getPath() + ".tmp");
+                    try
+                        {
+                        FileOutputStream f = new FileOutputStream(temp);
+                        try { Checkpoint.write(snapshot, compact, compression, f); }
+                        finally { f.close(); }
+                        file.delete();
+                        if (!temp.renameTo(file))
+                            throw new IOException("Could not rename " + temp + " to " + file);
+                        }
+                    catch (IOException e) { e.printStackTrace(); }
+                    }
+                });
+            }
+
+        /** Waits for the checkpoint being written, if any, to be finished. */
+        public void waitForPending()
+            {
+            if (pending == null) return;
+            try { pending.get(); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            catch (ExecutionException e) { e.getCause().printStackTrace(); }
+            pending = null;
+            }
+
+        /** Waits for the checkpoint being written, if any, then stops the background thread.  The
+            Writer may still be used afterwards: it will start a new thread. */
+        public void finish()
+            {
+            waitForPending();
+            if (executor != null) executor.shutdown();
+            executor = null;
+            }
+        }
+    }
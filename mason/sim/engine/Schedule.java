@@ -6,6 +6,7 @@
 
 package sim.engine;
 import java.io.Serializable;
+import java.io.IOException;
 
 import sim.util.*;
 import ec.util.*;
@@ -27,8 +28,11 @@ import ec.util.*;
    occur a single time or to occur repeatedly at some interval.  If the event occurs repeatedly,
    the schedule will provide you with a <b>Stoppable</b> object on which you can call <b>stop()</b>
    to cancel all future repeats of the event.  If instead you wish to "stop" a single-time event from occuring
-   before its time has come, you should do so through the use of a <b>TentativeStep</b> object.  At present
-   you cannot delete objects from the Schedule -- just stop them and let them drop out in due course.
+   before its time has come, you should do so through the use of a <b>TentativeStep</b> object.  A stopped
+   TentativeStep stays in the Schedule until its time comes.  A stopped repeating event, on the other hand, is
+   cancelled outright: it is never stepped or shuffled again, and once stopped events make up more than half of
+   the queue the Schedule rebuilds the queue without them.  Thus the queue stays proportional to the live events
+   even if many repeating events are stopped long before their next time comes.
    
    <p>The schedule is pulsed by calling its <b>step(...)</b> method.  Each pulse, the schedule
    finds the minimum time at which events are scheduled, moves ahead to that time, and then calls
@@ -79,14 +83,41 @@ import ec.util.*;
    (like AsynchronousSteppable or ParallelSequence), they can turn around and submit step-requests to the Schedule even while it's still
    in its step() method.
    
+   <p>Repeating events reschedule themselves without taking any lock: while step() is stepping, each one drops itself into
+   a lock-free buffer, which step() merges into the queue once it's done with the current timestep.  Further, if you know that
+   only one thread will ever touch the Schedule while it's running (no AsynchronousSteppables, no GUI, no Steppables
+   which schedule events from other threads), you can call setSingleThreaded(true).  Then step() doesn't synchronize at all,
+   and repeating events go straight back into the queue.  Note that if Steppables schedule other events during step(), the two
+   modes may put events with the same time and ordering into the queue in a different order, and so shuffle them differently
+   for the same seed.
+   
    <p>One downside to this flexibility is that it's very inefficient to check, at each step of a Steppable, whether the Schedule
    has been reset or not.  Thus now if you call reset() or [better] SimState.kill(), the Schedule will continue to step Steppables
    until it has exhausted ones scheduled for the current timestep.  Only at that point will it cease.
    
-   <p><b>Heaps and Calendar Queues</b>.  Schedule uses a plain-old binary heap for its queueing mechanism.  This is reasonably efficient,
+   <p><b>Heaps and Calendar Queues</b>.  By default Schedule uses a plain-old binary heap for its queueing mechanism.  This is reasonably efficient,
    but it could be made more efficient with a Calendar Queue designed for the purposes of your simulation.  We settled on a Heap because
-   we do not know what the expected scheduling pattern will be for any given simulation, and so had to go for the most general case.  If you'd
-   care to customize your queue, you can do so by overriding the createHeap() method in a custom Schedule.  We imagine this would be rare.
+   we do not know what the expected scheduling pattern will be for any given simulation, and so had to go for the most general case.
+   If most of your events occur at integer times a short way into the future (for example, agents scheduled repeating at an interval of 1),
+   you can call setCalendarQueue(true) to have the Schedule use a CalendarQueue instead, which returns the same events for each time and ordering,
+   and shuffles them as usual.  However a given seed only reproduces a run with a Heap in the simplest cases, since the CalendarQueue
+   can't return events with equal keys in the same order as a Heap does (see CalendarQueue).
+   If you'd care to customize your queue further, you can do so by overriding the createHeap() method in a custom Schedule.  We imagine this would be rare.
+   
+   <p><b>Parallel Orderings</b>.  If the Steppables of some ordering don't depend on one another during a timestep (for example, agents
+   which read a snapshot of the world and write only their own state), you can call setParallelOrdering(ordering, grainSize) to have
+   the Schedule step them in parallel.  After shuffling them as usual, the Schedule splits them into chunks of grainSize Steppables,
+   steps the chunks on a ForkJoinPool, and waits for all of them before moving on to the next ordering.  Steppables in a parallel ordering
+   must not use the SimState's random number generator, which isn't threadsafe: instead they should call schedule.getRandom(state), which
+   returns a generator seeded for their chunk from the SimState's generator.  Thus the results are the same no matter how many threads
+   there are.  The Steppables may schedule and stop events as usual, though events scheduled with scheduleOnce(...) from different
+   threads go into the queue in no particular order, which may change how they are shuffled.  By default the chunks are stepped on the common ForkJoinPool;
+   you can provide your own with setParallelPool(...).
+
+   <p><b>Checkpoints</b>.  A SimState which writes its own checkpoints (see Checkpoint.Codec) can write its Schedule with
+   writeState(...) and read it back with readState(...), between steps.  Every event is written as its time, ordering, interval,
+   and the id of its Steppable, and the queue is written in the exact order in which it holds its events, so that the restored
+   Schedule hands them out -- and shuffles them -- exactly as the original would have.
 */
     
 
@@ -108,10 +139,50 @@ public class Schedule implements java.io.Serializable
 
     Heap queue = createHeap();
     
+    // should createHeap() return a CalendarQueue?
+    boolean calendarQueue = false;
+    
     /** Returns a Heap to be used by the Schedule.  By default, returns a
-        binary heap.  Override this to provide your own
+        binary heap, or a CalendarQueue if setCalendarQueue(true) has been called.  Override this to provide your own
         subclass of Heap tuned for your particular problem. */
-    protected Heap createHeap() { return new Heap(); }
+    protected Heap createHeap() { return calendarQueue ? new CalendarQueue() : new Heap(); }
+    
+    /** Sets whether the Schedule uses a CalendarQueue rather than a binary Heap (the default).  A CalendarQueue
+        is faster when most events occur at integer times a short way into the future.  Events already
+        scheduled are moved to the new queue. */
+    public void setCalendarQueue(boolean val)
+        {
+        synchronized(lock)
+            {
+            if (val == calendarQueue) return;
+            calendarQueue = val;
+            Heap old = queue;
+            queue = createHeap();
+            while(!old.isEmpty())
+                {
+                Comparable key = old.getMinKey();
+                queue.add(old.extractMin(), key);
+                }
+            }
+        }
+    
+    /** Returns true if the Schedule uses a CalendarQueue rather than a binary Heap. */
+    public boolean isCalendarQueue() { synchronized(lock) { return calendarQueue; } }
+    
+    /** Declares that only one thread will touch the Schedule while it's running, so step() and repeating
+        events needn't synchronize.  Don't turn this on if AsynchronousSteppables, a GUI, or any other threads
+        may schedule events or step the Schedule, and don't call this method from within step(). */
+    public void setSingleThreaded(boolean val)
+        {
+        synchronized(lock)
+            {
+            mergePending();
+            singleThreaded = val;
+            }
+        }
+        
+    /** Returns true if the Schedule has been declared single-threaded. */
+    public boolean isSingleThreaded() { synchronized(lock) { return singleThreaded; } }
     
     // the time
     double time;
@@ -125,7 +196,109 @@ public class Schedule implements java.io.Serializable
     // time steps lock  -- the objective here is to enable synchronization on a different lock
     // so people can read the time and the steps without having to wait on the general schedule lock
     protected Object lock = new boolean[1];  // an array is a unique, serializable object
+
+    // the number of stopped Repeats which may still be in the queue.  Can overcount (a Repeat
+    // stopped while it is being stepped is not in the queue), which only makes us compact a bit early.
+    int numStopped = 0;
+    
+    /** The minimum number of stopped repeating events before the Schedule bothers to remove them from the queue. */
+    public static final int MIN_COMPACTION = 64;
+    
+    // if true, step() and Repeats don't synchronize
+    boolean singleThreaded = false;
+    
+    // Repeats which rescheduled themselves during step(), to be merged into the queue at the end of the step.
+    // Each Repeat being stepped reschedules itself at most once, so gather() makes room for all of currentSteps,
+    // and a Repeat claims its slot with an atomic increment.  Unused in single-threaded mode, except while
+    // stepping a parallel ordering.
+    Repeat[] pending = new Repeat[0];
+    java.util.concurrent.atomic.AtomicInteger numPending = new java.util.concurrent.atomic.AtomicInteger();
+    
+    // the orderings to be stepped in parallel, and the grain size of each
+    IntBag parallelOrderings = new IntBag();
+    IntBag parallelGrains = new IntBag();
+    
+    // if there are parallel orderings, gather() notes where each ordering ends in currentSteps, and its grain size (0 if serial)
+    IntBag groupEnds = new IntBag();
+    IntBag groupGrains = new IntBag();
+    
+    // true while stepping a parallel ordering
+    volatile boolean inParallel = false;
+    
+    // the seed of each chunk of the parallel ordering being stepped
+    long[] chunkSeeds = new long[0];
+    
+    // Repeats which rescheduled themselves while a parallel ordering was being stepped, each at its index in
+    // currentSteps, so that they go into the queue in the same order no matter which thread stepped them
+    Repeat[] parallelPending = new Repeat[0];
     
+    // the pool to step parallel orderings on, or null for the common pool
+    transient java.util.concurrent.ForkJoinPool parallelPool = null;
+    
+    // what each thread stepping a parallel ordering is up to
+    static class Worker
+        {
+        MersenneTwisterFast random;  // seeded for the current chunk
+        int index = -1;  // index in currentSteps of the Steppable being stepped
+        }
+    transient ThreadLocal workers = null;
+    
+    /** Has the Steppables at the given ordering stepped in parallel, in chunks of grainSize Steppables, or
+        in the usual way if grainSize is 0.  See "Parallel Orderings" above. */
+    public void setParallelOrdering(int ordering, int grainSize)
+        {
+        if (grainSize < 0)
+            throw new IllegalArgumentException("The grain size provided (" + grainSize + ") is less than zero");
+        synchronized(lock)
+            {
+            int i = parallelIndex(ordering);
+            if (i >= 0)
+                {
+                parallelOrderings.remove(i);
+                parallelGrains.remove(i);
+                }
+            if (grainSize > 0)
+                {
+                parallelOrderings.add(ordering);
+                parallelGrains.add(grainSize);
+                }
+            }
+        }
+        
+    /** Returns the grain size with which the Steppables at the given ordering are stepped in parallel, or 0 if they aren't. */
+    public int getParallelOrdering(int ordering)
+        {
+        synchronized(lock)
+            {
+            int i = parallelIndex(ordering);
+            return (i < 0 ? 0 : parallelGrains.get(i));
+            }
+        }
+        
+    // returns the index of the ordering in parallelOrderings, or -1
+    int parallelIndex(int ordering)
+        {
+        int[] objs = parallelOrderings.objs;
+        for(int i = 0; i < parallelOrderings.numObjs; i++)
+            if (objs[i] == ordering) return i;
+        return -1;
+        }
+        
+    /** Sets the ForkJoinPool on which parallel orderings are stepped, or null (the default) for the common pool. */
+    public void setParallelPool(java.util.concurrent.ForkJoinPool pool) { synchronized(lock) { parallelPool = pool; } }
+    
+    /** Returns the random number generator which the current Steppable should use: while a parallel ordering is being
+        stepped, the generator of the current chunk, else state.random. */
+    public MersenneTwisterFast getRandom(SimState state)
+        {
+        if (inParallel)
+            {
+            Worker worker = (Worker)(workers.get());
+            if (worker != null && worker.index >= 0) return worker.random;
+            }
+        return state.random;
+        }
+        
     /** Sets the schedule to randomly shuffle the order of Steppables (the default), or to not do so, when they
         have identical orderings and are scheduled for the same time.  If the Steppables are not randomly shuffled,
         they will be executed in the order in which they were inserted into the schedule, if they have identical
@@ -203,6 +376,8 @@ public class Schedule implements java.io.Serializable
             {
             time = AFTER_SIMULATION;
             queue = createHeap();  // let 'em GC  -- must be inside the lock so scheduleOnce doesn't try to add more
+            clearPending();
+            numStopped = 0;
             }
         }
 
@@ -215,6 +390,8 @@ public class Schedule implements java.io.Serializable
         synchronized(lock)
             {
             queue = createHeap();  // let 'em GC  -- must be inside the lock so scheduleOnce doesn't try to add more
+            clearPending();
+            numStopped = 0;
             }
         }
 
@@ -238,6 +415,8 @@ public class Schedule implements java.io.Serializable
             time = BEFORE_SIMULATION;
             steps = 0;
             queue = createHeap();  // let 'em GC  -- must be inside the lock so scheduleOnce doesn't try to add more
+            clearPending();
+            numStopped = 0;
             sealed = false;
             }
         }
@@ -247,7 +426,7 @@ public class Schedule implements java.io.Serializable
         {
         synchronized(lock)
             {
-            return queue.isEmpty();
+            return queue.isEmpty() && numPending.get() == 0;
             }
         }
 
@@ -257,7 +436,13 @@ public class Schedule implements java.io.Serializable
     /** Steps the schedule, gathering and ordering all the items to step on the next time step (skipping
         blank time steps), and then stepping all of them in the decided order.  
         Returns FALSE if nothing was stepped -- the schedule is exhausted or time has run out. */
-    public synchronized boolean step(final SimState state)
+    public boolean step(final SimState state)
+        {
+        if (singleThreaded) return _step(state);
+        synchronized(this) { return _step(state); }
+        }
+        
+    boolean _step(final SimState state)
         {
         if (inStep)  // check for reentrant calls and deny
             {
@@ -266,63 +451,43 @@ public class Schedule implements java.io.Serializable
             
         inStep = true;
         Bag currentSteps = this.currentSteps;  // locals are faster
-        final MersenneTwisterFast random = state.random; // locals are faster
         
-        int topSubstep = 0;  // we set this as a hack to avoid having to clear all the substeps each time until the very end
-
         // grab the events as quickly as possible
-        synchronized(lock)
-            {
-            if (time == AFTER_SIMULATION || queue.isEmpty())
-                { time = AFTER_SIMULATION; inStep = false; return false; }  // bump the time for the queue.isEmpty() bit
-            
-            // now change the time
-            time = ((Key)(queue.getMinKey())).time;  // key shouldn't be able to be null; time should always be one bigger
-
-            final boolean shuffling = this.shuffling; // locals are faster.  This one needs to be synchronized inside lock
-
-            // grab all of the steppables in the right order.  To do this, we employ two Bags:
-            // 1. Each iteration of the while-loop, we grab all the steppables of the next ordering, put into the substeps Bag
-            // 2. Next we either shuffle or reverse the substeps.
-            // 3. Next we add them all to the end of the currentSteps Bag
-            // 4. Then we clear the substeps bag, but we don't let them GC yet
-            // 5. Last, out of the while-loop, we clear the substeps bag "for real", allowing them to GC
-            while(true)
-                {
-                // Suck out the contents of the next ordering
-                queue.extractMin(substeps);  // come out in reverse order
-
-                // shuffle
-                if (substeps.numObjs > 1) 
-                    {
-                    if (shuffling) substeps.shuffle(random);  // no need to flip -- we're randomizing
-                    else substeps.reverse();  // they came out in reverse order; we need to flip 'em
-                    }
-                                                                
-                // dump
-                if (topSubstep < substeps.numObjs) topSubstep = substeps.numObjs;  // remember index of largest substep since we're violating clear()
-                currentSteps.addAll(substeps);
-                substeps.numObjs = 0;  // temporarily clear
-                
-                // check next key and break if we don't need to go on
-                Key currentKey = (Key)(queue.getMinKey());
-                if (currentKey == null || currentKey.time != time) break;  // looks like no more substeps at this timestamp
-                }
-            }
-            
-        // now finally clear out the substeps for real
-        substeps.numObjs = topSubstep;
-        substeps.clear();  // clear for real so everything can GC
+        boolean gathered;
+        if (singleThreaded) gathered = gather(state.random);
+        else synchronized(lock) { gathered = gather(state.random); }
+        if (!gathered)
+            { inStep = false; return false; }
                         
         // execute
         int len = currentSteps.numObjs;
         Object[] objs = currentSteps.objs;
         try
             {
-            for(int x=0;x<len;x++)  // if we're not being killed...
+            if (groupEnds.numObjs == 0)  // no parallel orderings
+                {
+                for(int x=0;x<len;x++)  // if we're not being killed...
+                    {
+                    ((Steppable)(objs[x])).step(state);
+                    objs[x] = null;  // let gc even if being killed
+                    }
+                }
+            else
                 {
-                ((Steppable)(objs[x])).step(state);
-                objs[x] = null;  // let gc even if being killed
+                int from = 0;
+                for(int g = 0; g < groupEnds.numObjs; g++)
+                    {
+                    int to = groupEnds.objs[g];
+                    int grain = groupGrains.objs[g];
+                    if (grain > 0 && to - from > grain)
+                        stepParallel(state, objs, from, to, grain);
+                    else for(int x=from;x<to;x++)
+                        {
+                        ((Steppable)(objs[x])).step(state);
+                        objs[x] = null;  // let gc even if being killed
+                        }
+                    from = to;
+                    }
                 }
             }
         finally
@@ -330,12 +495,416 @@ public class Schedule implements java.io.Serializable
             // reuse currentSteps -- all objects should have been released to gc already, no need to call clear()
             currentSteps.numObjs = 0;
                 
-            synchronized(lock) { steps++; }
+            if (singleThreaded) { mergePending(); steps++; }  // a parallel ordering may have left Repeats in pending
+            else synchronized(lock) { mergePending(); steps++; }
             inStep = false;
             }
+        // the stopping rules aren't on the schedule, so they don't disturb the order of anything which is
+        if (state.stoppingRules.size() > 0) state.checkStoppingRules();
+        return true;
+        }
+        
+    // Advances the time and moves all the events for the new time into currentSteps, in the order they're to be
+    // stepped.  Returns false if there are no more events.  Unless single-threaded, you must synchronize on this.lock
+    // before calling this method.
+    boolean gather(final MersenneTwisterFast random)
+        {
+        Bag currentSteps = this.currentSteps;  // locals are faster
+        int topSubstep = 0;  // we set this as a hack to avoid having to clear all the substeps each time until the very end
+
+        mergePending();
+        groupEnds.numObjs = 0;
+        groupGrains.numObjs = 0;
+        if (time == AFTER_SIMULATION || queue.isEmpty())
+            { time = AFTER_SIMULATION; return false; }  // bump the time for the queue.isEmpty() bit
+            
+        // now change the time
+        time = ((Key)(queue.getMinKey())).time;  // key shouldn't be able to be null; time should always be one bigger
+
+        final boolean shuffling = this.shuffling; // locals are faster
+
+        // grab all of the steppables in the right order.  To do this, we employ two Bags:
+        // 1. Each iteration of the while-loop, we grab all the steppables of the next ordering, put into the substeps Bag
+        // 2. Next we either shuffle or reverse the substeps.
+        // 3. Next we add them all to the end of the currentSteps Bag
+        // 4. Then we clear the substeps bag, but we don't let them GC yet
+        // 5. Last, out of the while-loop, we clear the substeps bag "for real", allowing them to GC
+        while(true)
+            {
+            int ordering = (parallelOrderings.numObjs > 0 ? ((Key)(queue.getMinKey())).ordering : 0);
+            
+            // Suck out the contents of the next ordering
+            queue.extractMin(substeps);  // come out in reverse order
+
+            // drop stopped Repeats so they're neither shuffled nor stepped
+            if (numStopped > 0) removeStopped(substeps);
+
+            // shuffle
+            if (substeps.numObjs > 1) 
+                {
+                if (shuffling) substeps.shuffle(random);  // no need to flip -- we're randomizing
+                else substeps.reverse();  // they came out in reverse order; we need to flip 'em
+                }
+                                                            
+            // dump
+            if (topSubstep < substeps.numObjs) topSubstep = substeps.numObjs;  // remember index of largest substep since we're violating clear()
+            currentSteps.addAll(substeps);
+            substeps.numObjs = 0;  // temporarily clear
+            
+            // note where the ordering ends if any ordering is to be stepped in parallel
+            if (parallelOrderings.numObjs > 0)
+                {
+                int i = parallelIndex(ordering);
+                groupEnds.add(currentSteps.numObjs);
+                groupGrains.add(i < 0 ? 0 : parallelGrains.objs[i]);
+                }
+            
+            // check next key and break if we don't need to go on
+            Key currentKey = (Key)(queue.getMinKey());
+            if (currentKey == null || currentKey.time != time) break;  // looks like no more substeps at this timestamp
+            }
+
+        // now finally clear out the substeps for real
+        substeps.numObjs = topSubstep;
+        substeps.clear();  // clear for real so everything can GC
+        
+        // make room for every Repeat we're about to step to reschedule itself
+        if (pending.length < currentSteps.numObjs)
+            pending = new Repeat[currentSteps.numObjs];
         return true;
         }
         
+    // Steps objs[from...to) in chunks of grain Steppables on the parallel pool, and waits for them all.
+    void stepParallel(SimState state, Object[] objs, int from, int to, int grain)
+        {
+        // seed each chunk now, so the results don't depend on which thread steps which chunk
+        int numChunks = (to - from + grain - 1) / grain;
+        if (chunkSeeds.length < numChunks) chunkSeeds = new long[numChunks];
+        for(int i = 0; i < numChunks; i++)
+            chunkSeeds[i] = state.random.nextLong();
+        if (workers == null) workers = new ThreadLocal();
+        if (parallelPending.length < to) parallelPending = new Repeat[currentSteps.objs.length];
+        
+        java.util.concurrent.ForkJoinPool pool = parallelPool;
+        if (pool == null) pool = java.util.concurrent.ForkJoinPool.commonPool();
+        inParallel = true;  // Repeats now go into pending even if we're single-threaded
+        try
+            {
+            pool.invoke(new StepChunks(state, objs, from, to, grain, 0, numChunks));
+            }
+        finally
+            {
+            inParallel = false;
+            
+            // move the Repeats into pending in the order in which they were stepped
+            Repeat[] parallelPending = this.parallelPending;  // locals are faster
+            for(int x = from; x < to; x++)
+                if (parallelPending[x] != null)
+                    {
+                    pending[numPending.getAndIncrement()] = parallelPending[x];
+                    parallelPending[x] = null;
+                    }
+            }
+        }
+        
+    // Steps the chunks lo...hi-1 of a parallel ordering, splitting them among workers
+    class StepChunks extends java.util.concurrent.RecursiveAction
+        {
+        SimState state;
+        Object[] objs;
+        int from, to, grain, lo, hi;
+        
+        StepChunks(SimState state, Object[] objs, int from, int to, int grain, int lo, int hi)
+            {
+            this.state = state; this.objs = objs; this.from = from; this.to = to;
+            this.grain = grain; this.lo = lo; this.hi = hi;
+            }
+            
+        protected void compute()
+            {
+            if (hi - lo > 1)
+                {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new StepChunks(state, objs, from, to, grain, lo, mid),
+                    new StepChunks(state, objs, from, to, grain, mid, hi));
+                return;
+                }
+                
+            Worker worker = (Worker)(workers.get());
+            if (worker == null) { worker = new Worker(); worker.random = new MersenneTwisterFast(chunkSeeds[lo]); workers.set(worker); }
+            else worker.random.setSeed(chunkSeeds[lo]);
+            
+            int end = Math.min(from + (lo + 1) * grain, to);
+            try
+                {
+                for(int x = from + lo * grain; x < end; x++)
+                    {
+                    worker.index = x;
+                    ((Steppable)(objs[x])).step(state);
+                    objs[x] = null;  // let gc
+                    }
+                }
+            finally
+                {
+                worker.index = -1;
+                }
+            }
+        }
+        
+    // Moves the Repeats which rescheduled themselves during step() into the queue.  Unless single-threaded,
+    // you must synchronize on this.lock before calling this method.
+    void mergePending()
+        {
+        int n = numPending.get();
+        if (n == 0) return;
+        Repeat[] pending = this.pending;  // locals are faster
+        for(int i = 0; i < n; i++)
+            {
+            Repeat r = pending[i];
+            pending[i] = null;  // let gc
+            try
+                {
+                _scheduleOnce(r.key, r);  // may return false if we couldn't schedule, which is fine
+                }
+            catch (IllegalArgumentException e)
+                {
+                e.printStackTrace(); // something bad happened
+                }
+            }
+        numPending.set(0);
+        }
+        
+    // Empties the pending buffer without scheduling anything.  You must synchronize on this.lock before calling this method.
+    void clearPending()
+        {
+        int n = numPending.get();
+        for(int i = 0; i < n; i++)
+            pending[i] = null;  // let gc
+        numPending.set(0);
+        }
+        
+    // Called by a Repeat, while it is being stepped, to reschedule itself at its key.  In single-threaded mode it goes
+    // straight into the queue; else into the lock-free pending buffer, which is merged into the queue at the end of the step.
+    void reschedule(Repeat r)
+        {
+        if (inParallel)
+            {
+            Worker worker = (Worker)(workers.get());
+            if (worker != null && worker.index >= 0)
+                {
+                parallelPending[worker.index] = r;  // made visible to step() when the pool finishes the ordering
+                return;
+                }
+            }
+        if (!singleThreaded || inParallel)
+            {
+            pending[numPending.getAndIncrement()] = r;  // made visible to step() by whatever it waited on to finish r.step()
+            return;
+            }
+        try
+            {
+            _scheduleOnce(r.key, r);  // may return false if we couldn't schedule, which is fine
+            }
+        catch (IllegalArgumentException e)
+            {
+            e.printStackTrace(); // something bad happened
+            }
+        }
+        
+    // Removes stopped Repeats from a Bag of events just extracted from the queue.  You must synchronize on this.lock before calling this method.
+    void removeStopped(Bag events)
+        {
+        Object[] objs = events.objs;
+        for(int x = events.numObjs - 1; x >= 0; x--)
+            if (objs[x] instanceof Repeat && ((Repeat)objs[x]).step == null)
+                {
+                events.remove(x);
+                if (numStopped > 0) numStopped--;
+                }
+        }
+        
+    // Called by a Repeat when it is stopped.  Once stopped Repeats make up more than half of the queue,
+    // rebuilds the queue without them.  Each rebuild costs O(n log n) but frees up at least n/2 entries,
+    // so removing a Repeat costs O(log n) amortized.
+    void repeatStopped()
+        {
+        synchronized(lock)
+            {
+            numStopped++;
+            if (numStopped >= MIN_COMPACTION && numStopped * 2 > queue.size())
+                compact();
+            }
+        }
+        
+    /** Rebuilds the queue without any stopped repeating events.  This is done automatically as repeating events
+        are stopped, so you should rarely need to call it yourself. */
+    public void compact()
+        {
+        synchronized(lock)
+            {
+            Heap old = queue;
+            Heap queue = createHeap();
+            while(!old.isEmpty())
+                {
+                Comparable key = old.getMinKey();
+                Object event = old.extractMin();
+                if (!(event instanceof Repeat && ((Repeat)event).step == null))
+                    queue.add(event, key);  // comes out in order, so this doesn't need to bubble up
+                }
+            this.queue = queue;
+            numStopped = 0;
+            }
+        }
+
+    // kinds of events in a checkpoint
+    static final byte ONCE = 0;
+    static final byte REPEATING = 1;
+    static final byte STOPPED = 2;
+
+    /** Writes the Schedule to a checkpoint, naming each Steppable in it with the given Steppables.  Only Heaps
+        and CalendarQueues can be written.  Must be called between steps.  Throws an IOException if a Steppable
+        has no id. */
+    public void writeState(Checkpoint.Output out, Checkpoint.Steppables steppables) throws IOException
+        {
+        synchronized(lock)
+            {
+            if (inStep || numPending.get() > 0)
+                throw new IOException("The Schedule can't be checkpointed while it is being stepped");
+            out.writeDouble(time);
+            out.writeLong(steps);
+            out.writeBoolean(sealed);
+            out.writeBoolean(shuffling);
+            out.writeBoolean(singleThreaded);
+            out.writeInt(numStopped);
+            out.writeInt(parallelOrderings.numObjs);
+            out.writeInts(parallelOrderings.objs, 0, parallelOrderings.numObjs);
+            out.writeInts(parallelGrains.objs, 0, parallelGrains.numObjs);
+
+            out.writeBoolean(calendarQueue);
+            Heap heap = queue;
+            if (calendarQueue)
+                {
+                // the wheel, in order of time, then ordering, then insertion; then the overflow heap
+                CalendarQueue cq = (CalendarQueue)queue;
+                out.writeLong(cq.base);
+                out.writeInt(cq.numWheel);
+                CalendarQueue.Group[] buckets = cq.buckets;
+                for(int b = 0; b < buckets.length; b++)
+                    for(CalendarQueue.Group g = buckets[(int)((cq.base + b) & cq.mask)]; g != null; g = g.next)
+                        {
+                        Object[] events = g.events.objs;
+                        for(int i = 0; i < g.events.numObjs; i++)
+                            writeEvent(out, g.key, events[i], steppables);
+                        }
+                heap = cq.overflow;
+                }
+            else if (queue.getClass() != Heap.class)
+                throw new IOException("Can't checkpoint a Schedule whose queue is a " + queue.getClass());
+            Comparable[] keys = heap.getKeys();
+            Object[] events = heap.getObjects();
+            out.writeInt(keys.length);
+            for(int i = 0; i < keys.length; i++)
+                writeEvent(out, (Key)keys[i], events[i], steppables);
+            }
+        }
+
+    // writes an event and its key
+    void writeEvent(Checkpoint.Output out, Key key, Object event, Checkpoint.Steppables steppables) throws IOException
+        {
+        Steppable step = (Steppable)event;
+        double interval = 0;
+        byte kind = ONCE;
+        if (event instanceof Repeat)
+            {
+            Repeat r = (Repeat)event;
+            step = r.step;
+            interval = r.interval;
+            kind = (step == null ? STOPPED : REPEATING);
+            }
+        out.writeByte(kind);
+        out.writeDouble(key.time);
+        out.writeInt(key.ordering);
+        if (kind == STOPPED)
+            {
+            out.writeDouble(interval);
+            return;
+            }
+        int id = steppables.idOf(step);
+        if (id < 0)
+            throw new IOException("Can't checkpoint the Steppable " + step);
+        if (kind == REPEATING)
+            out.writeDouble(interval);
+        out.writeInt(id);
+        }
+
+    /** Replaces everything in the Schedule with what writeState(...) wrote, looking up each Steppable with the given
+        Steppables.  Throws an IOException if a Steppable can't be found. */
+    public void readState(Checkpoint.Input in, Checkpoint.Steppables steppables) throws IOException
+        {
+        synchronized(lock)
+            {
+            clearPending();
+            time = in.readDouble();
+            steps = in.readLong();
+            sealed = in.readBoolean();
+            shuffling = in.readBoolean();
+            singleThreaded = in.readBoolean();
+            numStopped = in.readInt();
+            int n = in.readInt();
+            parallelOrderings.resize(n);
+            parallelGrains.resize(n);
+            in.readInts(parallelOrderings.objs, 0, n);
+            in.readInts(parallelGrains.objs, 0, n);
+            parallelOrderings.numObjs = n;
+            parallelGrains.numObjs = n;
+
+            calendarQueue = in.readBoolean();
+            queue = createHeap();
+            Heap heap = queue;
+            if (calendarQueue)
+                {
+                // adding the wheel in order puts every event back in its group, and the groups in the same buckets
+                CalendarQueue cq = (CalendarQueue)queue;
+                long base = in.readLong();
+                int numWheel = in.readInt();
+                for(int i = 0; i < numWheel; i++)
+                    readEvent(in, cq, steppables);
+                if (numWheel > 0) cq.base = base;
+                heap = cq.overflow;
+                }
+            n = in.readInt();
+            for(int i = 0; i < n; i++)
+                readEvent(in, heap, steppables);  // in heap order, so nothing bubbles up
+            }
+        }
+
+    // reads an event and adds it to the heap
+    void readEvent(Checkpoint.Input in, Heap heap, Checkpoint.Steppables steppables) throws IOException
+        {
+        byte kind = in.readByte();
+        Key key = new Key(in.readDouble(), in.readInt());
+        if (kind == ONCE)
+            {
+            int id = in.readInt();
+            Steppable step = steppables.stepFor(id, null);
+            if (step == null)
+                throw new IOException("No Steppable with id " + id);
+            heap.add(step, key);
+            return;
+            }
+        Repeat r = new Repeat(null, in.readDouble(), key);
+        r.schedule = this;
+        if (kind == REPEATING)
+            {
+            int id = in.readInt();
+            Steppable step = steppables.stepFor(id, r);
+            if (step == null)
+                throw new IOException("No Steppable with id " + id);
+            r.step = step;
+            }
+        heap.add(r, key);
+        }
+
     /** Schedules the event to occur at getTime() + 1.0, 0 ordering. If this is a valid time
         and event, schedules the event and returns TRUE.
         This method at present returns FALSE if the schedule cannot
@@ -646,6 +1215,7 @@ public class Schedule implements java.io.Serializable
         if (interval <= 0) throw new IllegalArgumentException("The steppable " +  event + " was scheduled repeating with an impossible interval ("+interval+")");
         Schedule.Key k = new Schedule.Key(time,ordering);
         Repeat r = new Repeat(event,interval,k);
+        r.schedule = this;
 
         synchronized(lock)
             {
@@ -722,8 +1292,8 @@ public class Schedule implements java.io.Serializable
 /**
    Handles repeated steps.  This is done by wrapping the Steppable with a Repeat object
    which is itself Steppable, and on its step calls its subsidiary Steppable, then reschedules
-   itself.  Repeat is stopped by setting its subsidiary to null, and so the next time it's
-   scheduled it won't reschedule itself (or call the subsidiary).   A private class for
+   itself.  Repeat is stopped by setting its subsidiary to null and telling its Schedule, which
+   drops it from the queue rather than stepping it again.   A private class for
    Schedule.  We've moved it out of being an inner class of Schedule and will ultimately make
    it a separate class in the package.
 */
@@ -731,8 +1301,9 @@ public class Schedule implements java.io.Serializable
 class Repeat implements Steppable, Stoppable
     {
     double interval;
-    Steppable step;  // if null, does not reschedule
+    volatile Steppable step;  // if null, does not reschedule
     Schedule.Key key;
+    Schedule schedule;  // told when we're stopped; may be null
         
     public Repeat(final Steppable step, final double interval, final Schedule.Key key)
         {
@@ -748,28 +1319,30 @@ class Repeat implements Steppable, Stoppable
         this.key = key;
         }
         
-    public synchronized void step(final SimState state)
+    // Not synchronized: only the Schedule steps us, and it reschedules us without taking its lock if it can.
+    // stop() may be called from another thread, so we read step just once.
+    public void step(final SimState state)
         {
+        final Steppable step = this.step;
         if (step!=null)
             {
-            try
-                {
-                // reuse the Key to save some gc perhaps -- it's been pulled out and discarded at this point
-                key.time += interval;
-                if (key.time < Schedule.AFTER_SIMULATION) 
-                    state.schedule.scheduleOnce(key,this);  // may return false if we couldn't schedule, which is fine
-                }
-            catch (IllegalArgumentException e)
-                {
-                e.printStackTrace(); // something bad happened
-                }
+            // reuse the Key to save some gc perhaps -- it's been pulled out and discarded at this point
+            key.time += interval;
+            if (key.time < Schedule.AFTER_SIMULATION) 
+                (schedule != null ? schedule : state.schedule).reschedule(this);
             step.step(state);
             }
         }
         
-    public synchronized void stop()  
+    public void stop()  
         {
-        step = null;
+        synchronized(this)
+            {
+            if (step == null) return;  // already stopped
+            step = null;
+            }
+        // outside our lock, so we never hold it while waiting for the Schedule's
+        if (schedule != null) schedule.repeatStopped();
         }
         
     public String toString() { return "Repeat[" + step + "]"; }
@@ -8,16 +8,15 @@ package sim.engine;
 import ec.util.*;
 import java.util.*;
 import java.io.*;
-import java.util.zip.*;
 import java.text.*;
 
 /** SimState represents the simulation proper.  Your simulations generally will contain one top-level object which subclasses from SimState.
 
     <p>A SimState contains the random number generator and the simulator's schedule.  You should not change the schedule to another Schedule object.
 
-    <p>When a simulation is begun, SimState's start() method is called.  Then the schedule is stepped some N times.  Last, the SimState's finish() method is called, and the simulation is over.
+    <p>When a simulation is begun, SimState's start() method is called.  Then the schedule is stepped some N times.  Last, the SimState's finish() method is called, and the simulation is over.  The simulation may be stopped early by StoppingRules: see addStoppingRule().
 
-    <p>SimStates are serializable; if you wish to be able to checkpoint your simulation and read from checkpoints, you should endeavor to make all objects in the simulation serializable as well.  Prior to serializing to a checkpoint, preCheckpoint() is called.  Then after serialization, postCheckpoint() is called.  When a SimState is loaded from a checkpoint, awakeFromCheckpoint() is called to give you a chance to make any adjustments.  SimState also implements several methods which call these methods and then serialize the SimState to files and to streams.
+    <p>SimStates are serializable; if you wish to be able to checkpoint your simulation and read from checkpoints, you should endeavor to make all objects in the simulation serializable as well.  Prior to serializing to a checkpoint, preCheckpoint() is called.  Then after serialization, postCheckpoint() is called.  When a SimState is loaded from a checkpoint, awakeFromCheckpoint() is called to give you a chance to make any adjustments.  SimState also implements several methods which call these methods and then serialize the SimState to files and to streams.  Rather than being serialized, a SimState may write and read its own compact checkpoints by implementing Checkpoint.Codec: see Checkpoint.
 
     <p>SimState also maintains a private registry of AsynchronousSteppable objects, and handles pausing and resuming
     them during the checkpointing process, and killing them during finish() in case they had not completed yet.
@@ -39,6 +38,11 @@ public class SimState implements java.io.Serializable
     Object asynchronousLock = new boolean[1];  // an array is a unique, serializable object
     // Are we cleaning house and replacing the HashSet?
     public boolean cleaningAsynchronous = false;
+
+    // All added StoppingRules, the one which stopped the simulation (if any), and when
+    ArrayList stoppingRules = new ArrayList();
+    StoppingRule stoppedBy = null;
+    double stoppedAt = Schedule.BEFORE_SIMULATION;
         
     SimState(long seed, MersenneTwisterFast random, Schedule schedule)
         {
@@ -105,6 +109,74 @@ public class SimState implements java.io.Serializable
         cleanupAsynchronous();
         // reset schedule
         schedule.reset();
+        // reset stopping rules
+        stoppedBy = null;
+        stoppedAt = Schedule.BEFORE_SIMULATION;
+        for(int i = 0; i < stoppingRules.size(); i++)
+            ((StoppingRule)(stoppingRules.get(i))).reset();
+        }
+
+    /** Adds a rule which stops the simulation early once it holds (see StoppingRule).  Rules must be
+        added before start() is called; they are checked in the order they were added. */
+    public void addStoppingRule(StoppingRule rule)
+        {
+        stoppingRules.add(rule);
+        }
+        
+    /** Returns the stopping rules which have been added, in order. */
+    public StoppingRule[] getStoppingRules()
+        {
+        return (StoppingRule[])(stoppingRules.toArray(new StoppingRule[stoppingRules.size()]));
+        }
+
+    /** Returns the stopping rule which stopped the simulation, or null if none has (yet). */
+    public StoppingRule getStoppedBy() { return stoppedBy; }
+        
+    /** Returns the simulation time at the end of which a stopping rule stopped the simulation, or
+        Schedule.BEFORE_SIMULATION if none has (yet). */
+    public double getStoppedAt() { return stoppedAt; }
+
+    // Called by the Schedule at the end of every time step if there are stopping rules.  Kills the
+    // simulation if one of them says so.
+    void checkStoppingRules()
+        {
+        ArrayList stoppingRules = this.stoppingRules;  // locals are faster
+        for(int i = 0; i < stoppingRules.size(); i++)
+            {
+            StoppingRule rule = (StoppingRule)(stoppingRules.get(i));
+            if (rule.check(this))
+                {
+                stoppedBy = rule;
+                stoppedAt = schedule.getTime();
+                kill();
+                return;
+                }
+            }
+        }
+
+    /** Writes the state of the stopping rules to a compact checkpoint.  Models which have stopping rules and
+        implement Checkpoint.Codec should call this in writeState(). */
+    public void writeStoppingRules(Checkpoint.Output out) throws IOException
+        {
+        out.writeInt(stoppingRules.size());
+        for(int i = 0; i < stoppingRules.size(); i++)
+            ((StoppingRule)(stoppingRules.get(i))).writeState(out);
+        out.writeInt(stoppingRules.indexOf(stoppedBy));
+        out.writeDouble(stoppedAt);
+        }
+
+    /** Reads the state of the stopping rules from a compact checkpoint, as written by writeStoppingRules().
+        The same stopping rules must have been added, in the same order, as when the checkpoint was written. */
+    public void readStoppingRules(Checkpoint.Input in) throws IOException
+        {
+        int num = in.readInt();
+        if (num != stoppingRules.size())
+            throw new IOException("The checkpoint has " + num + " stopping rules, but the simulation has " + stoppingRules.size());
+        for(int i = 0; i < num; i++)
+            ((StoppingRule)(stoppingRules.get(i))).readState(in);
+        int stopped = in.readInt();
+        stoppedBy = (stopped < 0 ? null : (StoppingRule)(stoppingRules.get(stopped)));
+        stoppedAt = in.readDouble();
         }
         
     /** Called either at the proper or a premature end to the simulation. 
@@ -230,26 +302,16 @@ public class SimState implements java.io.Serializable
         for(int x=0;x<len;x++) b[x].resume();
         }
 
-    /** Serializes out the SimState, and the entire simulation state (not including the graphical interfaces)
-        to the provided stream. Calls preCheckpoint() before and postCheckpoint() afterwards.
+    /** Writes the SimState, and the entire simulation state (not including the graphical interfaces)
+        to the provided stream as a checkpoint: in the compact format if the SimState is a Checkpoint.Codec, else
+        serialized.  See Checkpoint.  Calls preCheckpoint() before and postCheckpoint() afterwards.
         Throws an IOException if the stream becomes invalid (prematurely closes, etc.).  Does not close or flush
         the stream. */
     public void writeToCheckpoint(OutputStream stream) throws IOException
         {
-        preCheckpoint();
-
-        GZIPOutputStream g = 
-            new GZIPOutputStream(
-                new BufferedOutputStream(stream));
-
-        ObjectOutputStream s = 
-            new ObjectOutputStream(g);
-            
-        s.writeObject(this);
-        s.flush();
-        g.finish();  // need to force out the gzip stream AND manually flush it.  Java's annoying.  Took a while to find this bug...
-        g.flush();
-        postCheckpoint();
+        Checkpoint.Output snapshot = new Checkpoint.Output();
+        Checkpoint.snapshot(this, snapshot);
+        Checkpoint.write(snapshot, this instanceof Checkpoint.Codec, Checkpoint.FAST, stream);
         }
     
     /** Writes the state to a checkpoint and returns the state.
@@ -258,7 +320,9 @@ public class SimState implements java.io.Serializable
         {
         try {
             FileOutputStream f = new FileOutputStream(file);
-            writeToCheckpoint(f);
+            BufferedOutputStream b = new BufferedOutputStream(f);
+            writeToCheckpoint(b);
+            b.flush();
             f.close();
             return this;
             }
@@ -267,10 +331,17 @@ public class SimState implements java.io.Serializable
     
     /** Creates a SimState from checkpoint.  If an exception is raised, it is printed and null is returned. */
     public static SimState readFromCheckpoint(File file)
+        {
+        return readFromCheckpoint(file, null, null);
+        }
+
+    /** Creates a SimState from checkpoint, constructing it with the given generator and arguments if it was
+        written in the compact format (see Checkpoint).  If an exception is raised, it is printed and null is returned. */
+    public static SimState readFromCheckpoint(File file, MakesSimState generator, String[] args)
         {
         try {
             FileInputStream f = new FileInputStream(file);
-            SimState state = readFromCheckpoint(f);
+            SimState state = readFromCheckpoint(f, generator, args);
             f.close();
             return state;
             }
@@ -285,15 +356,33 @@ public class SimState implements java.io.Serializable
     public static SimState readFromCheckpoint(InputStream stream)
         throws IOException, ClassNotFoundException, OptionalDataException, ClassCastException
         {
-        ObjectInputStream s = 
-            new ObjectInputStream(
-                new GZIPInputStream (
-                    new BufferedInputStream(stream)));
-        SimState state = (SimState) (s.readObject());
+        return readFromCheckpoint(stream, null, null);
+        }
+
+    /** Creates and returns a new SimState object read in from the provided stream, as readFromCheckpoint(stream) does.
+        If the checkpoint was written in the compact format and the generator makes SimStates of its class, the
+        SimState is constructed with generator.newInstance(seed, args) before its state is read in; else with its
+        constructor taking a long seed. */
+    public static SimState readFromCheckpoint(InputStream stream, MakesSimState generator, String[] args)
+        throws IOException, ClassNotFoundException, OptionalDataException, ClassCastException
+        {
+        SimState state = Checkpoint.read(stream, generator, args);
         state.awakeFromCheckpoint();
         return state;
         }
     
+    /** Forks the simulation: returns copies of its current state, one for each of the given seeds (which must not be 0).
+        Each copy has its own random number generator, seeded with its seed, and its seed() is that seed; otherwise it is
+        exactly this simulation, and may be stepped on from here, independently of it and of the other copies -- for example
+        in parallel, or after changing some of its parameters to explore what would happen if.  The copies are made as a
+        checkpoint is, in memory (see Checkpoint): this simulation must be a Checkpoint.Codec or be Serializable, and
+        is snapshotted just once.  Compact copies are constructed with generator.newInstance(seed, args), or with their
+        constructor taking a long seed if generator is null; awakeFromCheckpoint() is called on each copy. */
+    public SimState[] fork(long[] seeds, MakesSimState generator, String[] args) throws IOException
+        {
+        return Checkpoint.fork(this, seeds, generator, args);
+        }
+
 /*
   static int indexAfterArgumentForKey(String key, String[] args, int startingAt)
   {
@@ -366,7 +455,8 @@ public class SimState implements java.io.Serializable
         responsible for providing a SimState to run the simulation on, plus the application's argument
         list in args.  This loop is capable of:
         <ul>
-        <li> Repeating a job multiple times
+        <li> Repeating a job multiple times, one after another or several at once
+        <li> Reporting when a job was stopped early by one of its stopping rules (see StoppingRule)
         </ul>
     */
     public static void doLoop(MakesSimState generator, String[] args)
@@ -377,7 +467,8 @@ public class SimState implements java.io.Serializable
             System.err.println(
                 "Format:           java " + generator.simulationClass().getName() + " \\\n" +
                 "                       [-help] [-repeat R] [-seed S] [-until U] \\\n" +
-                "                       [-for F] [-time T] [-docheckpoint D] [-checkpoint C] \n\n" +
+                "                       [-for F] [-time T] [-docheckpoint D] [-compression Z] \\\n" +
+                "                       [-checkpoint C] [-parallel P] \n\n" +
                 "-help             Shows this message and exits.\n\n" +
                 "-repeat R         Long value > 0: Runs the job R times.  Unless overridden by a\n" +
                 "                  checkpoint recovery (see -checkpoint), the random seed for\n" +
@@ -402,7 +493,11 @@ public class SimState implements java.io.Serializable
                 "                  Checkpoint files named\n"+
                 "                  <steps>.<job#>." + 
                 generator.simulationClass().getName().substring(generator.simulationClass().getName().lastIndexOf(".") + 1) + 
-                ".checkpoint\n\n" + 
+                ".checkpoint\n" +
+                "                  The simulation pauses only to snapshot its state: the\n" +
+                "                  file is compressed and written in the background.\n\n" +
+                "-compression Z    String: how hard to compress checkpoints: none, fast, or\n" +
+                "                  small.  Default: fast.\n\n" + 
                 "-checkpoint C     String: loads the simulation from file C, recovering the job\n" +
                 "                  number and the seed.  If the checkpointed simulation was begun\n" +
                 "                  on the command line but was passed through the GUI for a while\n" +
@@ -413,7 +508,16 @@ public class SimState implements java.io.Serializable
                 "                  job will be set to 0. Further jobs and seeds are incremented\n" +
                 "                  from the recovered job and seed.\n" +
                 "                  Default: starts a new simulation rather than loading one, at\n" +
-                "                  job 0 and with the seed given in -seed.\n");
+                "                  job 0 and with the seed given in -seed.\n\n" +
+                "-parallel P       Integer value > 0: runs up to P of the -repeat jobs at once,\n" +
+                "                  each on its own thread with its own simulation.  Each job\n" +
+                "                  prints its own timestamps and checkpoints, prefixed with\n" +
+                "                  its job number.  What each job prints to standard output\n" +
+                "                  is held back until the job is done, and then printed in one\n" +
+                "                  piece, in job order.  Models whose classes have static fields\n" +
+                "                  which aren't final are refused, since the jobs would share\n" +
+                "                  those fields.\n" +
+                "                  Default: 1, running the jobs one after another.\n");
             System.exit(0);
             }
 
@@ -487,6 +591,15 @@ public class SimState implements java.io.Serializable
                 throw new RuntimeException("Invalid checkpoint modulo: " + cmod_s + ", must be a positive integer");
                 }
         
+        int compression = Checkpoint.FAST;
+        String compression_s = argumentForKey("-compression", args, 0);
+        if (compression_s != null)
+            {
+            compression = Checkpoint.compressionForName(compression_s);
+            if (compression < 0)
+                throw new RuntimeException("Invalid compression: " + compression_s + ", must be none, fast, or small");
+            }
+        
         long repeat = 1;
         String repeat_s = argumentForKey("-repeat", args, 0);
         if (repeat_s != null)
@@ -500,102 +613,307 @@ public class SimState implements java.io.Serializable
                 throw new RuntimeException("Invalid repeat value: " + repeat + ", must be a positive integer");
                 }
        
+        int parallel = 1;
+        String parallel_s = argumentForKey("-parallel", args, 0);
+        if (parallel_s != null)
+            try
+                {
+                parallel = Integer.parseInt(parallel_s);
+                if (parallel <= 0) throw new Exception();
+                }
+            catch (Exception e)
+                {
+                throw new RuntimeException("Invalid parallel value: " + parallel_s + ", must be a positive integer");
+                }
+        if (parallel > repeat) parallel = (int)repeat;
+        
+        // jobs running at once would share the model's static fields
+        if (parallel > 1)
+            {
+            ArrayList fields = staticMutableFields(generator.simulationClass());
+            if (fields.size() > 0)
+                {
+                System.err.println("Can't run jobs in parallel: these static fields aren't final, so the jobs would share them:");
+                for(int i = 0; i < fields.size(); i++)
+                    System.err.println("    " + fields.get(i));
+                System.exit(1);
+                }
+            }
+       
         // okay, now we actually get down to brass tacks
         
         long job = 0;
-        for(long rep = 0 ; rep < repeat; rep++)
-            {
-            SimState state = null;
+        SimState first = null;
         
-            // start from checkpoint?
-            String checkpointFile = argumentForKey("-checkpoint", args, 0);
-            if (rep == 0 && checkpointFile!=null)  // only job 0 loads from checkpoint
+        // start from checkpoint?
+        String checkpointFile = argumentForKey("-checkpoint", args, 0);
+        if (checkpointFile!=null)  // only job 0 loads from checkpoint
+            {
+            System.err.println("Loading from checkpoint " + checkpointFile);
+            first = SimState.readFromCheckpoint(new File(checkpointFile), generator, args);
+            if (first == null)   // there was an error -- it got printed out to the screen, so just quit
+                System.exit(1);
+            else if (first.getClass() != generator.simulationClass())  // uh oh, wrong simulation stored in the file!
                 {
-                System.err.println("Loading from checkpoint " + checkpointFile);
-                state = SimState.readFromCheckpoint(new File(checkpointFile));
-                if (state == null)   // there was an error -- it got printed out to the screen, so just quit
-                    System.exit(1);
-                else if (state.getClass() != generator.simulationClass())  // uh oh, wrong simulation stored in the file!
-                    {
-                    System.err.println("Checkpoint contains some other simulation: " + state + ", should have been of class " + generator.simulationClass());
-                    System.exit(1);
-                    }
-                                        
-                state.nameThread();
+                System.err.println("Checkpoint contains some other simulation: " + first + ", should have been of class " + generator.simulationClass());
+                System.exit(1);
+                }
 
-                job = state.job();
-                if (state.seed() != 0) // likely good seed from the command line earlier
-                    {
-                    seed = state.seed();
-                    System.err.println("Recovered job: " + state.job() + " Seed: " + state.seed());
-                    }
-                else System.err.println("Renamed job: " + state.job() + " (unknown seed)");
+            job = first.job();
+            if (first.seed() != 0) // likely good seed from the command line earlier
+                {
+                seed = first.seed();
+                System.err.println("Recovered job: " + first.job() + " Seed: " + first.seed());
                 }
+            else System.err.println("Renamed job: " + first.job() + " (unknown seed)");
+            }
 
-            // ...or should we start fresh?
-            if (state==null)  // no checkpoint file requested
+        if (parallel == 1)
+            {
+            for(long rep = 0 ; rep < repeat; rep++)
                 {
-                state = generator.newInstance(seed,args);
-                state.nameThread();
-                state.job = job;
-                state.seed = seed;
-                System.err.println("Job: " + state.job() + " Seed: " + state.seed());
-                System.err.println("Starting " + state.getClass().getName());
-                state.start();
+                runJob(generator, args, (rep == 0 ? first : null), job, seed, until, _for, time, cmod, compression, "");
+                job++;
+                seed++;
                 }
-            
-            job++;
-            seed++;
-                        
-            NumberFormat rateFormat = NumberFormat.getInstance();
-            rateFormat.setMaximumFractionDigits(5);
-            rateFormat.setMinimumIntegerDigits(1);
-
-            // do the loop
-            boolean retval = false;
-            long steps = 0;
-            long clock;
-            long oldClock = System.currentTimeMillis();
-            Schedule schedule = state.schedule;
-            long firstSteps = schedule.getSteps();
-            
-            while((_for == -1 || steps < _for) && schedule.getTime() <= until)
+            return;
+            }
+        
+        // run the jobs on a pool of threads, each with its own SimState.  Every job reports its progress
+        // on its own, tagged with its job number.  What the jobs print to System.out is held back and printed
+        // job by job, in job order, so it doesn't get mixed up
+        System.err.println("Running " + repeat + " jobs, " + parallel + " at a time");
+        final PrintStream stdout = System.out;
+        final JobOutput jobOutput = new JobOutput(stdout);
+        final byte[][] outputs = new byte[(int)repeat][];
+        System.setOut(new PrintStream(jobOutput, true));
+        java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(parallel);
+        java.util.concurrent.Future[] results = new java.util.concurrent.Future[(int)repeat];
+        try
+            {
+            for(int rep = 0 ; rep < repeat; rep++)
                 {
-                if (!schedule.step(state)) 
-                    {
-                    retval=true; 
-                    break;
-                    }
-                steps = schedule.getSteps();
-                if (time < 0)  // don't know how long to make the time yet
+                final int _rep = rep;
+                final MakesSimState _generator = generator;
+                final String[] _args = args;
+                final SimState _state = (rep == 0 ? first : null);
+                final long _job = job;
+                final long _seed = seed;
+                final double _until = until;
+                final long __for = _for;
+                final long _time = time;
+                final long _cmod = cmod;
+                final int _compression = compression;
+                results[rep] = pool.submit(new Runnable()
                     {
-                    if (System.currentTimeMillis() - oldClock > 1000L)  // time to set the time
+                    public void run()
                         {
-                        time = figureTime(steps - firstSteps);
+                        ByteArrayOutputStream output = jobOutput.begin();
+                        try
+                            {
+                            runJob(_generator, _args, _state, _job, _seed, _until, __for, _time, _cmod, _compression, "Job " + _job + ": ");
+                            }
+                        finally
+                            {
+                            System.out.flush();
+                            jobOutput.end();
+                            outputs[_rep] = output.toByteArray();
+                            }
                         }
+                    });
+                job++;
+                seed++;
+                }
+            for(int rep = 0 ; rep < repeat; rep++)
+                {
+                try
+                    {
+                    results[rep].get();
+                    }
+                catch (java.util.concurrent.ExecutionException e)
+                    {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new RuntimeException(cause);
                     }
-                if (time > 0 && steps % time == 0)
+                catch (InterruptedException e)
                     {
-                    clock = System.currentTimeMillis();
-                    System.err.println("Steps: " + steps + " Time: " + state.schedule.getTimestamp("At Start", "Done") + " Rate: " + rateFormat.format((1000.0 *(steps - firstSteps)) / (clock - oldClock)));
-                    firstSteps = steps;
-                    oldClock = clock;
+                    throw new RuntimeException(e);
                     }
-                if (cmod > 0 && steps % cmod == 0)
+                finally
                     {
-                    String s = "" + steps + "." + state.job() +  "." + state.getClass().getName().substring(state.getClass().getName().lastIndexOf(".") + 1) + ".checkpoint";
-                    System.err.println("Checkpointing to file: " + s);
-                    state.writeToCheckpoint(new File(s));
+                    if (outputs[rep] != null)
+                        {
+                        stdout.write(outputs[rep], 0, outputs[rep].length);
+                        stdout.flush();
+                        outputs[rep] = null;  // let GC
+                        }
                     }
                 }
+            }
+        finally
+            {
+            pool.shutdownNow();
+            System.setOut(stdout);
+            }
+        }
+    
+    /** Stands in for System.out while doLoop runs jobs in parallel: what a thread running a job prints goes
+        to that job's own buffer, and what any other thread prints goes straight to the real System.out. */
+    static class JobOutput extends OutputStream
+        {
+        OutputStream out;
+        ThreadLocal buffer = new ThreadLocal();
+        
+        JobOutput(OutputStream out) { this.out = out; }
+        
+        // sends what the current thread prints to a new buffer, which is returned
+        ByteArrayOutputStream begin()
+            {
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            buffer.set(b);
+            return b;
+            }
+        
+        // sends what the current thread prints to the real System.out again
+        void end() { buffer.set(null); }
+        
+        public void write(int b) throws IOException
+            {
+            ByteArrayOutputStream b2 = (ByteArrayOutputStream)(buffer.get());
+            if (b2 != null) b2.write(b);
+            else out.write(b);
+            }
+        
+        public void write(byte[] b, int off, int len) throws IOException
+            {
+            ByteArrayOutputStream b2 = (ByteArrayOutputStream)(buffer.get());
+            if (b2 != null) b2.write(b, off, len);
+            else out.write(b, off, len);
+            }
+        
+        public void flush() throws IOException
+            {
+            if (buffer.get() == null) out.flush();
+            }
+        }
+    
+    /** Runs a single job of doLoop in the current thread: either the given state, loaded from a checkpoint,
+        or if it's null, a new one from the generator.  Every line printed is prefixed with the given prefix. */
+    static void runJob(MakesSimState generator, String[] args, SimState state, long job, long seed, 
+        double until, long _for, long time, long cmod, int compression, String prefix)
+        {
+        if (state==null)  // no checkpoint file requested
+            {
+            state = generator.newInstance(seed,args);
+            state.nameThread();
+            state.job = job;
+            state.seed = seed;
+            if (prefix.length() == 0) System.err.println("Job: " + state.job() + " Seed: " + state.seed());
+            else System.err.println(prefix + "Seed: " + state.seed());  // the prefix already gives the job
+            System.err.println(prefix + "Starting " + state.getClass().getName());
+            state.start();
+            }
+        else state.nameThread();
+                        
+        NumberFormat rateFormat = NumberFormat.getInstance();
+        rateFormat.setMaximumFractionDigits(5);
+        rateFormat.setMinimumIntegerDigits(1);
+
+        // do the loop
+        Checkpoint.Writer checkpointWriter = new Checkpoint.Writer(compression);
+        boolean retval = false;
+        long steps = 0;
+        long clock;
+        long oldClock = System.currentTimeMillis();
+        Schedule schedule = state.schedule;
+        long firstSteps = schedule.getSteps();
+            
+        while((_for == -1 || steps < _for) && schedule.getTime() <= until)
+            {
+            if (!schedule.step(state)) 
+                {
+                retval=true; 
+                break;
+                }
+            steps = schedule.getSteps();
+            if (time < 0)  // don't know how long to make the time yet
+                {
+                if (System.currentTimeMillis() - oldClock > 1000L)  // time to set the time
+                    {
+                    time = figureTime(steps - firstSteps);
+                    }
+                }
+            if (time > 0 && steps % time == 0)
+                {
+                clock = System.currentTimeMillis();
+                System.err.println(prefix + "Steps: " + steps + " Time: " + state.schedule.getTimestamp("At Start", "Done") + " Rate: " + rateFormat.format((1000.0 *(steps - firstSteps)) / (clock - oldClock)));
+                firstSteps = steps;
+                oldClock = clock;
+                }
+            if (cmod > 0 && steps % cmod == 0)
+                {
+                String s = "" + steps + "." + state.job() +  "." + state.getClass().getName().substring(state.getClass().getName().lastIndexOf(".") + 1) + ".checkpoint";
+                System.err.println(prefix + "Checkpointing to file: " + s);
+                checkpointWriter.write(state, new File(s));
+                }
+            }
                 
-            state.finish();
+        checkpointWriter.finish();
+        StoppingRule stoppedBy = state.getStoppedBy();
+        double stoppedAt = state.getStoppedAt();
+        state.finish();
             
-            if (retval) System.err.println("Exhausted");
-            else System.err.println("Quit");
+        if (stoppedBy != null) System.err.println(prefix + "Stopped at time " + stoppedAt + ": " + stoppedBy);
+        else if (retval) System.err.println(prefix + "Exhausted");
+        else System.err.println(prefix + "Quit");
+        }
+    
+    /** Returns the static fields which aren't final (as java.lang.reflect.Fields) of the given model class, of its
+        superclasses up to SimState, of its member classes, and of the classes of their instance fields, and so on.
+        Java's and MASON's own classes aren't examined, but the apps' (sim.app) are.  Several copies of a model with 
+        such fields can't run at once in the same VM, since they'd share the fields: doLoop uses this to refuse
+        running them with -parallel. */
+    public static ArrayList staticMutableFields(Class c)
+        {
+        ArrayList fields = new ArrayList();
+        HashSet seen = new HashSet();
+        LinkedList pending = new LinkedList();
+        pending.add(c);
+        while(!pending.isEmpty())
+            {
+            c = (Class) pending.removeFirst();
+            while (c.isArray()) c = c.getComponentType();
+            if (c.isPrimitive() || seen.contains(c) || !isModelClass(c)) continue;
+            seen.add(c);
+            
+            java.lang.reflect.Field[] f = c.getDeclaredFields();
+            for(int i = 0; i < f.length; i++)
+                {
+                int mod = f[i].getModifiers();
+                if (f[i].isSynthetic()) continue;
+                if (java.lang.reflect.Modifier.isStatic(mod))
+                    { if (!java.lang.reflect.Modifier.isFinal(mod)) fields.add(f[i]); }
+                else pending.add(f[i].getType());
+                }
+            if (c.getSuperclass() != null) pending.add(c.getSuperclass());
+            Class[] member = c.getDeclaredClasses();
+            for(int i = 0; i < member.length; i++)
+                pending.add(member[i]);
             }
+        return fields;
         }
     
+    // classes which are part of the model rather than of Java or of MASON itself
+    static boolean isModelClass(Class c)
+        {
+        String name = c.getName();
+        if (name.startsWith("sim.app.")) return true;
+        return !(name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.") || 
+            name.startsWith("jdk.") || name.startsWith("sim.") || name.startsWith("ec."));
+        }
+
     /** Names the current thread an appropriate name given the SimState */
     public void nameThread()
         {
@@ -0,0 +1,144 @@
+/*
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.engine;
+import sim.util.*;
+import java.io.*;
+
+/**
+   A condition under which a simulation may stop early, typically because running it any longer can't change
+   its outcome: say, every agent has died.  Add stopping rules to a SimState with addStoppingRule() before calling
+   start().  The Schedule checks them at the end of every time step, after everything has been stepped, and as soon
+   as one of them has held for holdFor checks in a row, the simulation is killed (see SimState.kill()), so the next
+   Schedule.step() returns false.  SimState.getStoppedBy() then tells which rule stopped it.
+
+   <p>Subclasses implement holds().  Steady is a ready-made rule which holds when some value has settled down.
+
+   <p>A stopping rule remembers what it has seen so far: if the simulation is written to a compact checkpoint
+   (see Checkpoint), its state must be written too, with SimState.writeStoppingRules().
+*/
+
+public abstract class StoppingRule implements Serializable
+    {
+    private static final long serialVersionUID = 1;
+
+    String name;
+    int holdFor;
+    int count = 0;
+
+    /** Creates a stopping rule with the given name (for messages), which stops the simulation once holds() has
+        returned true holdFor times in a row. */
+    public StoppingRule(String name, int holdFor)
+        {
+        if (holdFor < 1)
+            throw new IllegalArgumentException("A stopping rule must hold at least once, not " + holdFor + " times");
+        this.name = name;
+        this.holdFor = holdFor;
+        }
+
+    /** Returns true if the simulation, at the end of the current time step, is in a state where it may stop. */
+    public abstract boolean holds(SimState state);
+
+    /** Returns the number of checks in a row in which the rule has to hold before the simulation stops. */
+    public int getHoldFor() { return holdFor; }
+
+    // called at the end of every time step: returns true if the simulation should stop
+    boolean check(SimState state)
+        {
+        if (holds(state)) count++;
+        else count = 0;
+        return count >= holdFor;
+        }
+
+    /** Forgets everything seen so far.  Called by SimState.start().  If you override this method, be sure to call
+        super.reset(). */
+    public void reset()
+        {
+        count = 0;
+        }
+
+    /** Writes what the rule has seen so far to a checkpoint.  If you override this method, be sure to call
+        super.writeState(out) first. */
+    public void writeState(Checkpoint.Output out) throws IOException
+        {
+        out.writeInt(count);
+        }
+
+    /** Reads what the rule had seen so far from a checkpoint, as written by writeState(). */
+    public void readState(Checkpoint.Input in) throws IOException
+        {
+        count = in.readInt();
+        }
+
+    public String toString() { return name; }
+
+
+    /** A rule which holds once the variance of a value over the last window time steps is below epsilon,
+        for instance once the number of agents alive has stopped changing. */
+    public static class Steady extends StoppingRule
+        {
+        private static final long serialVersionUID = 1;
+
+        Valuable value;
+        double epsilon;
+        double[] window;
+        int next = 0;   // where the next value goes in the window
+        int num = 0;    // how many values are in the window
+
+        /** Creates a rule which holds once the variance of the given value over the last window time steps
+            is below epsilon. */
+        public Steady(String name, Valuable value, int window, double epsilon)
+            {
+            super(name, 1);
+            if (window < 2)
+                throw new IllegalArgumentException("The window of a Steady stopping rule must be at least 2 steps, not " + window);
+            this.value = value;
+            this.window = new double[window];
+            this.epsilon = epsilon;
+            }
+
+        public boolean holds(SimState state)
+            {
+            double[] window = this.window;  // locals are faster
+            int len = window.length;
+            window[next] = value.doubleValue();
+            next = (next + 1) % len;
+            if (num < len) num++;
+            if (num < len) return false;
+
+            double mean = 0;
+            for(int i = 0; i < len; i++)
+                mean += window[i];
+            mean /= len;
+            double variance = 0;
+            for(int i = 0; i < len; i++)
+                variance += (window[i] - mean) * (window[i] - mean);
+            return variance / len < epsilon;
+            }
+
+        public void reset()
+            {
+            super.reset();
+            next = 0;
+            num = 0;
+            }
+
+        public void writeState(Checkpoint.Output out) throws IOException
+            {
+            super.writeState(out);
+            out.writeInt(next);
+            out.writeInt(num);
+            out.writeDoubles(window, 0, window.length);
+            }
+
+        public void readState(Checkpoint.Input in) throws IOException
+            {
+            super.readState(in);
+            next = in.readInt();
+            num = in.readInt();
+            in.readDoubles(window, 0, window.length);
+            }
+        }
+    }
@@ -270,159 +270,142 @@ public /*strictfp*/ class Continuous2D extends SparseField implements SparseFiel
         return new Double2D(tdx(d1.x,d2.x),tdy(d1.y,d2.y));
         }
     
-    final static double SQRT_2_MINUS_1_DIV_2 = (Math.sqrt(2.0) - 1) * 0.5;  // about 0.20710678118654757, yeesh, I hope my math's right.
-    final static int NEAREST_NEIGHBOR_GAIN = 10;  // the ratio of searches before we give up and just hand back the entire allObjects bag.
-    
     /**
        Finds and returns at LEAST the 'atleastThisMany' items closest to a given 'position', plus potentially other items.
-       <b>toroidal must be false -- presently it's not supported.</b>  If objects are non-point and may overlap into another discretization cell,
-       set 'nonPointObjects' to true.  If you want the distance to be radial -- that is, the region searched will be a circle centered at the position,
-       set 'radial' to true (almost always you want this).  If you want the region searched to be a rectangle centered at the position, set
-       'radial' to be false.  Returns a bag of items.  If 'result' is provided, clears that Bag and reuses it.
+       If objects are non-point and may overlap into another discretization cell, set 'nonPointObjects' to true, and
+       the result will also hold every object whose bounding box could reach as near as the farthest of those items.
+       'radial' is ignored: the nearest items are always those nearest by radial distance.  Returns a bag of items.
+       If 'result' is provided, clears that Bag and reuses it.  See getKNearestNeighbors(...), which this method calls.
     */
     public Bag getNearestNeighbors(Double2D position, int atLeastThisMany, final boolean toroidal, final boolean nonPointObjects, boolean radial, Bag result)
         {
-        if (toroidal) throw new InternalError("Toroidal not presently supported in getNearestNeighbors");
-        if (result == null) result = new Bag(atLeastThisMany);
-        else result.clear();
-        int maxSearches = allObjects.numObjs / NEAREST_NEIGHBOR_GAIN;
-
-        if (atLeastThisMany >= allObjects.numObjs)  { result.clear(); result.addAll(allObjects); return result; }
-
-        Int2D d = discretize(position);
-        int x1 = d.x;
-        int x2 = d.x;
-        int y1 = d.y;
-        int y2 = d.y;
-        int searches = 0;
-        
-        MutableInt2D speedyMutableInt2D = this.speedyMutableInt2D;  // a little faster (local)
+        DoubleBag distances = new DoubleBag();
+        result = getKNearestNeighbors(position, atLeastThisMany, toroidal, result, distances);
+        if (!nonPointObjects || result.numObjs == 0 || result.numObjs == allObjects.numObjs) return result;
+        return getObjectsWithinDistance(position, distances.objs[distances.numObjs - 1], toroidal, true, result);
+        }
 
-        // grab the first box
-            
-        if (searches >= maxSearches) { result.clear(); result.addAll(allObjects); return result; }
-        searches++;
-        speedyMutableInt2D.x = x1; speedyMutableInt2D.y = y1;
-        Bag temp = getRawObjectsAtLocation(speedyMutableInt2D);
-        if (temp!= null) result.addAll(temp);
-        
-        boolean nonPointOneMoreTime = false;
-        // grab onion layers
-        while(true)
+    /**
+       Returns EXACTLY the 'k' objects nearest to a given 'position', nearest first, or all the objects if there are no more than
+       'k' of them.  Ties are broken arbitrarily.  If 'toroidal' is true, distance is measured assuming the environment is toroidal
+       (and that the objects lie within its bounds).  Assumes point objects.  If 'distances' is provided, it is cleared and
+       filled with the distances of the objects, in the same order.  If the Bag 'result' is provided, it will be cleared and
+       objects placed in it and it will be returned, else if it is null, then this method will create a new Bag and use that instead.
+
+       <p>The search looks through rings of discretized buckets of increasing size around the position, keeping the k nearest
+       objects seen so far, until the next ring can't hold anything nearer than the kth.  So its cost depends on k and on
+       how crowded the neighborhood is, not on the number of objects in the field.  If the search has looked in more buckets
+       than there are objects (because the objects are few and far away), it scans all the objects instead.
+    */
+    public Bag getKNearestNeighbors(final Double2D position, final int k, final boolean toroidal, Bag result, DoubleBag distances)
+        {
+        if (result == null) result = new Bag(Math.max(k, 0));
+        if (distances == null) distances = new DoubleBag(Math.max(k, 0));
+        NearestHeap heap = new NearestHeap(Math.max(k, 0), result, distances);
+        final int numObjs = allObjects.numObjs;
+        if (k <= 0 || numObjs == 0) { heap.finish(); return result; }
+
+        double x = position.x;
+        double y = position.y;
+        if (toroidal) { x = tx(x); y = ty(y); }
+        final double discretization = this.discretization;  // locals are faster
+        final int cx = (int)(x / discretization);  // the bucket holding the position, as in discretize(...)
+        final int cy = (int)(y / discretization);
+
+        // The range of bucket offsets from (cx, cy) to search, and a lower bound on how far anything in ring r is
+        // from the position: (r - 1) * discretization - slack.  Each bucket is at least a discretization wide, but
+        // a toroidal field may have a narrower last bucket, which a path between two points crosses at most once.
+        int loX, hiX, loY, hiY;
+        int iWidth = 0, iHeight = 0;  // the number of buckets across a toroidal field
+        double slack = 0;
+        if (toroidal)
             {
-            if (result.numObjs >= atLeastThisMany)
-                {
-                if (nonPointObjects && !nonPointOneMoreTime)  // need to go out one more onion layer
-                    nonPointOneMoreTime = true;
-                else break;
-                }
-                
-            x1--; y1--; x2++; y2++;
-            // do top onion layer
-            speedyMutableInt2D.y = y1;
-            for(int x = x1 ; x <= x2 /* yes, <= */ ; x++)
-                {
-                if (searches >= maxSearches) { result.clear(); result.addAll(allObjects); return result; }
-                searches++;
-                speedyMutableInt2D.x = x;
-                temp = getRawObjectsAtLocation(speedyMutableInt2D);
-                if (temp!=null) result.addAll(temp);
-                }
-
-            // do bottom onion layer
-            speedyMutableInt2D.y = y2;
-            for(int x = x1 ; x <= x2 /* yes, <= */ ; x++)
-                {
-                if (searches >= maxSearches) { result.clear(); result.addAll(allObjects); return result; }
-                searches++;
-                speedyMutableInt2D.x = x;
-                temp = getRawObjectsAtLocation(speedyMutableInt2D);
-                if (temp!=null) result.addAll(temp);
-                }
-                
-            // do left onion layer not including corners
-            speedyMutableInt2D.x = x1;
-            for(int y = y1 + 1 ; y <= y2 - 1 /* yes, <= */ ; y++)
-                {
-                if (searches >= maxSearches) { result.clear(); result.addAll(allObjects); return result; }
-                searches++;
-                speedyMutableInt2D.y = y;
-                temp = getRawObjectsAtLocation(speedyMutableInt2D);
-                if (temp!=null) result.addAll(temp);
-                }
-
-            // do right onion layer not including corners
-            speedyMutableInt2D.x = x2;
-            for(int y = y1 + 1 ; y <= y2 - 1 /* yes, <= */ ; y++)
-                {
-                if (searches >= maxSearches) { result.clear(); result.addAll(allObjects); return result; }
-                searches++;
-                speedyMutableInt2D.y = y;
-                temp = getRawObjectsAtLocation(speedyMutableInt2D);
-                if (temp!=null) result.addAll(temp);
-                }
+            iWidth = (int)(StrictMath.ceil(width / discretization));
+            iHeight = (int)(StrictMath.ceil(height / discretization));
+            loX = -((iWidth - 1) / 2); hiX = loX + iWidth - 1;  // each bucket once, at its nearest offset
+            loY = -((iHeight - 1) / 2); hiY = loY + iHeight - 1;
+            slack = Math.max(iWidth * discretization - width, iHeight * discretization - height);
             }
-            
-        if (!radial) return result;
-        
-        // Now grab some more layers, in a "+" form around the box.  We need enough extension that it includes
-        // the circle which encompasses the box.  To do this we need to compute 'm', the maximum extent of the
-        // extension.  Let 'n' be the width of the box.
-        //
-        // m = sqrt(n^2 + n^2)
-        //
-        // Now we need to subtract m from n, divide by 2, take the floor, and add 1 for good measure.  That's the size of
-        // the extension in any direction:
-        //
-        // e = floor(m-n) + 1
-        // 
-        // this comes to:
-        //
-        // e = floor(n * (sqrt(2) - 1)/2 ) + 1
-        //
-        
-        int n = (x2 - x1 + 1);  // always an odd number
-        int e = (int)(Math.floor(n * SQRT_2_MINUS_1_DIV_2)) + 1;
-        
-        // first determine: is it worth it?
-        int numAdditionalSearches = (x2 - x1 + 1) * e * 4;
-        if (searches + numAdditionalSearches >= maxSearches) { result.clear(); result.addAll(allObjects); return result; }
-        
-        // okay, let's do the additional searches
-        for(int x = 0 ; x < x2 - x1 + 1 /* yes, <= */ ; x++)
+        else
+            {
+            loX = loY = Integer.MIN_VALUE / 2;  // the field is unbounded
+            hiX = hiY = Integer.MAX_VALUE / 2;
+            }
+        final int maxR = Math.max(Math.max(-loX, hiX), Math.max(-loY, hiY));
+
+        if (k < numObjs)
             {
-            for(int y = 0 ; y < e; y++)
+            final int maxSearches = numObjs;  // after this many buckets, a linear scan is cheaper
+            int searches = 0;
+            boolean searchedAll = true;
+            for(int r = 0; r <= maxR; r++)
                 {
-                // top
-                speedyMutableInt2D.x = x1 + x ;
-                speedyMutableInt2D.y = y1 - e - 1 ;
-                temp = getRawObjectsAtLocation(speedyMutableInt2D);
-                if (temp!=null) result.addAll(temp);
-
-                // bottom
-                speedyMutableInt2D.x = x1 + x ;
-                speedyMutableInt2D.y = y2 + e + 1 ;
-                temp = getRawObjectsAtLocation(speedyMutableInt2D);
-                if (temp!=null) result.addAll(temp);
-
-                // left
-                speedyMutableInt2D.x = x1 - e - 1 ;
-                speedyMutableInt2D.y = y1 + x;
-                temp = getRawObjectsAtLocation(speedyMutableInt2D);
-                if (temp!=null) result.addAll(temp);
-
-                // right
-                speedyMutableInt2D.x = x2 + e + 1 ;
-                speedyMutableInt2D.y = y1 + x;
-                temp = getRawObjectsAtLocation(speedyMutableInt2D);
-                if (temp!=null) result.addAll(temp);
+                if (heap.isFull())
+                    {
+                    double d = (r - 1) * discretization - slack;
+                    if (d > 0 && d * d >= heap.bound()) { heap.finish(); return result; }
+                    }
+                if (searches > maxSearches) { searchedAll = false; break; }
+                for(int dx = Math.max(-r, loX); dx <= Math.min(r, hiX); dx++)
+                    {
+                    if (dx == -r || dx == r)  // a side of the ring: the whole column
+                        {
+                        for(int dy = Math.max(-r, loY); dy <= Math.min(r, hiY); dy++)
+                            offerBucket(heap, cx + dx, cy + dy, iWidth, iHeight, x, y, toroidal);
+                        searches += Math.min(r, hiY) - Math.max(-r, loY) + 1;
+                        }
+                    else  // just the top and bottom of the ring
+                        {
+                        if (-r >= loY) { offerBucket(heap, cx + dx, cy - r, iWidth, iHeight, x, y, toroidal); searches++; }
+                        if (r <= hiY) { offerBucket(heap, cx + dx, cy + r, iWidth, iHeight, x, y, toroidal); searches++; }
+                        }
+                    }
                 }
+            if (searchedAll) { heap.finish(); return result; }
+            heap = new NearestHeap(k, result, distances);
             }
-            
-        // it better have it now!
+
+        // scan everything
+        final Object[] objs = allObjects.objs;
+        for(int i = 0; i < numObjs; i++)
+            offer(heap, objs[i], x, y, toroidal);
+        heap.finish();
         return result;
         }
 
+    // offers the objects in the given bucket (wrapped around if toroidal) to the heap
+    void offerBucket(final NearestHeap heap, final int bx, final int by, final int iWidth, final int iHeight,
+        final double x, final double y, final boolean toroidal)
+        {
+        MutableInt2D speedyMutableInt2D = this.speedyMutableInt2D;  // a little faster (local)
+        if (toroidal)
+            {
+            speedyMutableInt2D.x = toroidal(bx, iWidth);
+            speedyMutableInt2D.y = toroidal(by, iHeight);
+            }
+        else { speedyMutableInt2D.x = bx; speedyMutableInt2D.y = by; }
+
+        // skip the bucket without looking in it if it's too far away
+        final double ax = NearestHeap.bucketDistance(x, speedyMutableInt2D.x, discretization, width, toroidal);
+        final double ay = NearestHeap.bucketDistance(y, speedyMutableInt2D.y, discretization, height, toroidal);
+        if (ax * ax + ay * ay >= heap.bound()) return;
+
+        final Bag temp = getRawObjectsAtLocation(speedyMutableInt2D);
+        if (temp == null) return;
+        final Object[] objs = temp.objs;
+        final int n = temp.numObjs;
+        for(int i = 0; i < n; i++)
+            offer(heap, objs[i], x, y, toroidal);
+        }
+
+    void offer(final NearestHeap heap, final Object obj, final double x, final double y, final boolean toroidal)
+        {
+        final Double2D loc = (Double2D)(doubleLocationHash.get(obj));
+        final double dx = (toroidal ? tdx(loc.x, x) : loc.x - x);
+        final double dy = (toroidal ? tdy(loc.y, y) : loc.y - y);
+        heap.offer(obj, dx * dx + dy * dy);
+        }
+
 
     /** Returns a Bag containing EXACTLY those objects within a certain distance of a given position, or equal to that distance, measuring
         using a circle of radius 'distance' around the given position.  Assumes non-toroidal point objects.  */
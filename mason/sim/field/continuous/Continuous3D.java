@@ -308,6 +308,136 @@ public /*strictfp*/ class Continuous3D extends SparseField implements SparseFiel
         return new Double3D(tdx(d1.x,d2.x),tdy(d1.y,d2.y),tdz(d1.z,d2.z));
         }
 
+    /**
+       Returns EXACTLY the 'k' objects nearest to a given 'position', nearest first, or all the objects if there are no more than
+       'k' of them.  Ties are broken arbitrarily.  If 'toroidal' is true, distance is measured assuming the environment is toroidal
+       (and that the objects lie within its bounds).  Assumes point objects.  If 'distances' is provided, it is cleared and
+       filled with the distances of the objects, in the same order.  If the Bag 'result' is provided, it will be cleared and
+       objects placed in it and it will be returned, else if it is null, then this method will create a new Bag and use that instead.
+
+       <p>The search looks through shells of discretized buckets of increasing size around the position, keeping the k nearest
+       objects seen so far, until the next shell can't hold anything nearer than the kth.  So its cost depends on k and on
+       how crowded the neighborhood is, not on the number of objects in the field.  If the search has looked in more buckets
+       than there are objects (because the objects are few and far away), it scans all the objects instead.
+    */
+    public Bag getKNearestNeighbors(final Double3D position, final int k, final boolean toroidal, Bag result, DoubleBag distances)
+        {
+        if (result == null) result = new Bag(Math.max(k, 0));
+        if (distances == null) distances = new DoubleBag(Math.max(k, 0));
+        NearestHeap heap = new NearestHeap(Math.max(k, 0), result, distances);
+        final int numObjs = allObjects.numObjs;
+        if (k <= 0 || numObjs == 0) { heap.finish(); return result; }
+
+        double x = position.x;
+        double y = position.y;
+        double z = position.z;
+        if (toroidal) { x = tx(x); y = ty(y); z = tz(z); }
+        final double discretization = this.discretization;  // locals are faster
+        final int cx = (int)(x / discretization);  // the bucket holding the position, as in discretize(...)
+        final int cy = (int)(y / discretization);
+        final int cz = (int)(z / discretization);
+
+        // The range of bucket offsets from (cx, cy, cz) to search, and a lower bound on how far anything in shell r is
+        // from the position: (r - 1) * discretization - slack.  Each bucket is at least a discretization wide, but
+        // a toroidal field may have a narrower last bucket, which a path between two points crosses at most once.
+        int loX, hiX, loY, hiY, loZ, hiZ;
+        int iWidth = 0, iHeight = 0, iLength = 0;  // the number of buckets across a toroidal field
+        double slack = 0;
+        if (toroidal)
+            {
+            iWidth = (int)(StrictMath.ceil(width / discretization));
+            iHeight = (int)(StrictMath.ceil(height / discretization));
+            iLength = (int)(StrictMath.ceil(length / discretization));
+            loX = -((iWidth - 1) / 2); hiX = loX + iWidth - 1;  // each bucket once, at its nearest offset
+            loY = -((iHeight - 1) / 2); hiY = loY + iHeight - 1;
+            loZ = -((iLength - 1) / 2); hiZ = loZ + iLength - 1;
+            slack = Math.max(Math.max(iWidth * discretization - width, iHeight * discretization - height),
+                iLength * discretization - length);
+            }
+        else
+            {
+            loX = loY = loZ = Integer.MIN_VALUE / 2;  // the field is unbounded
+            hiX = hiY = hiZ = Integer.MAX_VALUE / 2;
+            }
+        final int maxR = Math.max(Math.max(Math.max(-loX, hiX), Math.max(-loY, hiY)), Math.max(-loZ, hiZ));
+
+        if (k < numObjs)
+            {
+            final int maxSearches = numObjs;  // after this many buckets, a linear scan is cheaper
+            int searches = 0;
+            boolean searchedAll = true;
+            for(int r = 0; r <= maxR; r++)
+                {
+                if (heap.isFull())
+                    {
+                    double d = (r - 1) * discretization - slack;
+                    if (d > 0 && d * d >= heap.bound()) { heap.finish(); return result; }
+                    }
+                if (searches > maxSearches) { searchedAll = false; break; }
+                for(int dx = Math.max(-r, loX); dx <= Math.min(r, hiX); dx++)
+                    for(int dy = Math.max(-r, loY); dy <= Math.min(r, hiY); dy++)
+                        {
+                        if (dx == -r || dx == r || dy == -r || dy == r)  // a side of the shell: the whole column
+                            {
+                            for(int dz = Math.max(-r, loZ); dz <= Math.min(r, hiZ); dz++)
+                                offerBucket(heap, cx + dx, cy + dy, cz + dz, iWidth, iHeight, iLength, x, y, z, toroidal);
+                            searches += Math.min(r, hiZ) - Math.max(-r, loZ) + 1;
+                            }
+                        else  // just the top and bottom of the shell
+                            {
+                            if (-r >= loZ) { offerBucket(heap, cx + dx, cy + dy, cz - r, iWidth, iHeight, iLength, x, y, z, toroidal); searches++; }
+                            if (r <= hiZ) { offerBucket(heap, cx + dx, cy + dy, cz + r, iWidth, iHeight, iLength, x, y, z, toroidal); searches++; }
+                            }
+                        }
+                }
+            if (searchedAll) { heap.finish(); return result; }
+            heap = new NearestHeap(k, result, distances);
+            }
+
+        // scan everything
+        final Object[] objs = allObjects.objs;
+        for(int i = 0; i < numObjs; i++)
+            offer(heap, objs[i], x, y, z, toroidal);
+        heap.finish();
+        return result;
+        }
+
+    // offers the objects in the given bucket (wrapped around if toroidal) to the heap
+    void offerBucket(final NearestHeap heap, final int bx, final int by, final int bz, final int iWidth, final int iHeight, final int iLength,
+        final double x, final double y, final double z, final boolean toroidal)
+        {
+        MutableInt3D speedyMutableInt3D = this.speedyMutableInt3D;  // a little faster (local)
+        if (toroidal)
+            {
+            speedyMutableInt3D.x = toroidal(bx, iWidth);
+            speedyMutableInt3D.y = toroidal(by, iHeight);
+            speedyMutableInt3D.z = toroidal(bz, iLength);
+            }
+        else { speedyMutableInt3D.x = bx; speedyMutableInt3D.y = by; speedyMutableInt3D.z = bz; }
+
+        // skip the bucket without looking in it if it's too far away
+        final double ax = NearestHeap.bucketDistance(x, speedyMutableInt3D.x, discretization, width, toroidal);
+        final double ay = NearestHeap.bucketDistance(y, speedyMutableInt3D.y, discretization, height, toroidal);
+        final double az = NearestHeap.bucketDistance(z, speedyMutableInt3D.z, discretization, length, toroidal);
+        if (ax * ax + ay * ay + az * az >= heap.bound()) return;
+
+        final Bag temp = getRawObjectsAtLocation(speedyMutableInt3D);
+        if (temp == null) return;
+        final Object[] objs = temp.objs;
+        final int n = temp.numObjs;
+        for(int i = 0; i < n; i++)
+            offer(heap, objs[i], x, y, z, toroidal);
+        }
+
+    void offer(final NearestHeap heap, final Object obj, final double x, final double y, final double z, final boolean toroidal)
+        {
+        final Double3D loc = (Double3D)(doubleLocationHash.get(obj));
+        final double dx = (toroidal ? tdx(loc.x, x) : loc.x - x);
+        final double dy = (toroidal ? tdy(loc.y, y) : loc.y - y);
+        final double dz = (toroidal ? tdz(loc.z, z) : loc.z - z);
+        heap.offer(obj, dx * dx + dy * dy + dz * dz);
+        }
+
     /** Returns a Bag containing EXACTLY those objects within a certain distance of a given position, or equal to that distance, measuring
         using a circle of radius 'distance' around the given position.  Assumes non-toroidal point objects.  */
 
@@ -0,0 +1,18 @@
+/*
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.continuous;
+
+/**
+   An object which carries its own small, non-negative, unique int index, such as an agent numbered
+   0 ... n-1.  IndexedContinuous2D uses the index to store the object's location in arrays rather than
+   in hash tables.  The index must not change while the object is in an IndexedContinuous2D.
+*/
+
+public interface Indexable
+    {
+    /** Returns the object's index. */
+    public int getIndex();
+    }
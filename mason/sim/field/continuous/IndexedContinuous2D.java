@@ -0,0 +1,570 @@
+/*
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.continuous;
+import sim.field.*;
+import sim.util.*;
+
+/**
+   A storage facility for objects located in a continuous 2D environment, for objects which carry their own
+   int index (see Indexable), such as agents numbered 0 ... n-1.  Continuous2D relates objects with their
+   locations and buckets through hash tables, and so moving an object costs several hash lookups and
+   allocates an Int2D, and often a Bag or two.  IndexedContinuous2D instead stores each object's location
+   in two double arrays, and its bucket as a linked list of indices threaded through int arrays, all indexed by
+   the object's index.  Thus moving an object is O(1), with a few array writes and no allocation at all.
+
+   <p>Like Continuous2D, IndexedContinuous2D divides the space into square buckets, and looks up the objects in a
+   region by rummaging through the buckets which overlap it; see Continuous2D for how to pick the <i>discretization</i>.
+   Unlike Continuous2D, the buckets cover only the field's width and height (each bucket may be a little larger
+   than the discretization, so that they tile the field exactly).  An object outside those bounds goes into the
+   nearest bucket on the edge, which is correct but slow if there are a great many such objects.  For toroidal
+   lookups, keep your objects' locations within bounds, using stx(...) and sty(...) for example.
+
+   <p>The arrays are as long as the largest index, so indices should be small and dense.  The objects are points:
+   there's no notion of non-point objects here.  IndexedContinuous2D is not a SparseField, and so can't be drawn
+   with a ContinuousPortrayal2D.
+
+   <p>If you'd rather not allocate at all, read locations from the <b>x</b> and <b>y</b> arrays directly, and
+   look up neighbors with the methods of SpatialIndex2D, which fill an IntBag with indices.  If your objects cluster
+   tightly, a KDTree2D built over the field may answer those queries faster.  Run this class from the command line
+   to benchmark it against Continuous2D.
+*/
+
+public class IndexedContinuous2D implements SparseField2D, SpatialIndex2D, java.io.Serializable
+    {
+    public double width;
+    public double height;
+
+    public final double discretization;
+
+    /** The x coordinate of the object with each index.  Read this but don't write it. */
+    public double[] x = new double[0];
+    /** The y coordinate of the object with each index.  Read this but don't write it. */
+    public double[] y = new double[0];
+
+    // the object with each index, or null
+    Object[] objects = new Object[0];
+    // the bucket of the object with each index, or -1 if there's no such object
+    int[] bucket = new int[0];
+    // the next and previous objects in the same bucket, or -1
+    int[] next = new int[0];
+    int[] prev = new int[0];
+    int numObjects = 0;
+    
+    /** Incremented whenever an object is added, moved, or removed.  Indexes built over the field check this to see
+        whether they need to be rebuilt. */
+    public long modCount = 0;
+
+    // the buckets, each holding the index of its first object or -1.  Bucket (bx, by) is number by * bucketsX + bx.
+    int[] head;
+    int bucketsX;
+    int bucketsY;
+    double bucketWidth;
+    double bucketHeight;
+
+    /** Provide expected bounds on the IndexedContinuous2D */
+    public IndexedContinuous2D(final double discretization, double width, double height)
+        {
+        this.discretization = discretization;
+        this.width = width;
+        this.height = height;
+        bucketsX = Math.max(1, (int)(width / discretization));
+        bucketsY = Math.max(1, (int)(height / discretization));
+        bucketWidth = width / bucketsX;
+        bucketHeight = height / bucketsY;
+        head = new int[bucketsX * bucketsY];
+        java.util.Arrays.fill(head, -1);
+        }
+
+    /** Get the width */
+    public double getWidth() { return width; }
+
+    /** Get the height */
+    public double getHeight() { return height; }
+
+    public final Double2D getDimensions() { return new Double2D(width, height); }
+
+    /** Returns the number of objects in the field. */
+    public int size() { return numObjects; }
+
+    // grows the arrays to hold at least the given index
+    void ensureCapacity(int index)
+        {
+        int len = objects.length;
+        if (index < len) return;
+        int newLen = Math.max(index + 1, len * 2);
+        double[] x = new double[newLen]; System.arraycopy(this.x, 0, x, 0, len); this.x = x;
+        double[] y = new double[newLen]; System.arraycopy(this.y, 0, y, 0, len); this.y = y;
+        Object[] objects = new Object[newLen]; System.arraycopy(this.objects, 0, objects, 0, len); this.objects = objects;
+        int[] bucket = new int[newLen]; System.arraycopy(this.bucket, 0, bucket, 0, len); this.bucket = bucket;
+        java.util.Arrays.fill(bucket, len, newLen, -1);
+        int[] next = new int[newLen]; System.arraycopy(this.next, 0, next, 0, len); this.next = next;
+        int[] prev = new int[newLen]; System.arraycopy(this.prev, 0, prev, 0, len); this.prev = prev;
+        }
+
+    // returns the bucket holding the given location, clamping locations outside the field to the nearest edge bucket
+    int bucketOf(double x, double y)
+        {
+        int bx = (int)(x / bucketWidth);  // truncation is fine: anything below 0 is clamped anyway
+        int by = (int)(y / bucketHeight);
+        if (bx < 0 || x < 0) bx = 0; else if (bx >= bucketsX) bx = bucketsX - 1;
+        if (by < 0 || y < 0) by = 0; else if (by >= bucketsY) by = bucketsY - 1;
+        return by * bucketsX + bx;
+        }
+
+    // returns the index of the given object, which must be Indexable
+    int indexOf(Object obj)
+        {
+        if (!(obj instanceof Indexable))
+            throw new IllegalArgumentException("Object " + obj + " is not Indexable, and so can't be placed in an IndexedContinuous2D");
+        int index = ((Indexable)obj).getIndex();
+        if (index < 0)
+            throw new IllegalArgumentException("The index of object " + obj + " (" + index + ") is less than zero");
+        return index;
+        }
+
+    /** Places the object at the given location, or moves it there if it's already in the field.
+        Returns false if obj is null. */
+    public final boolean setObjectLocation(Object obj, double x, double y)
+        {
+        if (obj == null) return false;
+        int index = indexOf(obj);
+        ensureCapacity(index);
+        int b = bucketOf(x, y);
+        int old = bucket[index];
+        if (old != b)
+            {
+            if (old >= 0) unlink(index);
+            else numObjects++;
+            // push onto the front of bucket b
+            int h = head[b];
+            next[index] = h;
+            prev[index] = -1;
+            if (h >= 0) prev[h] = index;
+            head[b] = index;
+            bucket[index] = b;
+            }
+        objects[index] = obj;
+        this.x[index] = x;
+        this.y[index] = y;
+        modCount++;
+        return true;
+        }
+
+    /** Places the object at the given location, or moves it there if it's already in the field.
+        Returns false if obj or location is null. */
+    public final boolean setObjectLocation(Object obj, final Double2D location)
+        {
+        if (location == null) return false;
+        return setObjectLocation(obj, location.x, location.y);
+        }
+
+    // takes the object with the given index out of its bucket
+    void unlink(int index)
+        {
+        int n = next[index];
+        int p = prev[index];
+        if (p >= 0) next[p] = n;
+        else head[bucket[index]] = n;
+        if (n >= 0) prev[n] = p;
+        }
+
+    /** Returns true if the object is in the field. */
+    public final boolean exists(Object obj)
+        {
+        if (!(obj instanceof Indexable)) return false;
+        int index = ((Indexable)obj).getIndex();
+        return index >= 0 && index < objects.length && bucket[index] >= 0 && objects[index] == obj;
+        }
+
+    /** Returns the object with the given index, or null if there is none. */
+    public final Object getObject(int index)
+        {
+        if (index < 0 || index >= objects.length) return null;
+        return objects[index];
+        }
+
+    /** Returns the location of the object, or null if it's not in the field.  This allocates a Double2D:
+        you may instead read the object's location from the x and y arrays. */
+    public final Double2D getObjectLocation(Object obj)
+        {
+        if (!exists(obj)) return null;
+        int index = ((Indexable)obj).getIndex();
+        return new Double2D(x[index], y[index]);
+        }
+
+    /** Synonymous with getObjectLocation, which you should generally use instead. */
+    public final Double2D getObjectLocationAsDouble2D(Object obj)
+        {
+        return getObjectLocation(obj);
+        }
+
+    /** Removes the object from the field and returns it, or returns null if it's not in the field. */
+    public final Object remove(final Object obj)
+        {
+        if (!exists(obj)) return null;
+        return remove(((Indexable)obj).getIndex());
+        }
+
+    /** Removes the object with the given index from the field and returns it, or returns null if there is none. */
+    public final Object remove(int index)
+        {
+        if (index < 0 || index >= objects.length || bucket[index] < 0) return null;
+        unlink(index);
+        bucket[index] = -1;
+        Object obj = objects[index];
+        objects[index] = null;  // let gc
+        numObjects--;
+        modCount++;
+        return obj;
+        }
+
+    /** Removes all the objects from the field and returns them. */
+    public final Bag clear()
+        {
+        Bag result = getAllObjects();
+        java.util.Arrays.fill(objects, null);
+        java.util.Arrays.fill(bucket, -1);
+        java.util.Arrays.fill(head, -1);
+        numObjects = 0;
+        modCount++;
+        return result;
+        }
+
+    /** Returns a new Bag holding all the objects in the field, in the order of their indices. */
+    public final Bag getAllObjects()
+        {
+        Bag result = new Bag(numObjects);
+        for(int i = 0; i < objects.length; i++)
+            if (bucket[i] >= 0) result.add(objects[i]);
+        return result;
+        }
+
+    /** Simple [and fast] toroidal x.  Use this if the values you'd pass in never stray
+        beyond (-width ... width * 2) not inclusive. */
+    public double stx(final double x)
+        { if (x >= 0) { if (x < width) return x; return x - width; } return x + width; }
+
+    /** Simple [and fast] toroidal y.  Use this if the values you'd pass in never stray
+        beyond (-height ... height * 2) not inclusive. */
+    public double sty(final double y)
+        { if (y >= 0) { if (y < height) return y ; return y - height; } return y + height; }
+
+    /** Minimum toroidal distance between two values in the X dimension. */
+    public double tdx(final double x1, final double x2)
+        {
+        double width = this.width;
+        if (Math.abs(x1-x2) <= width / 2)
+            return x1 - x2;  // no wraparounds  -- quick and dirty check
+
+        double dx = stx(x1) - stx(x2);
+        if (dx * 2 > width) return dx - width;
+        if (dx * 2 < -width) return dx + width;
+        return dx;
+        }
+
+    /** Minimum toroidal distance between two values in the Y dimension. */
+    public double tdy(final double y1, final double y2)
+        {
+        double height = this.height;
+        if (Math.abs(y1-y2) <= height / 2)
+            return y1 - y2;  // no wraparounds  -- quick and dirty check
+
+        double dy = sty(y1) - sty(y2);
+        if (dy * 2 > height) return dy - height;
+        if (dy * 2 < -height) return dy + height;
+        return dy;
+        }
+
+    /** Places into the result IntBag (clearing it first), and returns, the indices of EXACTLY those objects whose
+        distance from (x, y) is at most 'distance'.  If 'toroidal' is true, distance is measured assuming the field is toroidal.
+        Allocates nothing unless the IntBag must grow. */
+    public IntBag getIndicesExactlyWithinDistance(final double x, final double y, final double distance, final boolean toroidal, IntBag result)
+        {
+        return scan(x, y, distance, toroidal, true, result);
+        }
+
+    /** Places into the result IntBag (clearing it first), and returns, the indices of AT LEAST those objects within the
+        square of side 2 * 'distance' centered at (x, y): that is, of all the objects in the buckets which overlap the square.
+        If 'toroidal' is true, wrap-around is considered as well.  Allocates nothing unless the IntBag must grow. */
+    public IntBag getIndicesWithinDistance(final double x, final double y, final double distance, final boolean toroidal, IntBag result)
+        {
+        return scan(x, y, distance, toroidal, false, result);
+        }
+
+    /** Returns a Bag containing EXACTLY those objects within a certain distance of a given position, or equal to that distance,
+        measuring using a circle of radius 'distance' around the given position.  If 'toroidal' is true, then the
+        distance is measured assuming the environment is toroidal.  If the Bag 'result' is provided, it will be cleared and objects
+        placed in it and it will be returned, else if it is null, then this method will create a new Bag and use that instead. */
+    public Bag getObjectsExactlyWithinDistance(final Double2D position, final double distance, final boolean toroidal, Bag result)
+        {
+        return toObjects(scan(position.x, position.y, distance, toroidal, true, new IntBag()), result);
+        }
+
+    /** Returns a Bag containing AT LEAST those objects within the bounding box surrounding the specified distance of the
+        specified position.  The bag could include other objects than this.  If toroidal, then wrap-around possibilities are
+        also considered.  If the Bag 'result' is provided, it will be cleared and objects placed in it and it will be returned,
+        else if it is null, then this method will create a new Bag and use that instead. */
+    public Bag getObjectsWithinDistance(final Double2D position, final double distance, final boolean toroidal, Bag result)
+        {
+        return toObjects(scan(position.x, position.y, distance, toroidal, false, new IntBag()), result);
+        }
+
+    public IntBag getIndicesWithinRectangle(final double x1, final double y1, final double x2, final double y2, IntBag result)
+        {
+        if (result == null) result = new IntBag();
+        else result.clear();
+        int minX = clamp((int)StrictMath.floor(x1 / bucketWidth), bucketsX);
+        int maxX = clamp((int)StrictMath.floor(x2 / bucketWidth), bucketsX);
+        int minY = clamp((int)StrictMath.floor(y1 / bucketHeight), bucketsY);
+        int maxY = clamp((int)StrictMath.floor(y2 / bucketHeight), bucketsY);
+        final int[] next = this.next;  // locals are faster
+        final double[] x = this.x;
+        final double[] y = this.y;
+        for(int bx = minX; bx <= maxX; bx++)
+            for(int by = minY; by <= maxY; by++)
+                for(int i = head[by * bucketsX + bx]; i >= 0; i = next[i])
+                    if (x[i] >= x1 && x[i] <= x2 && y[i] >= y1 && y[i] <= y2)
+                        result.add(i);
+        return result;
+        }
+
+    /** Searches rings of buckets of increasing size around (x, y), keeping the k nearest objects seen so far, until the
+        next ring can't hold anything nearer than the kth. */
+    public IntBag getNearestNeighbors(double x, double y, final int k, final boolean toroidal, IntBag result, DoubleBag distances)
+        {
+        if (result == null) result = new IntBag(Math.max(k, 0));
+        if (distances == null) distances = new DoubleBag(Math.max(k, 0));
+        NearestHeap heap = new NearestHeap(Math.max(k, 0), result, distances);
+        if (k <= 0 || numObjects == 0) { heap.finish(); return result; }
+
+        final int bucketsX = this.bucketsX;  // locals are faster
+        final int bucketsY = this.bucketsY;
+        // the bucket we start at, and the range of bucket offsets from it which cover the field exactly once
+        int cx, cy, loX, hiX, loY, hiY;
+        if (toroidal)
+            {
+            x = tx(x);
+            y = ty(y);
+            cx = clamp((int)(x / bucketWidth), bucketsX);
+            cy = clamp((int)(y / bucketHeight), bucketsY);
+            loX = -((bucketsX - 1) / 2); hiX = loX + bucketsX - 1;
+            loY = -((bucketsY - 1) / 2); hiY = loY + bucketsY - 1;
+            }
+        else
+            {
+            cx = clamp((int)StrictMath.floor(x / bucketWidth), bucketsX);
+            cy = clamp((int)StrictMath.floor(y / bucketHeight), bucketsY);
+            loX = -cx; hiX = bucketsX - 1 - cx;
+            loY = -cy; hiY = bucketsY - 1 - cy;
+            }
+        int maxR = Math.max(Math.max(-loX, hiX), Math.max(-loY, hiY));
+        double bucketSide = Math.min(bucketWidth, bucketHeight);
+
+        for(int r = 0; r <= maxR; r++)
+            {
+            // everything in ring r or beyond is at least (r - 1) buckets away
+            if (heap.isFull())
+                {
+                double d = (r - 1) * bucketSide;
+                if (d > 0 && d * d >= heap.bound()) break;
+                }
+            for(int dx = Math.max(-r, loX); dx <= Math.min(r, hiX); dx++)
+                {
+                int bx = wrap(cx + dx, bucketsX);
+                if (dx == -r || dx == r)  // a side of the ring: the whole column
+                    {
+                    for(int dy = Math.max(-r, loY); dy <= Math.min(r, hiY); dy++)
+                        offerBucket(heap, wrap(cy + dy, bucketsY) * bucketsX + bx, x, y, toroidal);
+                    }
+                else  // just the top and bottom of the ring
+                    {
+                    if (-r >= loY) offerBucket(heap, wrap(cy - r, bucketsY) * bucketsX + bx, x, y, toroidal);
+                    if (r <= hiY) offerBucket(heap, wrap(cy + r, bucketsY) * bucketsX + bx, x, y, toroidal);
+                    }
+                }
+            }
+        heap.finish();
+        return result;
+        }
+
+    // wraps a bucket number which is at most one field's worth out of range (only happens when toroidal)
+    static int wrap(int b, int buckets)
+        {
+        if (b < 0) return b + buckets;
+        if (b >= buckets) return b - buckets;
+        return b;
+        }
+
+    // offers each object in the bucket to the heap
+    void offerBucket(NearestHeap heap, int b, double px, double py, boolean toroidal)
+        {
+        final int[] next = this.next;  // locals are faster
+        final double[] x = this.x;
+        final double[] y = this.y;
+        for(int i = head[b]; i >= 0; i = next[i])
+            {
+            double dx = (toroidal ? tdx(x[i], px) : x[i] - px);
+            double dy = (toroidal ? tdy(y[i], py) : y[i] - py);
+            heap.offer(i, dx * dx + dy * dy);
+            }
+        }
+
+    /** Toroidal x */
+    public final double tx(double x)
+        {
+        final double width = this.width;
+        if (x >= 0 && x < width) return x;  // do clearest case first
+        x = x % width;
+        if (x < 0) x = x + width;
+        return x;
+        }
+
+    /** Toroidal y */
+    public final double ty(double y)
+        {
+        final double height = this.height;
+        if (y >= 0 && y < height) return y;  // do clearest case first
+        y = y % height;
+        if (y < 0) y = y + height;
+        return y;
+        }
+
+    // puts the objects with the given indices into result
+    Bag toObjects(IntBag indices, Bag result)
+        {
+        if (result == null) result = new Bag(indices.numObjs);
+        else result.clear();
+        for(int i = 0; i < indices.numObjs; i++)
+            result.add(objects[indices.objs[i]]);
+        return result;
+        }
+
+    // clamps b to 0 ... buckets - 1
+    static int clamp(int b, int buckets)
+        {
+        if (b < 0) return 0;
+        if (b >= buckets) return buckets - 1;
+        return b;
+        }
+
+    // Fills result with the indices of the objects in the buckets overlapping the square of side 2 * distance
+    // centered at (px, py), and if exact, only those at most distance away
+    IntBag scan(final double px, final double py, final double distance, final boolean toroidal, final boolean exact, IntBag result)
+        {
+        if (result == null) result = new IntBag();
+        else result.clear();
+
+        final int bucketsX = this.bucketsX;  // locals are faster
+        final int bucketsY = this.bucketsY;
+        int minX = (int)StrictMath.floor((px - distance) / bucketWidth);
+        int maxX = (int)StrictMath.floor((px + distance) / bucketWidth);
+        int minY = (int)StrictMath.floor((py - distance) / bucketHeight);
+        int maxY = (int)StrictMath.floor((py + distance) / bucketHeight);
+        if (toroidal)
+            {
+            // the buckets tile the field exactly, so we can wrap bucket numbers around.
+            // we promote to longs so that maxX - minX can't totally wrap around by accident
+            if ((long)maxX - (long)minX >= bucketsX) { minX = 0; maxX = bucketsX - 1; }
+            if ((long)maxY - (long)minY >= bucketsY) { minY = 0; maxY = bucketsY - 1; }
+            }
+        else
+            {
+            // edge buckets hold the objects beyond the edges too
+            minX = clamp(minX, bucketsX); maxX = clamp(maxX, bucketsX);
+            minY = clamp(minY, bucketsY); maxY = clamp(maxY, bucketsY);
+            }
+
+        final int[] head = this.head;
+        final int[] next = this.next;
+        final double[] x = this.x;
+        final double[] y = this.y;
+        final double distsq = distance * distance;
+        for(int bx = minX; bx <= maxX; bx++)
+            {
+            int tbx = bx;
+            if (toroidal) { tbx = bx % bucketsX; if (tbx < 0) tbx += bucketsX; }
+            for(int by = minY; by <= maxY; by++)
+                {
+                int tby = by;
+                if (toroidal) { tby = by % bucketsY; if (tby < 0) tby += bucketsY; }
+                for(int i = head[tby * bucketsX + tbx]; i >= 0; i = next[i])
+                    {
+                    if (exact)
+                        {
+                        double dx = (toroidal ? tdx(x[i], px) : x[i] - px);
+                        double dy = (toroidal ? tdy(y[i], py) : y[i] - py);
+                        if (dx * dx + dy * dy > distsq) continue;
+                        }
+                    result.add(i);
+                    }
+                }
+            }
+        return result;
+        }
+
+
+    // for the benchmark
+    static class Point implements Indexable
+        {
+        int index;
+        Point(int index) { this.index = index; }
+        public int getIndex() { return index; }
+        }
+
+    /** Benchmarks moving every one of 10K objects a short random way per step, then looking up the neighbors
+        of each, in an IndexedContinuous2D against a Continuous2D. */
+    public static void main(String[] args)
+        {
+        final int numObjects = 10000;
+        final int numSteps = 200;
+        final double width = 500, height = 500, range = 5;
+        for(int indexed = 0; indexed < 2; indexed++)
+            {
+            ec.util.MersenneTwisterFast random = new ec.util.MersenneTwisterFast(4357);
+            Continuous2D c = new Continuous2D(range, width, height);
+            IndexedContinuous2D ic = new IndexedContinuous2D(range, width, height);
+            Point[] points = new Point[numObjects];
+            double[] px = new double[numObjects];
+            double[] py = new double[numObjects];
+            for(int i = 0; i < numObjects; i++)
+                {
+                points[i] = new Point(i);
+                px[i] = random.nextDouble() * width;
+                py[i] = random.nextDouble() * height;
+                if (indexed == 1) ic.setObjectLocation(points[i], px[i], py[i]);
+                else c.setObjectLocation(points[i], new Double2D(px[i], py[i]));
+                }
+            Bag bag = new Bag();
+            IntBag ibag = new IntBag();
+            long found = 0;
+            long moveTime = 0;
+            long lookupTime = 0;
+            for(int s = 0; s < numSteps; s++)
+                {
+                long t = System.nanoTime();
+                for(int i = 0; i < numObjects; i++)
+                    {
+                    px[i] = c.stx(px[i] + random.nextDouble() - 0.5);
+                    py[i] = c.sty(py[i] + random.nextDouble() - 0.5);
+                    if (indexed == 1) ic.setObjectLocation(points[i], px[i], py[i]);
+                    else c.setObjectLocation(points[i], new Double2D(px[i], py[i]));
+                    }
+                long t2 = System.nanoTime();
+                moveTime += t2 - t;
+                for(int i = 0; i < numObjects; i++)
+                    {
+                    if (indexed == 1) found += ic.getIndicesExactlyWithinDistance(px[i], py[i], range, true, ibag).numObjs;
+                    else found += c.getObjectsExactlyWithinDistance(new Double2D(px[i], py[i]), range, true, true, true, bag).numObjs;
+                    }
+                lookupTime += System.nanoTime() - t2;
+                }
+            double events = (double)numObjects * numSteps;
+            System.out.println((indexed == 1 ? "IndexedContinuous2D: " : "Continuous2D:        ") +
+                (moveTime / events) + " ns per move, " + (lookupTime / events) + " ns per lookup (" +
+                (found / events) + " neighbors on average)");
+            }
+        }
+    }
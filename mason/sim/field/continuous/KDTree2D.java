@@ -0,0 +1,357 @@
+/*
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.continuous;
+import sim.util.*;
+
+/**
+   A k-d tree over the objects of an IndexedContinuous2D, for answering neighborhood queries without having to tune
+   a discretization.  The grid of buckets in IndexedContinuous2D (and Continuous2D) works well when objects are spread
+   fairly evenly and the bucket size suits the queries; but when many objects pack into a few buckets -- clusters of
+   food, say, or flocks -- every query near them wades through a whole bucket.  The k-d tree splits the objects at the
+   median of whichever coordinate is more spread out, again and again, so it adapts to wherever the objects are.
+
+   <p>The tree is a snapshot: it's rebuilt, in O(n log n) time, whenever it's queried after the field has changed.
+   Thus it suits models in which the objects move, then are queried many times, then move again (as when all the
+   agents in a step look at the positions from the end of the previous step).  If objects move between every
+   query, use the field itself instead.  Rebuilding isn't threadsafe: if several threads will query the tree at
+   once, call update() first.
+
+   <p>Run this class from the command line to benchmark it against the field's buckets, on objects spread uniformly
+   and objects packed in clusters.
+*/
+
+public class KDTree2D implements SpatialIndex2D, java.io.Serializable
+    {
+    /** Subtrees of at most this many objects are searched linearly. */
+    public static final int LEAF_SIZE = 8;
+
+    IndexedContinuous2D field;
+    long builtAt = -1;  // the field's modCount when we were last built
+
+    // the indices of the objects, arranged so that each subtree is a range order[lo...hi-1], split at its middle element
+    int[] order = new int[0];
+    int numObjects = 0;
+    // for the subtree split at order[m]: the axis of the split (0 for x, 1 for y) and the split coordinate
+    boolean[] splitOnY = new boolean[0];
+    // the bounds of all the objects
+    double minX, minY, maxX, maxY;
+
+    /** Builds a tree over the objects of the given field. */
+    public KDTree2D(IndexedContinuous2D field)
+        {
+        this.field = field;
+        }
+
+    /** Rebuilds the tree if the field has changed since it was last built. */
+    public void update()
+        {
+        if (builtAt == field.modCount) return;
+        IndexedContinuous2D field = this.field;  // locals are faster
+        int len = field.objects.length;
+        if (order.length < field.numObjects)
+            {
+            order = new int[field.numObjects];
+            splitOnY = new boolean[field.numObjects];
+            }
+        int n = 0;
+        minX = minY = Double.POSITIVE_INFINITY;
+        maxX = maxY = Double.NEGATIVE_INFINITY;
+        for(int i = 0; i < len; i++)
+            if (field.bucket[i] >= 0)
+                {
+                order[n++] = i;
+                double x = field.x[i];
+                double y = field.y[i];
+                if (x < minX) minX = x; if (x > maxX) maxX = x;
+                if (y < minY) minY = y; if (y > maxY) maxY = y;
+                }
+        numObjects = n;
+        build(0, n, minX, minY, maxX, maxY);
+        builtAt = field.modCount;
+        }
+
+    // arranges order[lo...hi-1], whose objects lie within the given bounds
+    void build(int lo, int hi, double x1, double y1, double x2, double y2)
+        {
+        if (hi - lo <= LEAF_SIZE) return;
+        int m = (lo + hi) >>> 1;
+        boolean onY = (y2 - y1 > x2 - x1);
+        splitOnY[m] = onY;
+        select(lo, hi, m, onY ? field.y : field.x);
+        double split = (onY ? field.y : field.x)[order[m]];
+        if (onY)
+            {
+            build(lo, m, x1, y1, x2, split);
+            build(m + 1, hi, x1, split, x2, y2);
+            }
+        else
+            {
+            build(lo, m, x1, y1, split, y2);
+            build(m + 1, hi, split, y1, x2, y2);
+            }
+        }
+
+    // rearranges order[lo...hi-1] so that order[m] has the value it would if sorted by coordinate c,
+    // everything before it is <= it, and everything after it is >= it (Hoare's quickselect)
+    void select(int lo, int hi, int m, double[] c)
+        {
+        int[] order = this.order;  // locals are faster
+        hi--;
+        while(hi > lo)
+            {
+            double pivot = c[order[(lo + hi) >>> 1]];
+            int i = lo;
+            int j = hi;
+            while(i <= j)
+                {
+                while(c[order[i]] < pivot) i++;
+                while(c[order[j]] > pivot) j--;
+                if (i <= j)
+                    {
+                    int t = order[i]; order[i] = order[j]; order[j] = t;
+                    i++; j--;
+                    }
+                }
+            if (m <= j) hi = j;
+            else if (m >= i) lo = i;
+            else return;
+            }
+        }
+
+    public IntBag getIndicesExactlyWithinDistance(double x, double y, double distance, boolean toroidal, IntBag result)
+        {
+        update();
+        if (result == null) result = new IntBag();
+        else result.clear();
+        if (toroidal) { x = field.tx(x); y = field.ty(y); }
+        if (numObjects > 0)
+            radius(0, numObjects, minX, minY, maxX, maxY, x, y, distance * distance, toroidal, result);
+        return result;
+        }
+
+    void radius(int lo, int hi, double x1, double y1, double x2, double y2,
+        double px, double py, double distSq, boolean toroidal, IntBag result)
+        {
+        // prune if the subtree's bounds are too far away
+        double ax = NearestHeap.axisDistance(px, x1, x2, field.width, toroidal);
+        double ay = NearestHeap.axisDistance(py, y1, y2, field.height, toroidal);
+        if (ax * ax + ay * ay > distSq) return;
+
+        if (hi - lo <= LEAF_SIZE)
+            {
+            for(int j = lo; j < hi; j++)
+                {
+                int i = order[j];
+                double dx = (toroidal ? field.tdx(field.x[i], px) : field.x[i] - px);
+                double dy = (toroidal ? field.tdy(field.y[i], py) : field.y[i] - py);
+                if (dx * dx + dy * dy <= distSq) result.add(i);
+                }
+            return;
+            }
+
+        int m = (lo + hi) >>> 1;
+        int i = order[m];
+        double dx = (toroidal ? field.tdx(field.x[i], px) : field.x[i] - px);
+        double dy = (toroidal ? field.tdy(field.y[i], py) : field.y[i] - py);
+        if (dx * dx + dy * dy <= distSq) result.add(i);
+        if (splitOnY[m])
+            {
+            double split = field.y[i];
+            radius(lo, m, x1, y1, x2, split, px, py, distSq, toroidal, result);
+            radius(m + 1, hi, x1, split, x2, y2, px, py, distSq, toroidal, result);
+            }
+        else
+            {
+            double split = field.x[i];
+            radius(lo, m, x1, y1, split, y2, px, py, distSq, toroidal, result);
+            radius(m + 1, hi, split, y1, x2, y2, px, py, distSq, toroidal, result);
+            }
+        }
+
+    public IntBag getIndicesWithinRectangle(double x1, double y1, double x2, double y2, IntBag result)
+        {
+        update();
+        if (result == null) result = new IntBag();
+        else result.clear();
+        if (numObjects > 0)
+            rectangle(0, numObjects, minX, minY, maxX, maxY, x1, y1, x2, y2, result);
+        return result;
+        }
+
+    void rectangle(int lo, int hi, double bx1, double by1, double bx2, double by2,
+        double x1, double y1, double x2, double y2, IntBag result)
+        {
+        if (bx1 > x2 || bx2 < x1 || by1 > y2 || by2 < y1) return;  // no overlap
+        if (hi - lo <= LEAF_SIZE)
+            {
+            for(int j = lo; j < hi; j++)
+                {
+                int i = order[j];
+                if (field.x[i] >= x1 && field.x[i] <= x2 && field.y[i] >= y1 && field.y[i] <= y2) result.add(i);
+                }
+            return;
+            }
+
+        int m = (lo + hi) >>> 1;
+        int i = order[m];
+        if (field.x[i] >= x1 && field.x[i] <= x2 && field.y[i] >= y1 && field.y[i] <= y2) result.add(i);
+        if (splitOnY[m])
+            {
+            double split = field.y[i];
+            rectangle(lo, m, bx1, by1, bx2, split, x1, y1, x2, y2, result);
+            rectangle(m + 1, hi, bx1, split, bx2, by2, x1, y1, x2, y2, result);
+            }
+        else
+            {
+            double split = field.x[i];
+            rectangle(lo, m, bx1, by1, split, by2, x1, y1, x2, y2, result);
+            rectangle(m + 1, hi, split, by1, bx2, by2, x1, y1, x2, y2, result);
+            }
+        }
+
+    public IntBag getNearestNeighbors(double x, double y, int k, boolean toroidal, IntBag result, DoubleBag distances)
+        {
+        update();
+        if (result == null) result = new IntBag(Math.max(k, 0));
+        if (distances == null) distances = new DoubleBag(Math.max(k, 0));
+        NearestHeap heap = new NearestHeap(Math.max(k, 0), result, distances);
+        if (toroidal) { x = field.tx(x); y = field.ty(y); }
+        if (k > 0 && numObjects > 0)
+            nearest(0, numObjects, minX, minY, maxX, maxY, x, y, toroidal, heap);
+        heap.finish();
+        return result;
+        }
+
+    void nearest(int lo, int hi, double x1, double y1, double x2, double y2,
+        double px, double py, boolean toroidal, NearestHeap heap)
+        {
+        // prune if the subtree's bounds are no nearer than the kth nearest so far
+        double ax = NearestHeap.axisDistance(px, x1, x2, field.width, toroidal);
+        double ay = NearestHeap.axisDistance(py, y1, y2, field.height, toroidal);
+        if (ax * ax + ay * ay >= heap.bound()) return;
+
+        if (hi - lo <= LEAF_SIZE)
+            {
+            for(int j = lo; j < hi; j++)
+                {
+                int i = order[j];
+                double dx = (toroidal ? field.tdx(field.x[i], px) : field.x[i] - px);
+                double dy = (toroidal ? field.tdy(field.y[i], py) : field.y[i] - py);
+                heap.offer(i, dx * dx + dy * dy);
+                }
+            return;
+            }
+
+        int m = (lo + hi) >>> 1;
+        int i = order[m];
+        double dx = (toroidal ? field.tdx(field.x[i], px) : field.x[i] - px);
+        double dy = (toroidal ? field.tdy(field.y[i], py) : field.y[i] - py);
+        heap.offer(i, dx * dx + dy * dy);
+
+        // search the side the point is on first, so the other side is more likely to be pruned
+        if (splitOnY[m])
+            {
+            double split = field.y[i];
+            if (py < split)
+                {
+                nearest(lo, m, x1, y1, x2, split, px, py, toroidal, heap);
+                nearest(m + 1, hi, x1, split, x2, y2, px, py, toroidal, heap);
+                }
+            else
+                {
+                nearest(m + 1, hi, x1, split, x2, y2, px, py, toroidal, heap);
+                nearest(lo, m, x1, y1, x2, split, px, py, toroidal, heap);
+                }
+            }
+        else
+            {
+            double split = field.x[i];
+            if (px < split)
+                {
+                nearest(lo, m, x1, y1, split, y2, px, py, toroidal, heap);
+                nearest(m + 1, hi, split, y1, x2, y2, px, py, toroidal, heap);
+                }
+            else
+                {
+                nearest(m + 1, hi, split, y1, x2, y2, px, py, toroidal, heap);
+                nearest(lo, m, x1, y1, split, y2, px, py, toroidal, heap);
+                }
+            }
+        }
+
+
+    // for the benchmark
+    static void benchmark(String layout, IndexedContinuous2D field, int numQueries, double range, int k, ec.util.MersenneTwisterFast random)
+        {
+        KDTree2D tree = new KDTree2D(field);
+        SpatialIndex2D[] indexes = new SpatialIndex2D[] { field, tree };
+        String[] names = new String[] { "buckets", "k-d tree" };
+        double[] qx = new double[numQueries];
+        double[] qy = new double[numQueries];
+        IntBag indices = new IntBag();
+        for(int q = 0; q < numQueries; q++)  // query at the objects themselves, as agents would
+            {
+            int i = random.nextInt(field.objects.length);
+            qx[q] = field.x[i];
+            qy[q] = field.y[i];
+            }
+        for(int rep = 0; rep < 10; rep++) { field.modCount++; tree.update(); }  // warm up
+        long t = System.nanoTime();
+        for(int rep = 0; rep < 10; rep++) { field.modCount++; tree.update(); }
+        long build = (System.nanoTime() - t) / 10;
+        for(int s = 0; s < indexes.length; s++)
+            {
+            SpatialIndex2D index = indexes[s];
+            long found = 0;
+            DoubleBag distances = new DoubleBag();
+            for(int rep = 0; rep < 2; rep++)  // the first round warms up
+                {
+                t = System.nanoTime();
+                for(int q = 0; q < numQueries; q++)
+                    found += index.getIndicesExactlyWithinDistance(qx[q], qy[q], range, true, indices).numObjs;
+                long radius = System.nanoTime() - t;
+                t = System.nanoTime();
+                for(int q = 0; q < numQueries; q++)
+                    index.getNearestNeighbors(qx[q], qy[q], k, true, indices, distances);
+                long nearest = System.nanoTime() - t;
+                if (rep == 1)
+                    System.out.println(layout + " " + names[s] + ": " + (radius / numQueries) + " ns per radius query (" +
+                        (found / (2 * numQueries)) + " found), " + (nearest / numQueries) + " ns per " + k + "-nearest query" +
+                        (s == 1 ? ", " + (build / 1000) + " us per rebuild" : ""));
+                }
+            }
+        }
+
+    /** Benchmarks KDTree2D against the buckets of IndexedContinuous2D, with 20K objects either spread uniformly or
+        packed into 40 Gaussian clusters, on radius and k-nearest-neighbor queries.  The buckets are sized for the
+        radius, as one would tune them for uniform objects. */
+    public static void main(String[] args)
+        {
+        final int numObjects = 20000;
+        final double width = 500, height = 500, range = 5;
+        for(int clustered = 0; clustered < 2; clustered++)
+            {
+            ec.util.MersenneTwisterFast random = new ec.util.MersenneTwisterFast(4357);
+            IndexedContinuous2D field = new IndexedContinuous2D(range, width, height);
+            double[] cx = new double[40];
+            double[] cy = new double[40];
+            for(int c = 0; c < cx.length; c++) { cx[c] = random.nextDouble() * width; cy[c] = random.nextDouble() * height; }
+            for(int i = 0; i < numObjects; i++)
+                {
+                double x, y;
+                if (clustered == 1)
+                    {
+                    int c = random.nextInt(cx.length);
+                    x = field.tx(cx[c] + random.nextGaussian() * 2);
+                    y = field.ty(cy[c] + random.nextGaussian() * 2);
+                    }
+                else { x = random.nextDouble() * width; y = random.nextDouble() * height; }
+                field.setObjectLocation(new IndexedContinuous2D.Point(i), x, y);
+                }
+            benchmark(clustered == 1 ? "clustered" : "uniform  ", field, 20000, range, 8, random);
+            }
+        }
+    }
@@ -0,0 +1,166 @@
+/*
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.continuous;
+import sim.util.*;
+
+/**
+   The k nearest candidates seen so far in a k-nearest-neighbor search: a max-heap of at most k
+   (squared distance, index) pairs, stored in the caller's IntBag and DoubleBag so that a search
+   allocates nothing.  Used by the SpatialIndex2D implementations.
+
+   <p>The heap can instead hold objects, to be written into the caller's Bag, for the fields (such as
+   Continuous2D) whose objects don't have indices.  Then the indices are slots in an array of the
+   objects, and each object offered takes over the slot of the one it displaces.
+*/
+
+final class NearestHeap
+    {
+    int k;
+    int size;
+    int[] index;
+    double[] distSq;
+    IntBag indices;
+    DoubleBag distances;
+    Bag objects;    // null unless we hold objects
+    Object[] slots;
+
+    /** Sets up an empty heap of the k nearest, which will be written into the given bags. */
+    NearestHeap(int k, IntBag indices, DoubleBag distances)
+        {
+        this.k = k;
+        this.indices = indices;
+        this.distances = distances;
+        indices.clear();
+        distances.clear();
+        indices.resize(k);
+        distances.resize(k);
+        index = indices.objs;
+        distSq = distances.objs;
+        }
+
+    /** Sets up an empty heap of the k nearest objects, which will be written into the given bags. */
+    NearestHeap(int k, Bag objects, DoubleBag distances)
+        {
+        this(k, new IntBag(k), distances);
+        this.objects = objects;
+        objects.clear();
+        slots = new Object[k];
+        }
+
+    /** Returns true if the heap holds k candidates. */
+    boolean isFull() { return size == k; }
+
+    /** Returns the squared distance of the farthest candidate, or infinity if the heap isn't full yet
+        (so that anything is worth offering). */
+    double bound() { return size < k ? Double.POSITIVE_INFINITY : distSq[0]; }
+
+    /** Offers a candidate, which replaces the farthest if it's nearer. */
+    void offer(int i, double d)
+        {
+        if (size < k)
+            {
+            // sift up
+            int c = size++;
+            while(c > 0)
+                {
+                int p = (c - 1) >> 1;
+                if (distSq[p] >= d) break;
+                distSq[c] = distSq[p]; index[c] = index[p];
+                c = p;
+                }
+            distSq[c] = d; index[c] = i;
+            }
+        else if (d < distSq[0])
+            siftDown(0, i, d, size);
+        }
+
+    /** Offers a candidate object, which replaces the farthest if it's nearer. */
+    void offer(Object obj, double d)
+        {
+        if (size < k)
+            {
+            slots[size] = obj;
+            offer(size, d);
+            }
+        else if (d < distSq[0])
+            {
+            slots[index[0]] = obj;
+            siftDown(0, index[0], d, size);
+            }
+        }
+
+    // puts (i, d) at position p of the heap of the given size and sifts it down
+    void siftDown(int p, int i, double d, int size)
+        {
+        while(true)
+            {
+            int c = 2 * p + 1;
+            if (c >= size) break;
+            if (c + 1 < size && distSq[c + 1] > distSq[c]) c++;
+            if (distSq[c] <= d) break;
+            distSq[p] = distSq[c]; index[p] = index[c];
+            p = c;
+            }
+        distSq[p] = d; index[p] = i;
+        }
+
+    /** Returns the distance from v to the interval [lo, hi] along an axis of the given length, toroidal or not.
+        Searches use this to skip regions which can't hold anything nearer than bound(). */
+    static double axisDistance(double v, double lo, double hi, double length, boolean toroidal)
+        {
+        if (v < lo)
+            {
+            double d = lo - v;
+            if (toroidal) d = Math.min(d, v + length - hi);
+            return d;
+            }
+        if (v > hi)
+            {
+            double d = v - hi;
+            if (toroidal) d = Math.min(d, lo + length - v);
+            return d;
+            }
+        return 0;
+        }
+
+    /** Returns the distance from v to bucket b along an axis of the given length, toroidal or not, when buckets are
+        made by truncating coordinates divided by the discretization, as in Continuous2D and Continuous3D.  Truncation
+        makes bucket 0 span (-discretization, discretization) in non-toroidal fields. */
+    static double bucketDistance(double v, int b, double discretization, double length, boolean toroidal)
+        {
+        double lo, hi;
+        if (toroidal) { lo = b * discretization; hi = Math.min(lo + discretization, length); }  // the last may be narrower
+        else if (b > 0) { lo = b * discretization; hi = lo + discretization; }
+        else if (b == 0) { lo = -discretization; hi = discretization; }
+        else { hi = b * discretization; lo = hi - discretization; }
+        return axisDistance(v, lo, hi, length, toroidal);
+        }
+
+    /** Sorts the candidates nearest first, converts the squared distances to distances, and sets the bags' sizes. */
+    void finish()
+        {
+        // heapsort in place: the farthest goes to the end each time
+        for(int n = size - 1; n > 0; n--)
+            {
+            int i = index[n];
+            double d = distSq[n];
+            index[n] = index[0];
+            distSq[n] = distSq[0];
+            siftDown(0, i, d, n);
+            }
+        for(int n = 0; n < size; n++)
+            distSq[n] = Math.sqrt(distSq[n]);
+        indices.numObjs = size;
+        distances.numObjs = size;
+        if (objects != null)
+            {
+            objects.resize(size);
+            for(int n = 0; n < size; n++)
+                objects.objs[n] = slots[index[n]];
+            objects.numObjs = size;
+            }
+        }
+    }
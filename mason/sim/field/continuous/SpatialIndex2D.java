@@ -0,0 +1,32 @@
+/*
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.continuous;
+import sim.util.*;
+
+/**
+   A spatial index over the objects of an IndexedContinuous2D, which answers neighborhood queries with the
+   objects' indices.  IndexedContinuous2D is itself a SpatialIndex2D (a grid of buckets, which must be tuned with
+   a discretization); KDTree2D is another, which needs no tuning and copes better with clustered objects.
+   Code written against SpatialIndex2D can use either.
+
+   <p>All the methods clear the provided IntBag (creating one if it's null), fill it, and return it.  Toroidal
+   queries assume that the objects lie within the field's bounds.
+*/
+
+public interface SpatialIndex2D
+    {
+    /** Returns the indices of EXACTLY those objects whose distance from (x, y) is at most 'distance'.  If 'toroidal'
+        is true, distance is measured assuming the field is toroidal. */
+    public IntBag getIndicesExactlyWithinDistance(double x, double y, double distance, boolean toroidal, IntBag result);
+
+    /** Returns the indices of EXACTLY those objects within the rectangle from (x1, y1) to (x2, y2) inclusive. */
+    public IntBag getIndicesWithinRectangle(double x1, double y1, double x2, double y2, IntBag result);
+
+    /** Returns the indices of the 'k' objects nearest to (x, y), nearest first, or of all the objects if there are no more
+        than 'k' of them.  Ties are broken arbitrarily.  If 'distances' is provided, it is cleared and filled with the
+        distances of the objects, in the same order.  If 'toroidal' is true, distance is measured assuming the field is toroidal. */
+    public IntBag getNearestNeighbors(double x, double y, int k, boolean toroidal, IntBag result, DoubleBag distances);
+    }
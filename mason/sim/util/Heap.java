@@ -198,11 +198,35 @@ public class Heap implements java.io.Serializable
         this.numElem = numElem;
         }
 
+    /** Returns the keys in the heap, in the order in which it holds them internally.  Adding these keys and the
+        corresponding objects (see getObjects()) to an empty Heap, in this order, rebuilds exactly this Heap.
+        This is how the Schedule writes its queue to a checkpoint. */
+    public Comparable[] getKeys()
+        {
+        Comparable[] k = new Comparable[numElem];
+        System.arraycopy(keys, 0, k, 0, numElem);
+        return k;
+        }
+
+    /** Returns the objects in the heap, in the order in which it holds them internally (see getKeys()). */
+    public Object[] getObjects()
+        {
+        Object[] o = new Object[numElem];
+        System.arraycopy(objects, 0, o, 0, numElem);
+        return o;
+        }
+
     public boolean isEmpty()
         {
         return (numElem==0);
         }
 
+    /** Returns the number of elements in the heap. */
+    public int size()
+        {
+        return numElem;
+        }
+
     public void clear()
         {
         int len = numElem;